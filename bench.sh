@@ -0,0 +1,10 @@
+# Build and run a benchmark: bench.sh <benchmark class> [<arguments>]
+# The vector sphere kernel is built and used if the JDK has the Vector API.
+mkdir -p bench/classes
+javac -nowarn -d bench/classes src/*.java bench/*.java || exit 1
+if javac -nowarn --add-modules jdk.incubator.vector -cp bench/classes -d bench/classes src/vector/*.java 2> /dev/null
+then
+   java --add-modules jdk.incubator.vector -cp bench/classes "$@"
+else
+   java -cp bench/classes "$@"
+fi
@@ -0,0 +1,183 @@
+/*
+ *
+ * Music of the Spheres beat allocation check.
+ *
+ * Description:
+ *
+ * Checks that playing a beat allocates nothing, so that long-running
+ * players never pause to collect garbage.  Each scene is warmed up until
+ * the JIT has compiled the beat path (interpreted code allocates where
+ * compiled code does not), then played for a number of beats while the thread's allocated bytes are
+ * read from ThreadMXBean.getThreadAllocatedBytes().  The scenes cover
+ * the serial, brute force, resting, fixed-point and generated kernel
+ * steps, a compiled score, and drawing into an off-screen image.  The
+ * timeline is given a small budget so that its checkpoints are recycled,
+ * as in a player that has run for a while.  Exits with status 1 if any
+ * scene allocates.
+ *
+ * Usage:
+ *
+ * bench.sh BeatAllocationCheck [<beats>]
+ *
+ */
+
+import java.awt.*;
+import java.awt.image.*;
+import java.lang.management.*;
+
+// Beat allocation check.
+public class BeatAllocationCheck
+{
+   // Parameters.
+   static final int  DEFAULT_BEATS   = 5000;
+   static final int  WARMUP_BEATS    = 10000; // For the JIT to compile the beat path,
+   static final int  WARMUP_CHUNK    = 100;   // in short runs, so that play() is compiled.
+   static final int  NUM_SPHERES     = 200;
+   static final int  NUM_STRINGS     = 8;
+   static final long TIMELINE_BUDGET = 64L * 1024L;
+
+   // Thread allocation counter.
+   static com.sun.management.ThreadMXBean threads;
+
+   // Sphere images for drawing.
+   static SphereImages sphereImages = new SphereImages();
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int      beats, failures;
+      Music    music;
+      Score    score;
+      Font     font;
+      Graphics graphics;
+
+      beats = DEFAULT_BEATS;
+      if (args.length == 1)
+      {
+         beats = Integer.parseInt(args[0]);
+      }
+      else if (args.length != 0)
+      {
+         System.err.println("Usage: bench.sh BeatAllocationCheck [<beats>]");
+         System.exit(1);
+      }
+      threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+      if (!threads.isThreadAllocatedMemorySupported())
+      {
+         System.err.println("Thread allocated memory is not supported");
+         System.exit(1);
+      }
+      threads.setThreadAllocatedMemoryEnabled(true);
+
+      System.out.println("scene                     beats  bytes allocated  bytes/beat");
+      failures = 0;
+
+      // Steps.
+      failures += check("serial", scene(false), beats, null, null);
+      music     = scene(false);
+      music.bruteForce = true;
+      failures += check("brute force", music, beats, null, null);
+      failures += check("resting", scene(true), beats, null, null);
+      music     = scene(false);
+      music.fixedPoint = true;
+      failures += check("fixed point", music, beats, null, null);
+      music     = scene(false);
+      music.generateKernel = true;
+      music.stringsChanged();
+      music.awaitKernel();
+      failures += check("generated kernel", music, beats, null, null);
+
+      // Compiled score.
+      music = scene(false);
+      score = ScoreCompiler.compile(music, beats * 2, 1);
+      failures += check("score", music, beats, score, null);
+
+      // Drawing.
+      music    = scene(false);
+      font     = new Font("Helvetica", Font.BOLD, 12);
+      graphics = new BufferedImage(music.size.width, music.size.height,
+                                   BufferedImage.TYPE_INT_RGB).getGraphics();
+      graphics.setFont(font);
+      failures += check("draw", music, beats, null, graphics);
+
+      if (failures > 0)
+      {
+         System.err.println(failures + " scene(s) allocated while playing");
+         System.exit(1);
+      }
+      System.out.println("ok");
+   }
+
+
+   // Scene to check, with a small timeline budget, and half its spheres
+   // resting if asked.
+   static Music scene(boolean resting)
+   {
+      int   i;
+      Music music;
+
+      music = BenchScenes.scene(NUM_SPHERES, NUM_STRINGS);
+      music.timeline.setBudget(TIMELINE_BUDGET);
+      if (resting)
+      {
+         for (i = 0; i < music.spheres.count; i += 2)
+         {
+            music.spheres.dx[i] = music.spheres.dy[i] = 0.0;
+         }
+         music.setRewindPoint();
+      }
+      return(music);
+   }
+
+
+   // Warm up and play beats of a scene, stepping its score if given and
+   // drawing it if given graphics, and report the bytes allocated.
+   // Returns 1 if any were allocated, else 0.
+   static int check(String name, Music music, int beats, Score score, Graphics graphics)
+   {
+      int         i;
+      long        before, after;
+      FontMetrics fontMetrics;
+
+      fontMetrics = (graphics != null ? graphics.getFontMetrics() : null);
+      for (i = 0; i < WARMUP_BEATS; i += WARMUP_CHUNK)
+      {
+         play(music, WARMUP_CHUNK, score, graphics, fontMetrics);
+      }
+      before = threads.getCurrentThreadAllocatedBytes();
+      play(music, beats, score, graphics, fontMetrics);
+      after = threads.getCurrentThreadAllocatedBytes();
+      System.out.printf("%-22s %8d  %15d  %10.3f%n", name, beats, after - before,
+                        (double)(after - before) / (double)beats);
+      return(after != before ? 1 : 0);
+   }
+
+
+   // Play beats, from the start again when the music or score ends.
+   static void play(Music music, int beats, Score score, Graphics graphics,
+                    FontMetrics fontMetrics)
+   {
+      int i;
+
+      for (i = 0; i < beats; i++)
+      {
+         if (score != null)
+         {
+            if (!score.step(music))
+            {
+               score.rewind(music);
+            }
+            music.playBounceSounds();
+         }
+         else
+         {
+            music.movement();
+         }
+         if (graphics != null)
+         {
+            Player.drawMusic(music, sphereImages, graphics, music.size, graphics.getFont(),
+                             fontMetrics);
+         }
+      }
+   }
+}
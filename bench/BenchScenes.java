@@ -0,0 +1,84 @@
+/*
+ *
+ * Music of the Spheres benchmark scenes.
+ *
+ * Description:
+ *
+ * Generates repeatable synthetic compositions for the benchmarks.  The
+ * world grows with the sphere count so that sphere density, and so the
+ * collision rate, stays about the same at every size.  The area per
+ * sphere may be given to make scenes denser or sparser.
+ *
+ */
+
+import java.awt.*;
+import java.util.*;
+
+// Benchmark scenes class.
+public class BenchScenes
+{
+   // Parameters.
+   static final int  AREA_PER_SPHERE = 100 * 100;
+   static final long SEED            = 4711;
+
+   // Create a scene of spheres and strings.
+   public static Music scene(int numSpheres, int numStrings)
+   {
+      return(scene(numSpheres, numStrings, AREA_PER_SPHERE));
+   }
+
+
+   // Create a scene of spheres and strings with an area per sphere.
+   public static Music scene(int numSpheres, int numStrings, int areaPerSphere)
+   {
+      int          w, h, i, l;
+      double       a, v;
+      Music        music;
+      Random       random;
+      SphereSprite sphere;
+      StringSprite string;
+
+      w      = (int)Math.sqrt((double)numSpheres * areaPerSphere) + (Music.MAX_SPHERE_RADIUS * 4);
+      h      = w;
+      music  = new Music(new Dimension(w, h));
+      random = new Random(SEED);
+      music.mute      = true;
+      music.finisBeat = -1;
+      for (i = 0; i < numSpheres; i++)
+      {
+         sphere        = new SphereSprite();
+         sphere.radius = Music.MIN_SPHERE_RADIUS +
+                         random.nextInt(Music.MAX_SPHERE_RADIUS - Music.MIN_SPHERE_RADIUS + 1);
+         sphere.x = sphere.radius + random.nextInt(w - (sphere.radius * 2));
+         sphere.y = sphere.radius + random.nextInt(h - (sphere.radius * 2));
+         a        = random.nextDouble() * Math.PI * 2.0;
+         v        = random.nextDouble() * Music.MAX_SPHERE_SPEED;
+         sphere.dx           = v * Math.cos(a);
+         sphere.dy           = v * Math.sin(a);
+         sphere.paletteIndex = random.nextInt(Music.MAX_SOUND_COLOR + 1) - 1;
+         music.spheres.add(sphere);
+      }
+      for (i = 0; i < numStrings; i++)
+      {
+         string = new StringSprite();
+         l      = Music.MIN_STRING_SIZE +
+                  random.nextInt(Music.MAX_STRING_SIZE - Music.MIN_STRING_SIZE + 1);
+         string.x1 = random.nextInt(w - l);
+         string.y1 = random.nextInt(h - l);
+         if (random.nextBoolean())
+         {
+            string.x2 = string.x1;
+            string.y2 = string.y1 + l;
+         }
+         else
+         {
+            string.x2 = string.x1 + l;
+            string.y2 = string.y1;
+         }
+         string.paletteIndex = random.nextInt(Music.MAX_SOUND_COLOR + 1) - 1;
+         music.addString(string);
+      }
+      music.setRewindPoint();
+      return(music);
+   }
+}
@@ -0,0 +1,100 @@
+/*
+ *
+ * Music of the Spheres composition kernel benchmark.
+ *
+ * Description:
+ *
+ * Compares the generic string and wall checks with a kernel generated
+ * for the composition, in whole beats of Music.movement(), over scenes
+ * with few and many strings.  The time to generate the kernel is shown,
+ * and both are checked to leave the spheres the same.
+ *
+ * Usage:
+ *
+ * bench.sh CompositionKernelBenchmark [<beats>]
+ *
+ */
+
+import java.util.*;
+
+// Composition kernel benchmark.
+public class CompositionKernelBenchmark
+{
+   // Parameters.
+   static final int[] SPHERE_COUNTS = { 100, 1000 };
+   static final int[] STRING_COUNTS = { 2, 4, 8 };
+   static final int   DEFAULT_BEATS = 5000;
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int    beats, i, j, n, s;
+      long   t;
+      double generatedMs, genericRate, generatedRate;
+      Music  generic, generated;
+
+      beats = DEFAULT_BEATS;
+      if (args.length == 1)
+      {
+         beats = Integer.parseInt(args[0]);
+      }
+      else if (args.length != 0)
+      {
+         System.err.println("Usage: bench.sh CompositionKernelBenchmark [<beats>]");
+         System.exit(1);
+      }
+
+      System.out.println("spheres  strings  generate ms  generic beats/s  generated beats/s  speedup");
+      for (i = 0; i < SPHERE_COUNTS.length; i++)
+      {
+         for (j = 0; j < STRING_COUNTS.length; j++)
+         {
+            n         = SPHERE_COUNTS[i];
+            s         = STRING_COUNTS[j];
+            generic   = BenchScenes.scene(n, s);
+            generated = BenchScenes.scene(n, s);
+            generated.generateKernel = true;
+            generated.stringsChanged();
+            t = System.nanoTime();
+            generated.awaitKernel();
+            generatedMs = (double)(System.nanoTime() - t) / 1.0e6;
+            if (generated.compositionKernel == null)
+            {
+               System.err.println("Cannot generate kernel (no system Java compiler?)");
+               System.exit(1);
+            }
+
+            // Warm up, then measure.
+            run(generic, beats);
+            run(generated, beats);
+            genericRate   = run(generic, beats);
+            generatedRate = run(generated, beats);
+            if (!Arrays.equals(generic.spheres.x, generated.spheres.x) ||
+                !Arrays.equals(generic.spheres.y, generated.spheres.y) ||
+                !Arrays.equals(generic.spheres.dx, generated.spheres.dx) ||
+                !Arrays.equals(generic.spheres.dy, generated.spheres.dy))
+            {
+               System.err.println("Kernels differ at " + n + " spheres, " + s + " strings");
+               System.exit(1);
+            }
+            System.out.printf("%7d  %7d  %11.1f  %15.1f  %17.1f  %6.2fx%n", n, s, generatedMs,
+                              genericRate, generatedRate, generatedRate / genericRate);
+         }
+      }
+   }
+
+
+   // Run whole beats, returning beats per second.
+   static double run(Music music, int beats)
+   {
+      int  i;
+      long t;
+
+      t = System.nanoTime();
+      for (i = 0; i < beats; i++)
+      {
+         music.movement();
+      }
+      return((double)beats * 1.0e9 / (double)(System.nanoTime() - t));
+   }
+}
@@ -0,0 +1,363 @@
+/*
+ *
+ * Music of the Spheres engine benchmark.
+ *
+ * Description:
+ *
+ * Measures the throughput and latency of Music.movement(), the beat the
+ * player runs, so that a change to the engine can be compared with a
+ * stable baseline.  The scenes are the repository compositions sample.dat
+ * and tonymany.dat, played without end, and synthetic scenes (see
+ * BenchScenes) of 50, 500, 5000 and 50000 spheres, at each sphere density
+ * (spheres per 100x100 pixels) and string density (strings per 100
+ * spheres).
+ *
+ * Each scene is run as in JMH: warm-up iterations, to let the JIT compile
+ * the beat, then measured iterations of a fixed time.  Throughput is the
+ * mean of the iterations' beats per second, with their standard
+ * deviation; latency percentiles are of the time of every measured beat.
+ * Results can be saved as a CSV baseline, and a later run compared with
+ * it.  Timing each beat costs two System.nanoTime() calls, which is small
+ * against even the 50 sphere beat.
+ *
+ * Usage:
+ *
+ * bench.sh EngineBenchmark [-spheres <n,n,...>] [-densities <n,n,...>]
+ *    [-strings <n,n,...>] [-warmup <iterations>] [-iterations <iterations>]
+ *    [-time <milliseconds per iteration>] [-save <baseline file>]
+ *    [-baseline <baseline file>]
+ *
+ */
+
+import java.awt.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+// Engine benchmark.
+public class EngineBenchmark
+{
+   // Parameters.
+   static final String[] COMPOSITIONS       = { "repository/sample.dat", "repository/tonymany.dat" };
+   static final int[]    SPHERE_COUNTS      = { 50, 500, 5000, 50000 };
+   static final int[]    SPHERE_DENSITIES   = { 1, 4 };    // Spheres per 100x100 pixels.
+   static final int[]    STRING_DENSITIES   = { 0, 1, 4 }; // Strings per 100 spheres.
+   static final int      WARMUP_ITERATIONS  = 3;
+   static final int      ITERATIONS         = 5;
+   static final int      ITERATION_MS       = 1000;
+   static final double[] PERCENTILES        = { 50.0, 90.0, 99.0, 99.9 };
+   static final String[] PERCENTILE_NAMES   = { "p50", "p90", "p99", "p99.9" };
+   static final int      P99                = 2; // Compared with the baseline.
+   static final int      INITIAL_LATENCIES  = 100000;
+
+   // Options.
+   static int[] sphereCounts     = SPHERE_COUNTS;
+   static int[] sphereDensities  = SPHERE_DENSITIES;
+   static int[] stringDensities  = STRING_DENSITIES;
+   static int   warmupIterations = WARMUP_ITERATIONS;
+   static int   iterations       = ITERATIONS;
+   static int   iterationMs      = ITERATION_MS;
+
+   // Beat latencies of the measured iterations, in nanoseconds.
+   static long[] latencies = new long[INITIAL_LATENCIES];
+   static int    numLatencies;
+
+   // Result of a scene.
+   static class Result
+   {
+      String   scene;
+      double   rate, rateError;
+      double[] percentiles = new double[PERCENTILES.length];
+      double   max;
+
+      // Result as a baseline CSV line.
+      String toCSV()
+      {
+         int          i;
+         StringBuffer b;
+
+         b = new StringBuffer(scene + "," + rate + "," + rateError);
+         for (i = 0; i < percentiles.length; i++)
+         {
+            b.append("," + percentiles[i]);
+         }
+         b.append("," + max);
+         return(b.toString());
+      }
+   }
+
+   // Usage.
+   static final String Usage =
+      "Usage: bench.sh EngineBenchmark [-spheres <n,n,...>] [-densities <n,n,...>]\n" +
+      "    [-strings <n,n,...>] [-warmup <iterations>] [-iterations <iterations>]\n" +
+      "    [-time <milliseconds per iteration>] [-save <baseline file>]\n" +
+      "    [-baseline <baseline file>]";
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int                     i, j, k, n;
+      String                  saveName, baselineName, line;
+      URL                     baseURL;
+      Music                   music;
+      Vector<Result>          results;
+      HashMap<String, String> baseline;
+      BufferedReader          in;
+      PrintWriter             out;
+
+      // Get options.
+      saveName = baselineName = null;
+      try
+      {
+         for (i = 0; i < args.length; i++)
+         {
+            if (args[i].equals("-spheres"))
+            {
+               sphereCounts = parseList(args[++i], 1);
+            }
+            else if (args[i].equals("-densities"))
+            {
+               sphereDensities = parseList(args[++i], 1);
+            }
+            else if (args[i].equals("-strings"))
+            {
+               stringDensities = parseList(args[++i], 0);
+            }
+            else if (args[i].equals("-warmup"))
+            {
+               warmupIterations = Integer.parseInt(args[++i]);
+               if (warmupIterations < 0) { throw(new IllegalArgumentException()); }
+            }
+            else if (args[i].equals("-iterations"))
+            {
+               iterations = Integer.parseInt(args[++i]);
+               if (iterations < 1) { throw(new IllegalArgumentException()); }
+            }
+            else if (args[i].equals("-time"))
+            {
+               iterationMs = Integer.parseInt(args[++i]);
+               if (iterationMs < 1) { throw(new IllegalArgumentException()); }
+            }
+            else if (args[i].equals("-save"))
+            {
+               saveName = args[++i];
+            }
+            else if (args[i].equals("-baseline"))
+            {
+               baselineName = args[++i];
+            }
+            else
+            {
+               throw(new IllegalArgumentException());
+            }
+         }
+      }
+      catch (Exception e) {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Load the baseline.
+      baseline = new HashMap<String, String>();
+      if (baselineName != null)
+      {
+         try
+         {
+            in = new BufferedReader(new FileReader(baselineName));
+            while ((line = in.readLine()) != null)
+            {
+               baseline.put(line.substring(0, line.indexOf(',')), line);
+            }
+            in.close();
+         }
+         catch (Exception e) {
+            System.err.println("Cannot read baseline " + baselineName);
+            System.exit(1);
+         }
+      }
+
+      baseURL = null;
+      try
+      {
+         baseURL = new File(System.getProperty("user.dir")).toURI().toURL();
+      }
+      catch (MalformedURLException e) {
+         System.err.println("Cannot get URL of current directory");
+         System.exit(1);
+      }
+
+      System.out.printf("%-24s %8s  %12s  %9s", "scene", "spheres", "beats/s", "error");
+      for (i = 0; i < PERCENTILES.length; i++)
+      {
+         System.out.printf("  %8s", PERCENTILE_NAMES[i] + " us");
+      }
+      System.out.printf("  %9s%s%n", "max us", (baselineName != null ? "  vs baseline" : ""));
+      results = new Vector<Result>();
+
+      // Compositions.
+      for (i = 0; i < COMPOSITIONS.length; i++)
+      {
+         music      = new Music(new Dimension(0, 0));
+         music.mute = true;
+         line       = music.load(COMPOSITIONS[i], baseURL);
+         if (music.fileError || music.name.equals(""))
+         {
+            System.err.println(line);
+            System.exit(1);
+         }
+         music.finisBeat = -1;
+         music.setRewindPoint();
+         results.add(run(new File(COMPOSITIONS[i]).getName(), music, baseline));
+      }
+
+      // Synthetic scenes.
+      for (i = 0; i < sphereCounts.length; i++)
+      {
+         for (j = 0; j < sphereDensities.length; j++)
+         {
+            for (k = 0; k < stringDensities.length; k++)
+            {
+               n     = (sphereCounts[i] * stringDensities[k]) / 100;
+               music = BenchScenes.scene(sphereCounts[i], n,
+                                         (100 * 100) / sphereDensities[j]);
+               results.add(run("synthetic/d" + sphereDensities[j] + "/s" +
+                               stringDensities[k], music, baseline));
+            }
+         }
+      }
+
+      // Save the baseline.
+      if (saveName != null)
+      {
+         try
+         {
+            out = new PrintWriter(new FileWriter(saveName));
+            for (i = 0; i < results.size(); i++)
+            {
+               out.println(results.get(i).toCSV());
+            }
+            out.close();
+         }
+         catch (IOException e) {
+            System.err.println("Cannot save baseline " + saveName);
+            System.exit(1);
+         }
+         System.out.println("Baseline saved to " + saveName);
+      }
+   }
+
+
+   // Parse a comma-separated list of numbers of at least min.
+   static int[] parseList(String s, int min)
+   {
+      int      i;
+      String[] t;
+      int[]    list;
+
+      t    = s.split(",");
+      list = new int[t.length];
+      for (i = 0; i < t.length; i++)
+      {
+         list[i] = Integer.parseInt(t[i].trim());
+         if (list[i] < min) { throw(new IllegalArgumentException()); }
+      }
+      return(list);
+   }
+
+
+   // Warm up and measure a scene, and print its result and the change
+   // from its baseline.
+   static Result run(String name, Music music, HashMap<String, String> baseline)
+   {
+      int      i;
+      double   sum, sumSquares;
+      double[] rates;
+      String   line;
+      String[] b;
+      Result   result;
+
+      result       = new Result();
+      result.scene = name + "/" + music.spheres.count;
+      for (i = 0; i < warmupIterations; i++)
+      {
+         iteration(music, false);
+      }
+      numLatencies = 0;
+      rates        = new double[iterations];
+      sum          = sumSquares = 0.0;
+      for (i = 0; i < iterations; i++)
+      {
+         rates[i]    = iteration(music, true);
+         sum        += rates[i];
+         sumSquares += rates[i] * rates[i];
+      }
+      result.rate      = sum / (double)iterations;
+      result.rateError = Math.sqrt(Math.max(0.0, (sumSquares / (double)iterations) -
+                                            (result.rate * result.rate)));
+      Arrays.sort(latencies, 0, numLatencies);
+      for (i = 0; i < PERCENTILES.length; i++)
+      {
+         result.percentiles[i] = percentile(PERCENTILES[i]);
+      }
+      result.max = (double)latencies[numLatencies - 1] / 1000.0;
+
+      System.out.printf("%-24s %8d  %12.1f  %9.1f", name, music.spheres.count, result.rate,
+                        result.rateError);
+      for (i = 0; i < PERCENTILES.length; i++)
+      {
+         System.out.printf("  %8.1f", result.percentiles[i]);
+      }
+      System.out.printf("  %9.1f", result.max);
+      line = baseline.get(result.scene);
+      if (line != null)
+      {
+         b = line.split(",");
+         System.out.printf("  %+.1f%% beats/s, %+.1f%% p99 ",
+                           ((result.rate / Double.parseDouble(b[1])) - 1.0) * 100.0,
+                           ((result.percentiles[P99] / Double.parseDouble(b[3 + P99])) - 1.0) * 100.0);
+      }
+      System.out.println();
+      return(result);
+   }
+
+
+   // Play beats for an iteration, recording their latencies if asked.
+   // Returns beats per second.
+   static double iteration(Music music, boolean record)
+   {
+      int  beats;
+      long start, end, t, u;
+
+      beats = 0;
+      start = System.nanoTime();
+      end   = start + (iterationMs * 1000000L);
+      t     = start;
+      do
+      {
+         music.movement();
+         u = System.nanoTime();
+         if (record)
+         {
+            if (numLatencies == latencies.length)
+            {
+               latencies = Arrays.copyOf(latencies, numLatencies * 2);
+            }
+            latencies[numLatencies++] = u - t;
+         }
+         t = u;
+         beats++;
+      } while (t < end);
+      return((double)beats * 1.0e9 / (double)(t - start));
+   }
+
+
+   // Percentile of the sorted latencies, in microseconds.
+   static double percentile(double p)
+   {
+      int i;
+
+      i = (int)Math.ceil((p / 100.0) * (double)numLatencies) - 1;
+      i = Math.max(0, Math.min(i, numLatencies - 1));
+      return((double)latencies[i] / 1000.0);
+   }
+}
@@ -0,0 +1,288 @@
+/*
+ *
+ * Music of the Spheres load benchmark.
+ *
+ * Description:
+ *
+ * Measures the latency of Music.load() and Palette.load(), which the
+ * player runs when it switches music, so that work on load time can be
+ * compared with a stable baseline.  Small, medium and very large
+ * compositions are generated (see BenchScenes) into a temporary
+ * directory, with a palette of the most entries a palette.dat may have
+ * (MAX_SOUND_COLOR - 1).  Each is loaded as a local file, by its path,
+ * and through a file: URL, by a name relative to the base URL as the
+ * applet does, with the palette named the same way.  The repository's
+ * palettes are loaded too.
+ *
+ * Each load is of a new Music or Palette, so that the palette is loaded
+ * with the music as when the player switches palette.  Loads are run as
+ * in JMH sample mode: warm-up loads, to let the JIT compile the parsers,
+ * then measured loads for a fixed time; the mean and percentiles of the
+ * measured loads are shown.
+ *
+ * Usage:
+ *
+ * bench.sh LoadBenchmark [-time <milliseconds to measure each>]
+ *
+ */
+
+import java.awt.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Load benchmark.
+public class LoadBenchmark
+{
+   // Parameters.
+   static final String[] SCENE_NAMES        = { "small", "medium", "large" };
+   static final int[]    SCENE_SPHERES      = { 10, 1000, 100000 };
+   static final int[]    SCENE_STRINGS      = { 4, 50, 2000 };
+   static final String[] PALETTES           = { "defaultPalette", "pianoPalette",
+                                                "sillyPalette", "tonyPalette" };
+   static final String   PALETTE_NAME       = "loadBenchPalette";
+   static final int      NUM_PALETTE_SOUNDS = Palette.MAX_SOUND_COLOR - 1;
+   static final int      WARMUP_MS          = 2000;
+   static final int      MIN_WARMUP_LOADS   = 5;
+   static final int      MEASURE_MS         = 5000;
+   static final int      MIN_LOADS          = 10;
+   static final double[] PERCENTILES        = { 50.0, 90.0, 99.0 };
+   static final String[] PERCENTILE_NAMES   = { "p50", "p90", "p99" };
+
+   // Options.
+   static int measureMs = MEASURE_MS;
+
+   // Temporary directory and its URL.
+   static File directory;
+   static URL  directoryURL;
+
+   // Load latencies, in nanoseconds.
+   static long[] latencies = new long[1000];
+   static int    numLatencies;
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int  i;
+      URL  baseURL;
+      File file;
+
+      if ((args.length == 2) && args[0].equals("-time"))
+      {
+         measureMs = Integer.parseInt(args[1]);
+      }
+      else if (args.length != 0)
+      {
+         System.err.println("Usage: bench.sh LoadBenchmark [-time <milliseconds to measure each>]");
+         System.exit(1);
+      }
+
+      baseURL = null;
+      try
+      {
+         baseURL      = new File(System.getProperty("user.dir")).toURI().toURL();
+         directory    = Files.createTempDirectory("motsload").toFile();
+         directoryURL = directory.toURI().toURL();
+         writePalette();
+      }
+      catch (IOException e) {
+         System.err.println("Cannot create benchmark files: " + e.getMessage());
+         System.exit(1);
+      }
+
+      System.out.printf("%-34s %10s  %8s", "load", "bytes", "loads");
+      for (i = 0; i < PERCENTILES.length; i++)
+      {
+         System.out.printf("  %9s", PERCENTILE_NAMES[i] + " ms");
+      }
+      System.out.printf("  %9s  %9s%n", "mean ms", "max ms");
+
+      // Compositions.
+      for (i = 0; i < SCENE_NAMES.length; i++)
+      {
+         file = writeMusic(SCENE_NAMES[i], SCENE_SPHERES[i], SCENE_STRINGS[i]);
+         run("music " + SCENE_NAMES[i] + " file", file.length(), false, file.getPath(), baseURL);
+         run("music " + SCENE_NAMES[i] + " url", file.length(), false,
+             SCENE_NAMES[i] + "-url.dat", directoryURL);
+      }
+
+      // Palettes.
+      file = new File(directory, PALETTE_NAME + "/palette.dat");
+      run("palette " + NUM_PALETTE_SOUNDS + " sounds file", file.length(), true,
+          new File(directory, PALETTE_NAME).getPath(), baseURL);
+      run("palette " + NUM_PALETTE_SOUNDS + " sounds url", file.length(), true,
+          PALETTE_NAME, directoryURL);
+      for (i = 0; i < PALETTES.length; i++)
+      {
+         file = new File(PALETTES[i] + "/palette.dat");
+         run("palette " + PALETTES[i] + " file", file.length(), true, PALETTES[i], baseURL);
+      }
+
+      deleteAll(directory);
+   }
+
+
+   // Write the palette, of as many entries as allowed.
+   static void writePalette() throws IOException
+   {
+      int         i;
+      File        d;
+      PrintWriter out;
+
+      d = new File(directory, PALETTE_NAME);
+      if (!d.mkdir()) { throw(new IOException("Cannot create " + d)); }
+      out = new PrintWriter(new FileWriter(new File(d, "palette.dat")));
+      out.println("# Load benchmark palette.");
+      for (i = 0; i < NUM_PALETTE_SOUNDS; i++)
+      {
+         out.println("sound" + i + ".au\t" + (1 + ((i * 37) % 255)) + "-" +
+                     ((i * 71) % 256) + "-" + ((i * 113) % 256) + "\ty\ty");
+      }
+      out.close();
+   }
+
+
+   // Write a composition twice: naming the palette by its path, to be
+   // loaded as a file, and by its name, to be loaded through the URL of
+   // the directory.  Returns the file.
+   static File writeMusic(String name, int numSpheres, int numStrings)
+   {
+      File  file, urlFile;
+      Music music;
+
+      file               = new File(directory, name + ".dat");
+      urlFile            = new File(directory, name + "-url.dat");
+      music              = BenchScenes.scene(numSpheres, numStrings);
+      music.finisBeat    = 1000;
+      music.palette.name = new File(directory, PALETTE_NAME).getPath();
+      save(music, file);
+      music.palette.name = PALETTE_NAME;
+      save(music, urlFile);
+      return(file);
+   }
+
+
+   // Save music, exiting on error.
+   static void save(Music music, File file)
+   {
+      String message;
+
+      message = music.save(file.getPath());
+      if (music.fileError)
+      {
+         fail(message);
+      }
+   }
+
+
+   // Warm up and measure loads of music or a palette, and print the
+   // latencies.
+   static void run(String label, long bytes, boolean palette, String name, URL baseURL)
+   {
+      int  i, loads;
+      long start, t, total;
+
+      // Warm up.
+      start = System.nanoTime();
+      for (loads = 0; (loads < MIN_WARMUP_LOADS) ||
+           ((System.nanoTime() - start) < (WARMUP_MS * 1000000L)); loads++)
+      {
+         load(palette, name, baseURL);
+      }
+
+      // Measure.
+      numLatencies = 0;
+      total        = 0L;
+      start        = System.nanoTime();
+      for (loads = 0; (loads < MIN_LOADS) ||
+           ((System.nanoTime() - start) < (measureMs * 1000000L)); loads++)
+      {
+         t = System.nanoTime();
+         load(palette, name, baseURL);
+         t = System.nanoTime() - t;
+         if (numLatencies == latencies.length)
+         {
+            latencies = Arrays.copyOf(latencies, numLatencies * 2);
+         }
+         latencies[numLatencies++] = t;
+         total += t;
+      }
+      Arrays.sort(latencies, 0, numLatencies);
+
+      System.out.printf("%-34s %10d  %8d", label, bytes, loads);
+      for (i = 0; i < PERCENTILES.length; i++)
+      {
+         System.out.printf("  %9.3f", percentile(PERCENTILES[i]));
+      }
+      System.out.printf("  %9.3f  %9.3f%n", (double)total / (double)numLatencies / 1.0e6,
+                        (double)latencies[numLatencies - 1] / 1.0e6);
+   }
+
+
+   // Load music or a palette, exiting on error.
+   static void load(boolean palette, String name, URL baseURL)
+   {
+      String  message;
+      Music   music;
+      Palette p;
+
+      if (palette)
+      {
+         p       = new Palette();
+         message = p.load(name, baseURL);
+         if (p.fileError)
+         {
+            fail(message);
+         }
+      }
+      else
+      {
+         music      = new Music(new Dimension(0, 0));
+         music.mute = true;
+         message    = music.load(name, baseURL);
+         if (music.fileError || music.name.equals(""))
+         {
+            fail(message);
+         }
+      }
+   }
+
+
+   // Remove the temporary directory and exit with an error.
+   static void fail(String message)
+   {
+      System.err.println(message);
+      deleteAll(directory);
+      System.exit(1);
+   }
+
+
+   // Percentile of the sorted latencies, in milliseconds.
+   static double percentile(double p)
+   {
+      int i;
+
+      i = (int)Math.ceil((p / 100.0) * (double)numLatencies) - 1;
+      i = Math.max(0, Math.min(i, numLatencies - 1));
+      return((double)latencies[i] / 1.0e6);
+   }
+
+
+   // Delete a directory and its contents.
+   static void deleteAll(File file)
+   {
+      int    i;
+      File[] files;
+
+      files = file.listFiles();
+      if (files != null)
+      {
+         for (i = 0; i < files.length; i++)
+         {
+            deleteAll(files[i]);
+         }
+      }
+      file.delete();
+   }
+}
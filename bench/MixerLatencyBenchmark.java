@@ -0,0 +1,167 @@
+/*
+ *
+ * Music of the Spheres mixer latency benchmark.
+ *
+ * Description:
+ *
+ * Measures the sound mixer's trigger to output latency at several line
+ * buffer sizes, by triggering the sounds of a palette at irregular
+ * intervals and reading the latencies the mixer measured (see
+ * SoundMixer).  Also measures, without an audio line, the time to mix a
+ * period of many voices against the period's play time, and the cost
+ * and voices stolen and dropped by each stealing policy in a collision
+ * storm, in which every sound of the palette is triggered every period.
+ *
+ * Usage:
+ *
+ * bench.sh MixerLatencyBenchmark [<palette>]
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+// Mixer latency benchmark.
+public class MixerLatencyBenchmark
+{
+   // Parameters.
+   static final String DEFAULT_PALETTE = "defaultPalette";
+   static final int[]  BUFFER_MILLIS   = { 5, 10, 20, 50 };
+   static final int    NUM_TRIGGERS    = 100;
+   static final int    MAX_INTERVAL_MS = 40;
+   static final int[]  VOICE_COUNTS    = { 1, 8, 32, SoundMixer.MAX_VOICES };
+   static final int    MIX_PERIODS     = 100000;
+   static final int    STORM_PERIODS   = 100000;
+   static final long   SEED            = 4711;
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int        i, j, k, n;
+      long       t;
+      double     periodMs, mixMs;
+      String     paletteName, message;
+      URL        baseURL;
+      Palette    palette;
+      SoundMixer mixer;
+      Random     random;
+      byte[]     out;
+
+      paletteName = DEFAULT_PALETTE;
+      if (args.length == 1)
+      {
+         paletteName = args[0];
+      }
+      else if (args.length != 0)
+      {
+         System.err.println("Usage: bench.sh MixerLatencyBenchmark [<palette>]");
+         System.exit(1);
+      }
+      baseURL = null;
+      try
+      {
+         baseURL = new File(System.getProperty("user.dir")).toURI().toURL();
+      }
+      catch (MalformedURLException e) {
+         System.err.println("Cannot get URL of current directory");
+         System.exit(1);
+      }
+      palette = new Palette();
+      message = palette.load(paletteName, baseURL);
+      if (palette.fileError)
+      {
+         System.err.println(message);
+         System.exit(1);
+      }
+      for (n = 0; (n < Music.MAX_SOUND_COLOR) && (palette.soundURLs[n] != null); n++) {}
+
+      // Mixing cost.
+      mixer = new SoundMixer();
+      if ((message = mixer.load(palette)) != null)
+      {
+         System.err.println(message);
+         System.exit(1);
+      }
+      mixer.setPolyphony(SoundMixer.MAX_VOICES, SoundMixer.STEAL_OLDEST);
+      out      = new byte[SoundMixer.PERIOD_FRAMES * 2];
+      periodMs = SoundMixer.PERIOD_FRAMES * 1000.0 / SoundMixer.SAMPLE_RATE;
+      System.out.println("voices  mix us/period  period us  load");
+      for (i = 0; i < VOICE_COUNTS.length; i++)
+      {
+         t = 0L;
+         for (j = 0; j < 2; j++)
+         {
+            // Warm up, then measure, keeping the voices playing.
+            t = System.nanoTime();
+            for (k = 0; k < MIX_PERIODS; k++)
+            {
+               while (mixer.numVoices < VOICE_COUNTS[i])
+               {
+                  mixer.trigger(Music.sound(mixer.numVoices % n));
+                  mixer.startTriggered();
+               }
+               mixer.mix(out, 0, SoundMixer.PERIOD_FRAMES);
+            }
+            t = System.nanoTime() - t;
+         }
+         mixMs = t / 1.0e6 / MIX_PERIODS;
+         System.out.printf("%6d  %13.2f  %9.1f  %3.1f%%%n", VOICE_COUNTS[i], mixMs * 1000.0,
+                           periodMs * 1000.0, mixMs * 100.0 / periodMs);
+      }
+
+      // Collision storm.
+      System.out.println();
+      System.out.println("policy     voices  mix us/period  stolen/period  dropped/period");
+      for (i = 0; i < SoundMixer.STEAL_POLICY_NAMES.length; i++)
+      {
+         mixer = new SoundMixer();
+         mixer.load(palette);
+         mixer.setPolyphony(SoundMixer.DEFAULT_VOICES, i);
+         t = 0L;
+         for (j = 0; j < 2; j++)
+         {
+            // Warm up, then measure.
+            mixer.stolenVoices = mixer.droppedVoices = 0L;
+            t = System.nanoTime();
+            for (k = 0; k < STORM_PERIODS; k++)
+            {
+               mixer.trigger((1L << n) - 1L);
+               mixer.startTriggered();
+               mixer.mix(out, 0, SoundMixer.PERIOD_FRAMES);
+            }
+            t = System.nanoTime() - t;
+         }
+         System.out.printf("%-9s  %6d  %13.2f  %13.2f  %14.2f%n", SoundMixer.STEAL_POLICY_NAMES[i],
+                           SoundMixer.DEFAULT_VOICES, t / 1.0e3 / STORM_PERIODS,
+                           (double)mixer.stolenVoices / STORM_PERIODS,
+                           (double)mixer.droppedVoices / STORM_PERIODS);
+      }
+
+      // Latency.
+      random = new Random(SEED);
+      System.out.println();
+      for (i = 0; i < BUFFER_MILLIS.length; i++)
+      {
+         mixer = SoundMixer.open(BUFFER_MILLIS[i]);
+         if (mixer == null)
+         {
+            System.err.println("No audio line available to measure latency");
+            System.exit(1);
+         }
+         mixer.load(palette);
+         try
+         {
+            for (j = 0; j < NUM_TRIGGERS; j++)
+            {
+               Thread.sleep(1 + random.nextInt(MAX_INTERVAL_MS));
+               mixer.trigger(Music.sound(random.nextInt(n)));
+            }
+            Thread.sleep(MAX_INTERVAL_MS);
+         }
+         catch (InterruptedException e) {}
+         mixer.close();
+         System.out.println(BUFFER_MILLIS[i] + " ms buffer: " + mixer.statistics());
+      }
+   }
+}
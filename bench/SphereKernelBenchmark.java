@@ -0,0 +1,126 @@
+/*
+ *
+ * Music of the Spheres sphere kernel benchmark.
+ *
+ * Description:
+ *
+ * Compares the scalar sphere kernel with the fastest one available (the
+ * vector kernel, when bench.sh finds the Vector API module): sphere wall
+ * checks alone, and whole beats of Music.step().  Both kernels
+ * are checked to give the same wall bounces and leave the spheres the
+ * same.
+ *
+ * Usage:
+ *
+ * bench.sh SphereKernelBenchmark [<beats>]
+ *
+ */
+
+import java.util.*;
+
+// Sphere kernel benchmark.
+public class SphereKernelBenchmark
+{
+   // Parameters.
+   static final int[] SPHERE_COUNTS = { 100, 1000, 10000 };
+   static final int   NUM_STRINGS   = 10;
+   static final int   DEFAULT_BEATS = 1000;
+   static final long  WALL_CHECKS   = 200000000L; // Sphere wall checks per measure.
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int          beats, i, n;
+      Music        scalarMusic, fastMusic;
+      SphereKernel scalar, fast;
+      double       scalarWalls, fastWalls, scalarStep, fastStep;
+
+      beats = DEFAULT_BEATS;
+      if (args.length == 1)
+      {
+         beats = Integer.parseInt(args[0]);
+      }
+      else if (args.length != 0)
+      {
+         System.err.println("Usage: bench.sh SphereKernelBenchmark [<beats>]");
+         System.exit(1);
+      }
+
+      scalar = new SphereKernel();
+      fast   = SphereKernel.DEFAULT;
+      System.out.println("kernel: " + fast.name());
+
+
+      System.out.println("spheres  scalar Mchecks/s  fast Mchecks/s  speedup" +
+                         "  scalar beats/s  fast beats/s  speedup");
+      for (i = 0; i < SPHERE_COUNTS.length; i++)
+      {
+         n                  = SPHERE_COUNTS[i];
+         scalarMusic        = BenchScenes.scene(n, NUM_STRINGS);
+         fastMusic          = BenchScenes.scene(n, NUM_STRINGS);
+         scalarMusic.kernel = scalar;
+         fastMusic.kernel   = fast;
+
+         // Warm up, then measure.
+         runWalls(scalarMusic);
+         runWalls(fastMusic);
+         runStep(scalarMusic, beats);
+         runStep(fastMusic, beats);
+         runStep(scalarMusic, beats);
+         runStep(fastMusic, beats);
+         scalarWalls = runWalls(scalarMusic);
+         fastWalls   = runWalls(fastMusic);
+         scalarStep  = runStep(scalarMusic, beats);
+         fastStep    = runStep(fastMusic, beats);
+         if (!Arrays.equals(scalarMusic.wallBounces, fastMusic.wallBounces) ||
+             !Arrays.equals(scalarMusic.spheres.x, fastMusic.spheres.x) ||
+             !Arrays.equals(scalarMusic.spheres.y, fastMusic.spheres.y) ||
+             !Arrays.equals(scalarMusic.spheres.dx, fastMusic.spheres.dx) ||
+             !Arrays.equals(scalarMusic.spheres.dy, fastMusic.spheres.dy))
+         {
+            System.err.println("Kernels differ at " + n + " spheres");
+            System.exit(1);
+         }
+         System.out.printf("%7d  %17.1f  %15.1f  %6.2fx  %14.1f  %12.1f  %6.2fx%n", n,
+                           scalarWalls, fastWalls, fastWalls / scalarWalls,
+                           scalarStep, fastStep, fastStep / scalarStep);
+      }
+   }
+
+
+   // Run wall checks alone, returning millions of sphere checks per second.
+   static double runWalls(Music music)
+   {
+      int  n;
+      long i, calls, t;
+
+      n = music.spheres.count;
+      if (music.wallBounces.length < n)
+      {
+         music.wallBounces = new long[n];
+      }
+      calls = WALL_CHECKS / n;
+      t     = System.nanoTime();
+      for (i = 0; i < calls; i++)
+      {
+         music.kernel.wallBounces(music.spheres, 0, n, music.size.width, music.size.height,
+                                  music.wallBounces);
+      }
+      return((double)(calls * n) * 1.0e3 / (double)(System.nanoTime() - t));
+   }
+
+
+   // Run whole beats, returning beats per second.
+   static double runStep(Music music, int beats)
+   {
+      int  i;
+      long t;
+
+      t = System.nanoTime();
+      for (i = 0; i < beats; i++)
+      {
+         music.step();
+      }
+      return((double)beats * 1.0e9 / (double)(System.nanoTime() - t));
+   }
+}
@@ -0,0 +1,322 @@
+/*
+ *
+ * Music of the Spheres sphere store benchmark.
+ *
+ * Description:
+ *
+ * Compares beats per second of Music.movement() over the SphereStore
+ * struct-of-arrays layout against the same collision logic run over an
+ * array of sphere objects, as the engine was before the store existed.
+ *
+ * Usage:
+ *
+ * bench.sh SphereStoreBenchmark [<beats>]
+ *
+ */
+
+// Sphere store benchmark.
+public class SphereStoreBenchmark
+{
+   // Parameters.
+   static final int[] SPHERE_COUNTS = { 50, 1000, 10000 };
+   static final int   NUM_STRINGS   = 10;
+   static final int   DEFAULT_BEATS = 2000;
+
+   // Sphere object, as in the object layout.
+   static class ObjectSphere
+   {
+      int    radius;
+      int    x, y;
+      double dx, dy;
+      double ndx, ndy;
+      int    paletteIndex;
+   }
+
+   // Music movement over sphere objects.
+   static class ObjectMusic
+   {
+      Music          music;
+      ObjectSphere[] spheres;
+      int[]          gridX, gridY;
+      SphereGrid     grid = new SphereGrid();
+      boolean[]      playSounds = new boolean[Music.MAX_SOUND_COLOR];
+
+      ObjectMusic(Music music)
+      {
+         int i, n;
+
+         this.music = music;
+         n          = music.spheres.count;
+         spheres    = new ObjectSphere[n];
+         gridX      = new int[n];
+         gridY      = new int[n];
+         for (i = 0; i < n; i++)
+         {
+            spheres[i]              = new ObjectSphere();
+            spheres[i].radius       = music.spheres.radius[i];
+            spheres[i].x            = music.spheres.x[i];
+            spheres[i].y            = music.spheres.y[i];
+            spheres[i].dx           = music.spheres.dx[i];
+            spheres[i].dy           = music.spheres.dy[i];
+            spheres[i].paletteIndex = music.spheres.paletteIndex[i];
+         }
+      }
+
+
+      void movement()
+      {
+         int          i, j, k, m, n, x, y, r;
+         double       dx, dy;
+         boolean      b;
+         StringSprite s;
+
+         for (i = 0; i < Music.MAX_SOUND_COLOR; i++)
+         {
+            playSounds[i] = false;
+         }
+         n = spheres.length;
+         for (i = 0; i < n; i++)
+         {
+            spheres[i].ndx = spheres[i].dx;
+            spheres[i].ndy = spheres[i].dy;
+            gridX[i]       = spheres[i].x;
+            gridY[i]       = spheres[i].y;
+         }
+         grid.build(gridX, gridY, n);
+         for (i = 0; i < n; i++)
+         {
+            x  = spheres[i].x;
+            y  = spheres[i].y;
+            dx = spheres[i].dx;
+            dy = spheres[i].dy;
+            r  = spheres[i].radius;
+            b  = false;
+            if (((x >= (music.size.width - r)) && (dx > 0.0)) ||
+                ((x <= r) && (dx < 0.0)))
+            {
+               spheres[i].ndx = -dx;
+               b = true;
+            }
+            if (((y >= (music.size.height - r)) && (dy > 0.0)) ||
+                ((y <= r) && (dy < 0.0)))
+            {
+               spheres[i].ndy = -dy;
+               b = true;
+            }
+            if (b && (spheres[i].paletteIndex != -1))
+            {
+               playSounds[spheres[i].paletteIndex] = true;
+            }
+            for (j = 0; j < music.numStrings; j++)
+            {
+               s = music.strings[j];
+               b = false;
+               if (s.x1 == s.x2)
+               {
+                  if (bouncesOnString(i, s.x1, s.y1, s.x2, s.y2))
+                  {
+                     spheres[i].ndx = -dx;
+                     b = true;
+                  }
+                  if ((dy > 0.0) && bouncesOnString(i, s.x1 - 2, s.y1, s.x1 + 2, s.y1))
+                  {
+                     spheres[i].ndy = -dy;
+                     b = true;
+                  }
+                  if ((dy < 0.0) && bouncesOnString(i, s.x2 - 2, s.y2, s.x2 + 2, s.y2))
+                  {
+                     spheres[i].ndy = -dy;
+                     b = true;
+                  }
+               }
+               else
+               {
+                  if (bouncesOnString(i, s.x1, s.y1, s.x2, s.y2))
+                  {
+                     spheres[i].ndy = -dy;
+                     b = true;
+                  }
+                  if ((dx > 0.0) && bouncesOnString(i, s.x1, s.y1 - 2, s.x1, s.y1 + 2))
+                  {
+                     spheres[i].ndx = -dx;
+                     b = true;
+                  }
+                  if ((dx < 0.0) && bouncesOnString(i, s.x2, s.y2 - 2, s.x2, s.y2 + 2))
+                  {
+                     spheres[i].ndx = -dx;
+                     b = true;
+                  }
+               }
+               if (b)
+               {
+                  if (spheres[i].paletteIndex != -1)
+                  {
+                     playSounds[spheres[i].paletteIndex] = true;
+                  }
+                  if (s.paletteIndex != -1)
+                  {
+                     playSounds[s.paletteIndex] = true;
+                  }
+               }
+            }
+            for (k = 0, m = grid.query(i, x, y); k < m; k++)
+            {
+               bounceSpheres(i, grid.candidates[k]);
+            }
+         }
+         for (i = 0; i < n; i++)
+         {
+            spheres[i].dx = spheres[i].ndx;
+            spheres[i].dy = spheres[i].ndy;
+            spheres[i].x += spheres[i].dx;
+            spheres[i].y += spheres[i].dy;
+         }
+      }
+
+
+      void bounceSpheres(int i, int j)
+      {
+         int    x, y, r;
+         double dx, dy, xd, yd, d1, d2;
+
+         x  = spheres[i].x;
+         y  = spheres[i].y;
+         dx = spheres[i].dx;
+         dy = spheres[i].dy;
+         r  = spheres[i].radius;
+         d1 = (double)(r + spheres[j].radius);
+         xd = (double)(x - spheres[j].x);
+         if (Math.abs(xd) > d1) { return; }
+         yd = (double)(y - spheres[j].y);
+         if (Math.abs(yd) > d1) { return; }
+         d2 = Math.sqrt((xd * xd) + (yd * yd));
+         if (d2 <= d1)
+         {
+            xd = (x + dx) - (spheres[j].x + spheres[j].dx);
+            yd = (y + dy) - (spheres[j].y + spheres[j].dy);
+            d1 = (int)Math.sqrt((double)((xd * xd) + (yd * yd)));
+            if (d1 < d2)
+            {
+               spheres[i].ndx = spheres[j].dx;
+               spheres[i].ndy = spheres[j].dy;
+               spheres[j].ndx = dx;
+               spheres[j].ndy = dy;
+               if (spheres[i].paletteIndex != -1)
+               {
+                  playSounds[spheres[i].paletteIndex] = true;
+               }
+               if (spheres[j].paletteIndex != -1)
+               {
+                  playSounds[spheres[j].paletteIndex] = true;
+               }
+            }
+         }
+      }
+
+
+      boolean bouncesOnString(int i, int x1, int y1, int x2, int y2)
+      {
+         int    x, y, r;
+         double dx, dy;
+
+         x  = spheres[i].x;
+         dx = spheres[i].dx;
+         y  = spheres[i].y;
+         dy = spheres[i].dy;
+         r  = spheres[i].radius;
+         if (x1 == x2)
+         {
+            if (((x <= x1) && (x >= (x1 - r)) && (dx >= 0.0)) ||
+                ((x >= x1) && (x <= (x1 + r)) && (dx <= 0.0)))
+            {
+               if ((y >= (y1 - r)) && (y <= (y2 + r)))
+               {
+                  if ((y >= y1) && (y <= y2)) { return(true); }
+                  if (y < y1) { return(music.pointDist(x, y, x1, y1) <= (double)r); }
+                  return(music.pointDist(x, y, x2, y2) <= (double)r);
+               }
+            }
+         }
+         else
+         {
+            if (((y <= y1) && (y >= (y1 - r)) && (dy >= 0.0)) ||
+                ((y >= y1) && (y <= (y1 + r)) && (dy <= 0.0)))
+            {
+               if ((x >= (x1 - r)) && (x <= (x2 + r)))
+               {
+                  if ((x >= x1) && (x <= x2)) { return(true); }
+                  if (x < x1) { return(music.pointDist(x, y, x1, y1) <= (double)r); }
+                  return(music.pointDist(x, y, x2, y2) <= (double)r);
+               }
+            }
+         }
+         return(false);
+      }
+   }
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int         beats, i, n;
+      Music       music;
+      ObjectMusic objectMusic;
+      double      storeRate, objectRate;
+
+      beats = DEFAULT_BEATS;
+      if (args.length == 1)
+      {
+         beats = Integer.parseInt(args[0]);
+      }
+      else if (args.length != 0)
+      {
+         System.err.println("Usage: bench.sh SphereStoreBenchmark [<beats>]");
+         System.exit(1);
+      }
+
+      System.out.println("spheres  store beats/s  object beats/s  speedup");
+      for (i = 0; i < SPHERE_COUNTS.length; i++)
+      {
+         n           = SPHERE_COUNTS[i];
+         music       = BenchScenes.scene(n, NUM_STRINGS);
+         objectMusic = new ObjectMusic(BenchScenes.scene(n, NUM_STRINGS));
+
+         // Warm up both layouts, then measure.
+         runStore(music, beats);
+         runObjects(objectMusic, beats);
+         storeRate  = runStore(music, beats);
+         objectRate = runObjects(objectMusic, beats);
+         System.out.printf("%7d  %14.1f  %14.1f  %6.2fx%n", n, storeRate, objectRate,
+                           storeRate / objectRate);
+      }
+   }
+
+
+   // Run store layout, returning beats per second.
+   static double runStore(Music music, int beats)
+   {
+      int  i;
+      long t;
+
+      t = System.nanoTime();
+      for (i = 0; i < beats; i++)
+      {
+         music.movement();
+      }
+      return((double)beats * 1.0e9 / (double)(System.nanoTime() - t));
+   }
+
+
+   // Run object layout, returning beats per second.
+   static double runObjects(ObjectMusic music, int beats)
+   {
+      int  i;
+      long t;
+
+      t = System.nanoTime();
+      for (i = 0; i < beats; i++)
+      {
+         music.movement();
+      }
+      return((double)beats * 1.0e9 / (double)(System.nanoTime() - t));
+   }
+}
@@ -1,4 +1,5 @@
 javac -d . src/*.java
+javac --add-modules jdk.incubator.vector -cp . -d . src/vector/*.java || echo "Vector kernel not built"
 jar cfm Composer.jar composer.mf *.class
 jar cfm Player.jar player.mf *.class
 rm *.class
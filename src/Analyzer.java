@@ -0,0 +1,427 @@
+/*
+ *
+ * Music of the Spheres analyzer.
+ *
+ * Description:
+ *
+ * Headless batch runner: loads compositions, plays each for a number of
+ * beats without sound or display, and reports statistics per composition:
+ *
+ * beats:        beats played (fewer than asked if the composition ends).
+ * collisions:   wall and string bounces plus sphere collisions, in total
+ *               and per beat.
+ * settle beat:  the beat after the last collision, if no collision
+ *               follows in the last SETTLE_BEATS beats played; else -1,
+ *               meaning the motion has not settled.
+ * sim time:     milliseconds spent playing.
+ * triggers:     beats on which each palette index sounded.
+ *
+ * Compositions run in parallel, each in its own Music.  Directories are
+ * expanded to the .dat files in them.  By default quiet beats are skipped
+ * by the event engine, with the same results as stepping every beat.
+ *
+ */
+
+import java.awt.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Music analyzer.
+public class Analyzer
+{
+   // Parameters.
+   static final int DEFAULT_BEATS = 10000;
+   static final int SETTLE_BEATS  = 500;
+
+   // Composition statistics.
+   static class Result
+   {
+      String musicName;
+      String error;
+      int    beats;
+      long   collisions;
+      int    settleBeat = -1;
+      double simMillis;
+      long[] triggers = new long[Music.MAX_SOUND_COLOR];
+   }
+
+   // Analyze a composition.
+   static Result analyze(String musicName, int beats, boolean events, boolean fixedPoint,
+                         URL baseURL)
+   {
+      int    i, lastCollision;
+      long   t;
+      Music  music;
+      Result result;
+
+      result           = new Result();
+      result.musicName = musicName;
+      music            = new Music(new Dimension(0, 0));
+      music.mute       = true;
+      music.fixedPoint = fixedPoint;
+      result.error     = music.load(musicName, baseURL);
+      if (music.fileError || music.name.equals(""))
+      {
+         return(result);
+      }
+      result.error = null;
+
+      // Play.
+      lastCollision = 0;
+      t             = System.nanoTime();
+      if (events && (music.spheres.count <= EventEngine.MAX_SPHERES))
+      {
+         music.events.clearStatistics();
+         music.events.advance(beats);
+         result.collisions = music.events.collisions;
+         lastCollision     = music.events.lastCollisionBeat;
+         for (i = 0; i < Music.MAX_SOUND_COLOR; i++)
+         {
+            result.triggers[i] = music.events.triggers[i];
+         }
+      }
+      while ((music.beat < beats) && music.step())
+      {
+         result.collisions += music.collisions;
+         if (music.collisions > 0)
+         {
+            lastCollision = music.beat;
+         }
+         for (i = 0; i < Music.MAX_SOUND_COLOR; i++)
+         {
+            if (((music.playSounds >>> i) & 1L) != 0L)
+            {
+               result.triggers[i]++;
+            }
+         }
+      }
+      result.simMillis = (double)(System.nanoTime() - t) / 1.0e6;
+      result.beats     = music.beat;
+      if ((result.beats - lastCollision) >= Math.min(SETTLE_BEATS, result.beats))
+      {
+         result.settleBeat = (lastCollision == 0 ? 0 : lastCollision + 1);
+      }
+      else
+      {
+         result.settleBeat = -1;
+      }
+      return(result);
+   }
+
+
+   // Expand directories to their .dat files.
+   static void addMusic(String name, ArrayList<String> musicNames)
+   {
+      int      i;
+      File     f;
+      String[] list;
+
+      f = new File(name);
+      if (!f.isDirectory())
+      {
+         musicNames.add(name);
+         return;
+      }
+      list = f.list();
+      if (list == null) { return; }
+      Arrays.sort(list);
+      for (i = 0; i < list.length; i++)
+      {
+         if (list[i].endsWith(".dat"))
+         {
+            musicNames.add(new File(f, list[i]).getPath());
+         }
+      }
+   }
+
+
+   // Write results as CSV.
+   static void writeCSV(ArrayList<Result> results, PrintWriter out)
+   {
+      int    i;
+      Result r;
+
+      out.print("music,beats,collisions,collisions_per_beat,settle_beat,sim_ms");
+      for (i = 0; i < Music.MAX_SOUND_COLOR; i++)
+      {
+         out.print(",triggers_" + i);
+      }
+      out.println(",error");
+      for (Iterator<Result> it = results.iterator(); it.hasNext(); )
+      {
+         r = it.next();
+         out.print(csvField(r.musicName) + "," + r.beats + "," + r.collisions + "," +
+                   perBeat(r) + "," + r.settleBeat + "," +
+                   String.format(Locale.ROOT, "%.3f", r.simMillis));
+         for (i = 0; i < Music.MAX_SOUND_COLOR; i++)
+         {
+            out.print("," + r.triggers[i]);
+         }
+         out.println("," + (r.error != null ? csvField(r.error) : ""));
+      }
+   }
+
+
+   // Write results as JSON.
+   static void writeJSON(ArrayList<Result> results, PrintWriter out)
+   {
+      int    i;
+      Result r;
+
+      out.println("[");
+      for (Iterator<Result> it = results.iterator(); it.hasNext(); )
+      {
+         r = it.next();
+         out.print("  {\"music\": " + jsonString(r.musicName));
+         if (r.error != null)
+         {
+            out.print(", \"error\": " + jsonString(r.error));
+         }
+         else
+         {
+            out.print(", \"beats\": " + r.beats + ", \"collisions\": " + r.collisions +
+                      ", \"collisionsPerBeat\": " + perBeat(r) +
+                      ", \"settleBeat\": " + r.settleBeat +
+                      ", \"simMillis\": " + String.format(Locale.ROOT, "%.3f", r.simMillis) +
+                      ", \"triggers\": [");
+            for (i = 0; i < Music.MAX_SOUND_COLOR; i++)
+            {
+               out.print((i > 0 ? ", " : "") + r.triggers[i]);
+            }
+            out.print("]");
+         }
+         out.println("}" + (it.hasNext() ? "," : ""));
+      }
+      out.println("]");
+   }
+
+
+   // Collisions per beat.
+   static String perBeat(Result r)
+   {
+      return(String.format(Locale.ROOT, "%.4f",
+                           r.beats > 0 ? (double)r.collisions / (double)r.beats : 0.0));
+   }
+
+
+   // Quote a CSV field if needed.
+   static String csvField(String s)
+   {
+      if ((s.indexOf(',') == -1) && (s.indexOf('"') == -1)) { return(s); }
+      return("\"" + s.replace("\"", "\"\"") + "\"");
+   }
+
+
+   // Quote a JSON string.
+   static String jsonString(String s)
+   {
+      int          i;
+      char         c;
+      StringBuffer sb;
+
+      sb = new StringBuffer("\"");
+      for (i = 0; i < s.length(); i++)
+      {
+         c = s.charAt(i);
+         if ((c == '"') || (c == '\\'))
+         {
+            sb.append('\\').append(c);
+         }
+         else if (c < ' ')
+         {
+            sb.append(String.format("\\u%04x", (int)c));
+         }
+         else
+         {
+            sb.append(c);
+         }
+      }
+      return(sb.append('"').toString());
+   }
+
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java Analyzer\n" +
+      "        [-beats <beats to play> (default=" + DEFAULT_BEATS + ")]\n" +
+      "        [-engine event | step | fixed (default=event)]\n" +
+      "        [-format csv | json (default=csv)]\n" +
+      "        [-output <file name> (default=standard output)]\n" +
+      "        [-threads <threads> (default=number of processors)]\n" +
+      "        <music file or directory> ...";
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int                       i, beats, threads;
+      boolean                   events, fixedPoint;
+      String                    format, output;
+      ArrayList<String>         musicNames;
+      ArrayList<Future<Result>> futures;
+      ArrayList<Result>         results;
+      ExecutorService           executor;
+      URL                       baseURL;
+      PrintWriter               out;
+
+      System.setProperty("java.awt.headless", "true");
+
+      // Get options.
+      beats      = DEFAULT_BEATS;
+      events     = true;
+      fixedPoint = false;
+      format     = "csv";
+      output     = null;
+      threads    = Runtime.getRuntime().availableProcessors();
+      musicNames = new ArrayList<String>();
+      try
+      {
+         for (i = 0; i < args.length; i++)
+         {
+            if (args[i].equals("-beats"))
+            {
+               beats = Integer.parseInt(args[++i]);
+               if (beats < 0) { throw(new IllegalArgumentException()); }
+               continue;
+            }
+            if (args[i].equals("-engine"))
+            {
+               i++;
+               if (args[i].equals("event"))
+               {
+                  events = true;
+               }
+               else if (args[i].equals("step"))
+               {
+                  events = false;
+               }
+               else if (args[i].equals("fixed"))
+               {
+                  events     = false;
+                  fixedPoint = true;
+               }
+               else
+               {
+                  throw(new IllegalArgumentException());
+               }
+               continue;
+            }
+            if (args[i].equals("-format"))
+            {
+               format = args[++i];
+               if (!format.equals("csv") && !format.equals("json"))
+               {
+                  throw(new IllegalArgumentException());
+               }
+               continue;
+            }
+            if (args[i].equals("-output"))
+            {
+               output = args[++i];
+               continue;
+            }
+            if (args[i].equals("-threads"))
+            {
+               threads = Integer.parseInt(args[++i]);
+               if (threads <= 0) { throw(new IllegalArgumentException()); }
+               continue;
+            }
+            if (args[i].equals("-help"))
+            {
+               System.out.println(Usage);
+               System.exit(0);
+            }
+            if (args[i].startsWith("-"))
+            {
+               throw(new IllegalArgumentException());
+            }
+            addMusic(args[i], musicNames);
+         }
+      }
+      catch (RuntimeException e) {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (musicNames.size() == 0)
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Get base URL.
+      baseURL = null;
+      try
+      {
+         baseURL = new File(System.getProperty("user.dir")).toURI().toURL();
+      }
+      catch (MalformedURLException e) {
+         System.err.println("Cannot get URL of current directory");
+         System.exit(1);
+      }
+
+      // Analyze compositions in parallel; results keep the given order.
+      executor = Executors.newFixedThreadPool(threads);
+      futures  = new ArrayList<Future<Result>>();
+      for (i = 0; i < musicNames.size(); i++)
+      {
+         final String  musicName = musicNames.get(i);
+         final int     b         = beats;
+         final boolean e         = events;
+         final boolean f         = fixedPoint;
+         final URL     u         = baseURL;
+         futures.add(executor.submit(new Callable<Result>()
+                                     {
+                                        public Result call() { return(analyze(musicName, b, e, f, u)); }
+                                     }
+                                     ));
+      }
+      results = new ArrayList<Result>();
+      try
+      {
+         for (i = 0; i < futures.size(); i++)
+         {
+            results.add(futures.get(i).get());
+         }
+      }
+      catch (Exception e) {
+         System.err.println("Analysis failed: " + e);
+         System.exit(1);
+      }
+      executor.shutdown();
+
+      // Report.
+      try
+      {
+         if (output != null)
+         {
+            out = new PrintWriter(new BufferedWriter(new FileWriter(output)));
+         }
+         else
+         {
+            out = new PrintWriter(new OutputStreamWriter(System.out));
+         }
+         if (format.equals("json"))
+         {
+            writeJSON(results, out);
+         }
+         else
+         {
+            writeCSV(results, out);
+         }
+         out.close();
+      }
+      catch (IOException e) {
+         System.err.println("Cannot write " + output);
+         System.exit(1);
+      }
+      for (i = 0; i < results.size(); i++)
+      {
+         if (results.get(i).error != null)
+         {
+            System.err.println(results.get(i).error);
+         }
+      }
+   }
+}
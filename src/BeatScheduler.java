@@ -0,0 +1,186 @@
+/*
+ *
+ * Music of the Spheres beat scheduler.
+ *
+ * Description:
+ *
+ * Keeps the beat at an exact rate using System.nanoTime.  The time of
+ * beat k is the start time plus k beat periods, rounded to the
+ * nanosecond, so rounding does not accumulate into tempo drift, and a
+ * slow frame does not slow the tempo: the update loop asks how many
+ * beats are due, plays them all, and renders once.  Under load frames
+ * are skipped, not beats.  If the loop falls more than a second behind
+ * (e.g. the machine was suspended) the schedule restarts rather than
+ * racing through the backlog.
+ *
+ */
+
+// Beat scheduler class.
+public class BeatScheduler
+{
+   // Parameters.
+   static final double DEFAULT_BEATS_PER_SECOND = 20.0;
+   static final double MIN_BEATS_PER_SECOND     = 0.1;
+   static final double MAX_BEATS_PER_SECOND     = 1000.0;
+   static final long   NANOS_PER_SECOND         = 1000000000L;
+   static final long   STATUS_NANOS             = NANOS_PER_SECOND; // Shortest time between late statuses.
+
+   // Tempo.
+   double beatsPerSecond;
+   long   beatNanos;      // Beat period, truncated.
+
+   // Start time, and the next beat since the start and its time.
+   long startTime;
+   long nextBeat;
+   long nextBeatTime;
+
+   // Statistics.
+   long beats;        // Beats scheduled.
+   long overruns;     // Frames skipped to catch up with the beat.
+   long lostBeats;    // Beats dropped when too far behind to catch up.
+
+   // Statistics last shown as late, and when.
+   long shownOverruns;
+   long shownLostBeats;
+   long shownTime;
+
+   // Constructor.
+   public BeatScheduler(double beatsPerSecond)
+   {
+      setBeatsPerSecond(beatsPerSecond);
+   }
+
+
+   // Set tempo, restarting the schedule.  A tempo that is not a number is
+   // the default, as the clamps cannot compare it.
+   public void setBeatsPerSecond(double beatsPerSecond)
+   {
+      if (Double.isNaN(beatsPerSecond))
+      {
+         beatsPerSecond = DEFAULT_BEATS_PER_SECOND;
+      }
+      if (beatsPerSecond < MIN_BEATS_PER_SECOND)
+      {
+         beatsPerSecond = MIN_BEATS_PER_SECOND;
+      }
+      if (beatsPerSecond > MAX_BEATS_PER_SECOND)
+      {
+         beatsPerSecond = MAX_BEATS_PER_SECOND;
+      }
+      this.beatsPerSecond = beatsPerSecond;
+      beatNanos           = (long)((double)NANOS_PER_SECOND / beatsPerSecond);
+      start();
+   }
+
+
+   // Start the schedule with the first beat due a period from now.
+   public void start()
+   {
+      startTime    = System.nanoTime();
+      nextBeat     = 1L;
+      nextBeatTime = beatTime(nextBeat);
+   }
+
+
+   // Time of beat k since the start.
+   long beatTime(long k)
+   {
+      return(startTime + Math.round(((double)k * (double)NANOS_PER_SECOND) / beatsPerSecond));
+   }
+
+
+   // Number of beats due now.  The schedule advances past them.
+   public int beatsDue()
+   {
+      long now, behind, maxBehind, k;
+      int  n;
+
+      now = System.nanoTime();
+      if (now < nextBeatTime) { return(0); }
+      behind    = now - nextBeatTime;
+      maxBehind = NANOS_PER_SECOND;
+      if (behind > maxBehind)
+      {
+         n            = (int)(maxBehind / beatNanos) + 1;
+         lostBeats   += (behind / beatNanos) + 1 - n;
+         startTime    = now;
+         nextBeat     = 1L;
+         nextBeatTime = beatTime(nextBeat);
+      }
+      else
+      {
+         // Last beat due, corrected for rounding.
+         k = nextBeat + (long)(((double)behind * beatsPerSecond) / (double)NANOS_PER_SECOND);
+         while (beatTime(k + 1L) <= now) { k++; }
+         while ((k > nextBeat) && (beatTime(k) > now)) { k--; }
+         n            = (int)(k - nextBeat + 1L);
+         nextBeat     = k + 1L;
+         nextBeatTime = beatTime(nextBeat);
+      }
+      beats    += n;
+      overruns += n - 1;
+      return(n);
+   }
+
+
+   // Nanoseconds until the next beat is due.
+   public long nanosUntilNextBeat()
+   {
+      return(Math.max(0L, nextBeatTime - System.nanoTime()));
+   }
+
+
+   // Sleep until the next beat is due.
+   public void sleepUntilNextBeat() throws InterruptedException
+   {
+      long t;
+
+      t = nanosUntilNextBeat();
+      if (t > 0)
+      {
+         Thread.sleep(t / 1000000L, (int)(t % 1000000L));
+      }
+   }
+
+
+   // Statistics.
+   public long getBeats()
+   {
+      return(beats);
+   }
+
+
+   public long getOverruns()
+   {
+      return(overruns);
+   }
+
+
+   public long getLostBeats()
+   {
+      return(lostBeats);
+   }
+
+
+   public String statistics()
+   {
+      return(String.format("Beats: %d played, %d played late to catch up, %d lost",
+                           beats, overruns, lostBeats));
+   }
+
+
+   // Statistics to show if beats were played late or lost since they
+   // were last shown, at most every STATUS_NANOS, else null.
+   public String lateStatistics()
+   {
+      long now;
+
+      if ((overruns == shownOverruns) && (lostBeats == shownLostBeats)) { return(null); }
+      now = System.nanoTime();
+      if ((shownTime != 0L) && ((now - shownTime) < STATUS_NANOS)) { return(null); }
+      shownOverruns  = overruns;
+      shownLostBeats = lostBeats;
+      shownTime      = now;
+      return(statistics());
+   }
+}
@@ -0,0 +1,22 @@
+/*
+ *
+ * Music of the Spheres collision consumer.
+ *
+ * Description:
+ *
+ * Reader of a collision event stream.  Events are given in order, in
+ * batches of sequence numbers that may stop short of the end of a beat;
+ * endBeat() follows the last batch of each beat.  A consumer must not keep
+ * sequence numbers after consume() returns, as the ring is then reused.
+ *
+ */
+
+// Collision consumer interface.
+public interface CollisionConsumer
+{
+   // Consume events from..to-1 of a stream.
+   void consume(CollisionEvents events, long from, long to);
+
+   // The events of a beat have all been consumed.
+   void endBeat(int beat);
+}
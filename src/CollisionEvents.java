@@ -0,0 +1,255 @@
+/*
+ *
+ * Music of the Spheres collision events.
+ *
+ * Description:
+ *
+ * A stream of the collisions of each beat: which sphere hit a wall, the
+ * body or an end cap of a string, or another sphere, with the palette
+ * indexes sounded.  Events are primitive records in parallel arrays used
+ * as a ring buffer, addressed by sequence number, so adding one does not
+ * allocate.  Consumers are given the events added when the ring is full
+ * and at the end of each beat, and then told the beat has ended; the
+ * music's bounce sounds are one such consumer.  Without consumers, events
+ * are kept until flushed, growing the ring as needed, so that a stream can
+ * collect events to be appended to another (parallel steps do this).
+ * The order of events within a beat is not specified.
+ *
+ */
+
+import java.util.*;
+
+// Collision events class.
+public class CollisionEvents
+{
+   // Event kinds.
+   public static final int WALL       = 0; // Sphere on a wall.
+   public static final int STRING     = 1; // Sphere on the body of a string.
+   public static final int STRING_END = 2; // Sphere on an end cap of a string.
+   public static final int SPHERE     = 3; // Two spheres.
+
+   // Parameters.
+   static final int DEFAULT_CAPACITY = 1024;
+
+   // Event records.
+   int[]  beats;
+   byte[] kinds;
+   int[]  first;         // Sphere.
+   int[]  second;        // Other sphere, string, or -1 for a wall.
+   int[]  firstPalette;  // Palette indexes, or -1.
+   int[]  secondPalette;
+   int    mask;          // Capacity - 1.
+   long   head;          // Sequence number of the next event added.
+   long   tail;          // Sequence number of the next event to consume.
+
+   // Beat of the events being added.
+   int beat;
+
+   // Consumers.
+   CollisionConsumer[] consumers    = new CollisionConsumer[0];
+   int                 numConsumers = 0;
+
+   // Constructor: capacity is rounded up to a power of two.
+   public CollisionEvents(int capacity)
+   {
+      int c;
+
+      for (c = 1; c < capacity; c *= 2) {}
+      beats         = new int[c];
+      kinds         = new byte[c];
+      first         = new int[c];
+      second        = new int[c];
+      firstPalette  = new int[c];
+      secondPalette = new int[c];
+      mask          = c - 1;
+      head          = tail = 0L;
+      beat          = 0;
+   }
+
+
+   // Add consumer.
+   public void addConsumer(CollisionConsumer consumer)
+   {
+      if (numConsumers == consumers.length)
+      {
+         consumers = Arrays.copyOf(consumers, Math.max(numConsumers * 2, 4));
+      }
+      consumers[numConsumers++] = consumer;
+   }
+
+
+   // Remove consumer.
+   public void removeConsumer(CollisionConsumer consumer)
+   {
+      int i;
+
+      for (i = 0; i < numConsumers; i++)
+      {
+         if (consumers[i] == consumer)
+         {
+            numConsumers--;
+            System.arraycopy(consumers, i + 1, consumers, i, numConsumers - i);
+            consumers[numConsumers] = null;
+            return;
+         }
+      }
+   }
+
+
+   // Add an event at the current beat.
+   public void add(int kind, int sphere, int other, int palette, int otherPalette)
+   {
+      add(beat, kind, sphere, other, palette, otherPalette);
+   }
+
+
+   // Add an event.
+   void add(int beat, int kind, int sphere, int other, int palette, int otherPalette)
+   {
+      int k;
+
+      if ((head - tail) > mask)
+      {
+         if (numConsumers > 0)
+         {
+            flush();
+         }
+         else
+         {
+            grow();
+         }
+      }
+      k                = (int)head & mask;
+      beats[k]         = beat;
+      kinds[k]         = (byte)kind;
+      first[k]         = sphere;
+      second[k]        = other;
+      firstPalette[k]  = palette;
+      secondPalette[k] = otherPalette;
+      head++;
+   }
+
+
+   // Give the events added to the consumers.  Without consumers they
+   // are discarded.
+   public void flush()
+   {
+      int i;
+
+      if (head == tail) { return; }
+      for (i = 0; i < numConsumers; i++)
+      {
+         consumers[i].consume(this, tail, head);
+      }
+      tail = head;
+   }
+
+
+   // Flush the events of a beat and tell the consumers it has ended.
+   public void endBeat(int beat)
+   {
+      int i;
+
+      flush();
+      for (i = 0; i < numConsumers; i++)
+      {
+         consumers[i].endBeat(beat);
+      }
+   }
+
+
+   // Append the events not yet flushed to another stream, and discard them.
+   public void appendTo(CollisionEvents to)
+   {
+      int  k;
+      long s;
+
+      for (s = tail; s < head; s++)
+      {
+         k = (int)s & mask;
+         to.add(beats[k], kinds[k], first[k], second[k], firstPalette[k], secondPalette[k]);
+      }
+      tail = head;
+   }
+
+
+   // Number of events not yet flushed.
+   public int size()
+   {
+      return((int)(head - tail));
+   }
+
+
+   // Event fields by sequence number.
+   public int beat(long s)
+   {
+      return(beats[(int)s & mask]);
+   }
+
+
+   public int kind(long s)
+   {
+      return(kinds[(int)s & mask]);
+   }
+
+
+   public int first(long s)
+   {
+      return(first[(int)s & mask]);
+   }
+
+
+   public int second(long s)
+   {
+      return(second[(int)s & mask]);
+   }
+
+
+   public int firstPalette(long s)
+   {
+      return(firstPalette[(int)s & mask]);
+   }
+
+
+   public int secondPalette(long s)
+   {
+      return(secondPalette[(int)s & mask]);
+   }
+
+
+   // Double the capacity, keeping the events not yet flushed.
+   void grow()
+   {
+      int    i, j, n, c;
+      int[]  b, f, s, fp, sp;
+      byte[] k;
+
+      n  = size();
+      c  = (mask + 1) * 2;
+      b  = new int[c];
+      k  = new byte[c];
+      f  = new int[c];
+      s  = new int[c];
+      fp = new int[c];
+      sp = new int[c];
+      for (i = 0; i < n; i++)
+      {
+         j     = (int)(tail + i) & mask;
+         b[i]  = beats[j];
+         k[i]  = kinds[j];
+         f[i]  = first[j];
+         s[i]  = second[j];
+         fp[i] = firstPalette[j];
+         sp[i] = secondPalette[j];
+      }
+      beats         = b;
+      kinds         = k;
+      first         = f;
+      second        = s;
+      firstPalette  = fp;
+      secondPalette = sp;
+      mask          = c - 1;
+      tail          = 0L;
+      head          = n;
+   }
+}
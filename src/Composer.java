@@ -10,7 +10,9 @@
  *
  * Usage:
  *
- * java Composer [<screen width> <screen height>]
+ * java Composer [<screen width> <screen height>] [-GenerateKernel] [-FixedPoint]
+ *    [-AudioClips] [-SoundBuffer <milliseconds>] [-Voices <voices>]
+ *    [-VoiceStealing oldest|quietest|retrigger] [-SampleCache <directory>]
  *
  */
 
@@ -35,12 +37,16 @@ public class Composer implements Runnable
    static final int DEFAULT_STRINGS       = 3;
    static final int DEFAULT_STRING_SIZE   = 70;
    static final int BOUNDING_DIST         = 5;
-   static final int UPDATE_FREQUENCY      = 50; // Milliseconds between screen updates.
    static final int STOP_CHECK_FREQUENCY  = 1000;
+   static final int LOOP_SEARCH_BEATS     = 100000;
 
    // Music.
    Music music;
 
+   // Beat scheduling.
+   BeatScheduler scheduler = new BeatScheduler(BeatScheduler.DEFAULT_BEATS_PER_SECOND);
+   double        newTempo  = -1.0;
+
    // Screen and canvas (buffered).
    JFrame    screen;
    Canvas    canvas;
@@ -61,6 +67,8 @@ public class Composer implements Runnable
    boolean          skipload;
    boolean          rewind;
    boolean          frozen;
+   int              seekBeat;
+   boolean          scrubUpdate;
    static final int EDIT_SIZE  = 0;
    static final int EDIT_ANGLE = 1;
    static final int EDIT_SPEED = 2;
@@ -71,8 +79,11 @@ public class Composer implements Runnable
    static final int SAVE_MUSIC   = 1;
    static final int LOAD_PALETTE = 2;
    static final int UPDATE       = 3;
+   static final int FIND_LOOP    = 4;
    int              fileOperation;
    String           statusMessage;
+   String           playStatus = "";   // Shown while playing.
+   PeriodDetector   loopSearch = null; // Loop being found.
    URL              baseURL;
    double           sdx, sdy;
 
@@ -82,6 +93,11 @@ public class Composer implements Runnable
    Button        rewindButton;
    Checkbox      freezeCheck;
    Checkbox      muteCheck;
+   Label         seekLabel;
+   TextField     seekText;
+   JSlider       scrubSlider;
+   Label         tempoLabel;
+   TextField     tempoText;
    JPanel        composePanel;
    JPanel        composePanelA;
    CheckboxGroup editGroup;
@@ -94,6 +110,7 @@ public class Composer implements Runnable
    Button        deleteButton;
    Button        paletteButton;
    Checkbox      markFinisCheck;
+   Button        findLoopButton;
    JPanel        filePanel;
    Choice        fileOperationChoice;
    JComboBox     musicComboBox;
@@ -118,23 +135,94 @@ public class Composer implements Runnable
    int         fontWidth;
    int         fontHeight;
 
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java Composer [<screen width> <screen height>]\n" +
+      "        [-GenerateKernel (generate a step kernel for each composition)]\n" +
+      "        [-FixedPoint (fixed-point motion)]\n" +
+      "        [-AudioClips (play sounds as applet audio clips instead of mixing them)]\n" +
+      "        [-SoundBuffer <sound mixer buffer milliseconds> (default=" +
+      SoundMixer.DEFAULT_BUFFER_MILLIS + ")]\n" +
+      "        [-Voices <maximum sounds playing at once> (default=" +
+      SoundMixer.DEFAULT_VOICES + ")]\n" +
+      "        [-VoiceStealing oldest | quietest | retrigger (default=oldest)]\n" +
+      "        [-SampleCache <directory> (keep decoded sounds on disk, shared by players)]";
+
    // Main.
    public static void main(String[] args)
    {
+      int       i, n, soundBufferMillis, voices, voiceStealing;
+      int[]     size;
+      boolean   generateKernel, fixedPoint, audioClips;
+      String    sampleCache;
       Dimension screenSize;
 
-      // Get screen size.
-      screenSize = new Dimension(DEFAULT_SCREEN_WIDTH, DEFAULT_SCREEN_HEIGHT);
-      if (args.length == 2)
+      // Get options.
+      size              = new int[2];
+      n                 = 0;
+      generateKernel    = fixedPoint = audioClips = false;
+      soundBufferMillis = SoundMixer.DEFAULT_BUFFER_MILLIS;
+      voices            = SoundMixer.DEFAULT_VOICES;
+      voiceStealing     = SoundMixer.STEAL_OLDEST;
+      sampleCache       = null;
+      try
       {
-         screenSize.width  = Integer.parseInt(args[0]);
-         screenSize.height = Integer.parseInt(args[1]);
+         for (i = 0; i < args.length; i++)
+         {
+            if (args[i].equals("-GenerateKernel"))
+            {
+               generateKernel = true;
+            }
+            else if (args[i].equals("-FixedPoint"))
+            {
+               fixedPoint = true;
+            }
+            else if (args[i].equals("-AudioClips"))
+            {
+               audioClips = true;
+            }
+            else if (args[i].equals("-SoundBuffer"))
+            {
+               soundBufferMillis = Integer.parseInt(args[++i]);
+               if (soundBufferMillis <= 0) { throw(new IllegalArgumentException()); }
+            }
+            else if (args[i].equals("-Voices"))
+            {
+               voices = Integer.parseInt(args[++i]);
+               if ((voices <= 0) || (voices > SoundMixer.MAX_VOICES))
+               {
+                  throw(new IllegalArgumentException());
+               }
+            }
+            else if (args[i].equals("-VoiceStealing"))
+            {
+               voiceStealing = SoundMixer.stealPolicy(args[++i]);
+               if (voiceStealing == -1) { throw(new IllegalArgumentException()); }
+            }
+            else if (args[i].equals("-SampleCache"))
+            {
+               sampleCache = args[++i];
+            }
+            else
+            {
+               size[n++] = Integer.parseInt(args[i]);
+            }
+         }
+         if (n == 1) { throw(new IllegalArgumentException()); }
       }
-      else if (args.length != 0)
-      {
-         System.err.println("java Composer [<screen width> <screen height>]");
+      catch (Exception e) {
+         System.err.println(Usage);
          System.exit(1);
       }
+
+      // Get screen size.
+      screenSize = new Dimension(DEFAULT_SCREEN_WIDTH, DEFAULT_SCREEN_HEIGHT);
+      if (n == 2)
+      {
+         screenSize.width  = size[0];
+         screenSize.height = size[1];
+      }
       if ((screenSize.width <= 0) || (screenSize.height <= 0))
       {
          System.err.println("Invalid screen size");
@@ -142,12 +230,15 @@ public class Composer implements Runnable
       }
 
       // Create the composer.
-      new Composer(screenSize);
+      new Composer(screenSize, generateKernel, fixedPoint, audioClips, soundBufferMillis,
+                   voices, voiceStealing, sampleCache);
    }
 
 
    // Constructor.
-   public Composer(Dimension screenSize)
+   public Composer(Dimension screenSize, boolean generateKernel, boolean fixedPoint,
+                   boolean audioClips, int soundBufferMillis, int voices, int voiceStealing,
+                   String sampleCache)
    {
       // Create screen.
       screen = new JFrame("Composer");
@@ -173,6 +264,23 @@ public class Composer implements Runnable
 
       // Create music.
       music = new Music(canvasSize);
+      music.generateKernel = generateKernel;
+      music.fixedPoint     = fixedPoint;
+
+      // Play sounds through a mixer, or audio clips if there is no line.
+      if (!audioClips)
+      {
+         music.mixer = SoundMixer.open(soundBufferMillis);
+         if (music.mixer != null)
+         {
+            music.mixer.setPolyphony(voices, voiceStealing);
+            music.mixer.setTempo(scheduler.beatsPerSecond);
+            if (sampleCache != null)
+            {
+               music.mixer.cache = new SampleCache(new File(sampleCache));
+            }
+         }
+      }
 
       // Create control panels.
       controlTabs = new JTabbedPane();
@@ -187,6 +295,19 @@ public class Composer implements Runnable
       muteCheck = new Checkbox("Mute");
       muteCheck.addItemListener(new muteCheckItemListener());
       playPanel.add(muteCheck);
+      seekLabel = new Label("Beat:");
+      playPanel.add(seekLabel);
+      seekText = new TextField("", 6);
+      seekText.addActionListener(new seekTextActionListener());
+      playPanel.add(seekText);
+      scrubSlider = new JSlider(JSlider.HORIZONTAL, 0, 0, 0);
+      scrubSlider.addChangeListener(new scrubSliderChangeListener());
+      playPanel.add(scrubSlider);
+      tempoLabel = new Label("Tempo:");
+      playPanel.add(tempoLabel);
+      tempoText = new TextField(String.valueOf(scheduler.beatsPerSecond), 4);
+      tempoText.addActionListener(new tempoTextActionListener());
+      playPanel.add(tempoText);
       composePanel  = new JPanel();
       composePanelA = new JPanel();
       editGroup     = new CheckboxGroup();
@@ -216,6 +337,9 @@ public class Composer implements Runnable
       markFinisCheck = new Checkbox("Mark finis");
       markFinisCheck.addItemListener(new markFinisCheckItemListener());
       composePanelB.add(markFinisCheck);
+      findLoopButton = new Button("Find loop");
+      findLoopButton.addActionListener(new findLoopButtonActionListener());
+      composePanelB.add(findLoopButton);
       composePanel.add(composePanelB);
       filePanel           = new JPanel();
       fileOperationChoice = new Choice();
@@ -258,6 +382,8 @@ public class Composer implements Runnable
       skipload      = false;
       rewind        = false;
       frozen        = false;
+      seekBeat      = -1;
+      scrubUpdate   = false;
       editMode      = EDIT_SIZE;
       composeChange = false;
       dragging      = false;
@@ -302,35 +428,29 @@ public class Composer implements Runnable
       // Create positions and movements for each sphere.
       for (i = 0; i < DEFAULT_SPHERES; i++)
       {
-         music.spheres[i]        = new SphereSprite();
-         music.spheres[i].radius = r = music.MIN_SPHERE_RADIUS + (int)(Math.random() *
+         music.spheres.add(new SphereSprite());
+         music.spheres.radius[i] = r = music.MIN_SPHERE_RADIUS + (int)(Math.random() *
                                                                        (double)(music.MAX_SPHERE_RADIUS - music.MIN_SPHERE_RADIUS));
-         music.spheres[i].x  = (int)(Math.random() * (double)(canvasSize.width - (r * 2))) + r;
-         music.spheres[i].y  = (int)(Math.random() * (double)(canvasSize.height - (r * 2))) + r;
-         music.spheres[i].dx = Math.random() * (double)music.MAX_SPHERE_SPEED * Math.sqrt(0.5);
+         music.spheres.x[i]  = (int)(Math.random() * (double)(canvasSize.width - (r * 2))) + r;
+         music.spheres.y[i]  = (int)(Math.random() * (double)(canvasSize.height - (r * 2))) + r;
+         music.spheres.dx[i] = Math.random() * (double)music.MAX_SPHERE_SPEED * Math.sqrt(0.5);
          if (Math.random() < 0.5)
          {
-            music.spheres[i].dx = -music.spheres[i].dx;
+            music.spheres.dx[i] = -music.spheres.dx[i];
          }
-         music.spheres[i].dy = Math.random() * (double)music.MAX_SPHERE_SPEED * Math.sqrt(0.5);
+         music.spheres.dy[i] = Math.random() * (double)music.MAX_SPHERE_SPEED * Math.sqrt(0.5);
          if (Math.random() < 0.5)
          {
-            music.spheres[i].dy = -music.spheres[i].dy;
+            music.spheres.dy[i] = -music.spheres.dy[i];
          }
-         music.spheres[i].paletteIndex         = -1;
-         music.spheresRewindTo[i]              = new SphereSprite();
-         music.spheresRewindTo[i].radius       = music.spheres[i].radius;
-         music.spheresRewindTo[i].x            = music.spheres[i].x;
-         music.spheresRewindTo[i].y            = music.spheres[i].y;
-         music.spheresRewindTo[i].dx           = music.spheres[i].dx;
-         music.spheresRewindTo[i].dy           = music.spheres[i].dy;
-         music.spheresRewindTo[i].paletteIndex = music.spheres[i].paletteIndex;
+         music.spheres.paletteIndex[i] = -1;
       }
+      music.setRewindPoint();
 
       // Create positions for each string.
       for (i = 0; i < DEFAULT_STRINGS; i++)
       {
-         music.strings[i] = new StringSprite();
+         music.addString(new StringSprite());
          l = music.MIN_STRING_SIZE + (int)(Math.random() *
                                            (double)(music.MAX_STRING_SIZE - music.MIN_STRING_SIZE));
          music.strings[i].x1 = (int)(Math.random() * (double)canvasSize.width);
@@ -349,6 +469,7 @@ public class Composer implements Runnable
          }
          music.strings[i].paletteIndex = -1;
       }
+      music.stringsChanged();
 
       // Position sphere and strings for add mode.
       addSphere              = new SphereSprite();
@@ -375,15 +496,16 @@ public class Composer implements Runnable
       Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
 
       // Music update loop.
+      scheduler.start();
       while (true)
       {
          // Synchronize with filing.
          synchThreads(UPDATE);
 
-         // Sleep until the next loop.
+         // Sleep until the next beat.
          try
          {
-            Thread.sleep(UPDATE_FREQUENCY);
+            scheduler.sleepUntilNextBeat();
          }
          catch (InterruptedException e) { break; }
       }
@@ -412,13 +534,93 @@ public class Composer implements Runnable
       case UPDATE:
          updateMusic();
          break;
+
+      case FIND_LOOP:
+         findLoop();
+         break;
+      }
+   }
+
+
+   // Find where the composition loops, on a worker thread, and then mark
+   // finis at the end of the first pass of the loop.
+   void findLoop()
+   {
+      final int version;
+
+      if (composeChange)
+      {
+         composeChange = false;
+         music.setRewindPoint();
+      }
+      if (loopSearch != null)
+      {
+         statusMessage = "Already finding loop";
+         return;
+      }
+      statusMessage = "Finding loop";
+      version       = music.version;
+      loopSearch    = PeriodDetector.findLater(music, LOOP_SEARCH_BEATS, new Runnable()
+                                               {
+                                                  public void run() { loopFound(version); }
+                                               }
+                                               );
+   }
+
+
+   // The loop of the composition of a version has been found, or not.
+   synchronized void loopFound(int version)
+   {
+      PeriodDetector detector;
+
+      detector   = loopSearch;
+      loopSearch = null;
+      if (version != music.version)
+      {
+         statusMessage = "Composition changed while finding loop";
+         return;
+      }
+      if (detector.period == -1)
+      {
+         statusMessage = "No loop in " + LOOP_SEARCH_BEATS + " beats";
+         return;
       }
+      music.setLoop(detector.loopStart, detector.period);
+      music.finisBeat = detector.loopStart + detector.period;
+      markFinisCheck.setState(true);
+      statusMessage = "Loops from beat " + detector.loopStart + " every " +
+                      detector.period + " beats: finis at beat " + music.finisBeat;
    }
 
 
    // Update music.
    public void updateMusic()
    {
+      int    i, n;
+      String s;
+
+      // Change tempo?
+      if (newTempo != -1.0)
+      {
+         scheduler.setBeatsPerSecond(newTempo);
+         if (music.mixer != null)
+         {
+            music.mixer.setTempo(scheduler.beatsPerSecond);
+         }
+         newTempo = -1.0;
+      }
+
+      // Beats due; when behind, play them all and draw once, and say so.
+      n = scheduler.beatsDue();
+      if ((s = scheduler.lateStatistics()) != null)
+      {
+         playStatus = s;
+      }
+      if ((music.mixer != null) && ((s = music.mixer.voiceStatistics()) != null))
+      {
+         playStatus = s;
+      }
+
       // Rewind?
       if (rewind)
       {
@@ -426,45 +628,63 @@ public class Composer implements Runnable
          rewind = false;
       }
 
-      // Advance music a beat.
-      if ((mode == PLAY) && !frozen)
+      // Seek or advance music.
+      if (seekBeat != -1)
+      {
+         music.seek(seekBeat);
+         seekBeat = -1;
+      }
+      else if ((mode == PLAY) && !frozen)
       {
-         music.movement();
+         for (i = 0; i < n; i++)
+         {
+            music.movement();
+         }
       }
+      updateScrubSlider();
 
       // Update canvas.
       updateCanvas();
    }
 
 
+   // Update scrub slider to span the beats played so far, or up to
+   // the finis beat, and to show the current beat.
+   void updateScrubSlider()
+   {
+      int max;
+
+      if (music.finisBeat != -1)
+      {
+         max = music.finisBeat;
+      }
+      else
+      {
+         max = Math.max(music.beat, music.timeline.lastBeat());
+      }
+      scrubUpdate = true;
+      if (scrubSlider.getMaximum() != max)
+      {
+         scrubSlider.setMaximum(max);
+      }
+      if (!scrubSlider.getValueIsAdjusting())
+      {
+         scrubSlider.setValue(music.beat);
+      }
+      scrubUpdate = false;
+   }
+
+
    // Control tabs listener.
    class controlTabsChangeListener implements ChangeListener
    {
       public void stateChanged(ChangeEvent evt)
       {
-         int i;
-
          // Save new composition if changed.
          if (composeChange)
          {
             composeChange = false;
-            for (i = 0; music.spheres[i] != null; i++)
-            {
-               if (music.spheresRewindTo[i] == null)
-               {
-                  music.spheresRewindTo[i] = new SphereSprite();
-               }
-               music.spheresRewindTo[i].radius       = music.spheres[i].radius;
-               music.spheresRewindTo[i].x            = music.spheres[i].x;
-               music.spheresRewindTo[i].y            = music.spheres[i].y;
-               music.spheresRewindTo[i].dx           = music.spheres[i].dx;
-               music.spheresRewindTo[i].dy           = music.spheres[i].dy;
-               music.spheresRewindTo[i].paletteIndex = music.spheres[i].paletteIndex;
-            }
-            for ( ; music.spheresRewindTo[i] != null; i++)
-            {
-               music.spheresRewindTo[i] = null;
-            }
+            music.setRewindPoint();
          }
          currentSphere = currentString = -1;
          statusMessage = "";
@@ -483,6 +703,72 @@ public class Composer implements Runnable
       }
    }
 
+   // Seek text listener.
+   class seekTextActionListener implements ActionListener
+   {
+      public void actionPerformed(ActionEvent evt)
+      {
+         String s;
+         int    b;
+
+         s = seekText.getText().trim();
+         try
+         {
+            b = Integer.parseInt(s, 10);
+         }
+         catch (NumberFormatException e) {
+            b = -1;
+         }
+         if (b < 0)
+         {
+            System.err.println("Invalid beat: " + s);
+         }
+         else
+         {
+            seekBeat = b;
+         }
+      }
+   }
+
+   // Scrub slider listener.
+   class scrubSliderChangeListener implements ChangeListener
+   {
+      public void stateChanged(ChangeEvent evt)
+      {
+         if (!scrubUpdate)
+         {
+            seekBeat = scrubSlider.getValue();
+         }
+      }
+   }
+
+   // Tempo text listener.
+   class tempoTextActionListener implements ActionListener
+   {
+      public void actionPerformed(ActionEvent evt)
+      {
+         String s;
+         double t;
+
+         s = tempoText.getText().trim();
+         try
+         {
+            t = Double.parseDouble(s);
+         }
+         catch (NumberFormatException e) {
+            t = -1.0;
+         }
+         if (!(t > 0.0))
+         {
+            System.err.println("Invalid tempo: " + s);
+         }
+         else
+         {
+            newTempo = t;
+         }
+      }
+   }
+
    // Freeze check button listener.
    class freezeCheckItemListener implements ItemListener
    {
@@ -491,6 +777,10 @@ public class Composer implements Runnable
          if (freezeCheck.getState())
          {
             frozen = true;
+            if (music.mixer != null)
+            {
+               playStatus = music.mixer.voiceCounts();
+            }
          }
          else
          {
@@ -563,24 +853,16 @@ public class Composer implements Runnable
    {
       public void actionPerformed(ActionEvent evt)
       {
-         int i;
-
          mode = COMPOSE;
          if (currentSphere != -1)
          {
-            for (i = currentSphere; music.spheres[i] != null; i++)
-            {
-               music.spheres[i] = music.spheres[i + 1];
-            }
+            music.spheres.remove(currentSphere);
             currentSphere = -1;
             markComposeChange();
          }
          if (currentString != -1)
          {
-            for (i = currentString; music.strings[i] != null; i++)
-            {
-               music.strings[i] = music.strings[i + 1];
-            }
+            music.removeString(currentString);
             currentString = -1;
             markComposeChange();
          }
@@ -616,6 +898,16 @@ public class Composer implements Runnable
       }
    }
 
+   // Find loop button listener.
+   class findLoopButtonActionListener implements ActionListener
+   {
+      public void actionPerformed(ActionEvent evt)
+      {
+         mode = COMPOSE;
+         synchThreads(FIND_LOOP);
+      }
+   }
+
    // Set edit slider.
    public void setEditSlider()
    {
@@ -627,7 +919,7 @@ public class Composer implements Runnable
       case EDIT_SIZE:
          if (currentSphere != -1)
          {
-            d = (double)(music.spheres[currentSphere].radius - music.MIN_SPHERE_RADIUS) /
+            d = (double)(music.spheres.radius[currentSphere] - music.MIN_SPHERE_RADIUS) /
                 (double)(music.MAX_SPHERE_RADIUS - music.MIN_SPHERE_RADIUS);
             editSlider.setValue((int)(100.0 * d));
          }
@@ -654,8 +946,8 @@ public class Composer implements Runnable
       case EDIT_ANGLE:
          if (currentSphere != -1)
          {
-            dx = music.spheres[currentSphere].dx;
-            dy = music.spheres[currentSphere].dy;
+            dx = music.spheres.dx[currentSphere];
+            dy = music.spheres.dy[currentSphere];
             if ((dx == 0.0) && (dy == 0.0))
             {
                a = 0.0;
@@ -705,8 +997,8 @@ public class Composer implements Runnable
       case EDIT_SPEED:
          if (currentSphere != -1)
          {
-            dx = music.spheres[currentSphere].dx;
-            dy = music.spheres[currentSphere].dy;
+            dx = music.spheres.dx[currentSphere];
+            dy = music.spheres.dy[currentSphere];
             d  = Math.sqrt((dx * dx) + (dy * dy));
             d  = d / (double)music.MAX_SPHERE_SPEED;
             editSlider.setValue((int)(100.0 * d));
@@ -735,7 +1027,7 @@ public class Composer implements Runnable
             if (currentSphere != -1)
             {
                d = (double)editSlider.getValue() / 100.0;
-               music.spheres[currentSphere].radius =
+               music.spheres.radius[currentSphere] =
                   (int)((double)(music.MAX_SPHERE_RADIUS - music.MIN_SPHERE_RADIUS) * d) +
                   music.MIN_SPHERE_RADIUS;
                markComposeChange();
@@ -783,8 +1075,8 @@ public class Composer implements Runnable
                   a = ((25.0 - (double)i) / 25.0) * (Math.PI / 2.0);
                   break;
                }
-               dx = music.spheres[currentSphere].dx;
-               dy = music.spheres[currentSphere].dy;
+               dx = music.spheres.dx[currentSphere];
+               dy = music.spheres.dy[currentSphere];
                d  = Math.sqrt((dx * dx) + (dy * dy));
                dy = d * Math.sin(a);
                dx = d * Math.cos(a);
@@ -810,8 +1102,8 @@ public class Composer implements Runnable
                   dy = Math.abs(dy);
                   break;
                }
-               music.spheres[currentSphere].dx = dx;
-               music.spheres[currentSphere].dy = dy;
+               music.spheres.dx[currentSphere] = dx;
+               music.spheres.dy[currentSphere] = dy;
                markComposeChange();
             }
             else
@@ -824,8 +1116,8 @@ public class Composer implements Runnable
             if (currentSphere != -1)
             {
                d  = ((double)editSlider.getValue() / 100.0) * (double)music.MAX_SPHERE_SPEED;
-               dx = music.spheres[currentSphere].dx;
-               dy = music.spheres[currentSphere].dy;
+               dx = music.spheres.dx[currentSphere];
+               dy = music.spheres.dy[currentSphere];
                if (Math.abs(dx) > 0.0)
                {
                   a  = Math.atan(Math.abs(dy / dx));
@@ -845,21 +1137,21 @@ public class Composer implements Runnable
                      dy = 0.0;
                   }
                }
-               if (music.spheres[currentSphere].dx >= 0.0)
+               if (music.spheres.dx[currentSphere] >= 0.0)
                {
-                  music.spheres[currentSphere].dx = dx;
+                  music.spheres.dx[currentSphere] = dx;
                }
                else
                {
-                  music.spheres[currentSphere].dx = -dx;
+                  music.spheres.dx[currentSphere] = -dx;
                }
-               if (music.spheres[currentSphere].dy >= 0.0)
+               if (music.spheres.dy[currentSphere] >= 0.0)
                {
-                  music.spheres[currentSphere].dy = dy;
+                  music.spheres.dy[currentSphere] = dy;
                }
                else
                {
-                  music.spheres[currentSphere].dy = -dy;
+                  music.spheres.dy[currentSphere] = -dy;
                }
                markComposeChange();
             }
@@ -891,10 +1183,10 @@ public class Composer implements Runnable
             // Select current sphere or string.
             currentSphere = currentString = -1;
             d2            = 0;
-            for (i = 0, j = -1; music.spheres[i] != null; i++)
+            for (i = 0, j = -1; i < music.spheres.count; i++)
             {
-               d = (int)music.pointDist(x, y, music.spheres[i].x, music.spheres[i].y);
-               if (d <= music.spheres[i].radius)
+               d = (int)music.pointDist(x, y, music.spheres.x[i], music.spheres.y[i]);
+               if (d <= music.spheres.radius[i])
                {
                   if ((j == -1) || (d < d2))
                   {
@@ -909,14 +1201,10 @@ public class Composer implements Runnable
                setEditSlider();
                dragging = true;
                canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
-               if (!music.mute && (music.spheres[currentSphere].paletteIndex != -1) &&
-                   (music.palette.soundClips[music.spheres[currentSphere].paletteIndex] != null))
-               {
-                  music.palette.soundClips[music.spheres[currentSphere].paletteIndex].play();
-               }
+               music.playSound(music.spheres.paletteIndex[currentSphere]);
                return;
             }
-            for (i = 0, j = -1; music.strings[i] != null; i++)
+            for (i = 0, j = -1; i < music.numStrings; i++)
             {
                if (music.strings[i].x1 == music.strings[i].x2)
                {
@@ -953,11 +1241,7 @@ public class Composer implements Runnable
                setEditSlider();
                dragging = true;
                canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
-               if (!music.mute && (music.strings[currentString].paletteIndex != -1) &&
-                   (music.palette.soundClips[music.strings[currentString].paletteIndex] != null))
-               {
-                  music.palette.soundClips[music.strings[currentString].paletteIndex].play();
-               }
+               music.playSound(music.strings[currentString].paletteIndex);
                return;
             }
             setEditSlider();
@@ -971,25 +1255,10 @@ public class Composer implements Runnable
             d = (int)music.pointDist(x, y, addSphere.x, addSphere.y);
             if (d <= addSphere.radius)
             {
-               for (i = 0; music.spheres[i] != null; i++) {}
-               if (i == music.MAX_SPHERES)
-               {
-                  System.err.println("Cannot add sphere - maximum = " + music.MAX_SPHERES);
-               }
-               else
-               {
-                  music.spheres[i]              = new SphereSprite();
-                  music.spheres[i].radius       = addSphere.radius;
-                  music.spheres[i].x            = addSphere.x;
-                  music.spheres[i].y            = addSphere.y;
-                  music.spheres[i].dx           = addSphere.dx;
-                  music.spheres[i].dy           = addSphere.dy;
-                  music.spheres[i].paletteIndex = addSphere.paletteIndex;
-                  currentSphere = i;
-                  setEditSlider();
-                  dragging = true;
-                  canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
-               }
+               currentSphere = music.spheres.add(addSphere);
+               setEditSlider();
+               dragging = true;
+               canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
             }
 
             // Add horizontal string?
@@ -999,24 +1268,16 @@ public class Composer implements Runnable
                {
                   if ((d = Math.abs(y - addHorizontalString.y1)) <= BOUNDING_DIST)
                   {
-                     for (i = 0; music.strings[i] != null; i++) {}
-                     if (i == music.MAX_STRINGS)
-                     {
-                        System.err.println("Cannot add string - maximum = " + music.MAX_STRINGS);
-                     }
-                     else
-                     {
-                        music.strings[i]              = new StringSprite();
-                        music.strings[i].x1           = addHorizontalString.x1;
-                        music.strings[i].y1           = addHorizontalString.y1;
-                        music.strings[i].x2           = addHorizontalString.x2;
-                        music.strings[i].y2           = addHorizontalString.y2;
-                        music.strings[i].paletteIndex = addHorizontalString.paletteIndex;
-                        currentString = i;
-                        setEditSlider();
-                        dragging = true;
-                        canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
-                     }
+                     i = music.addString(new StringSprite());
+                     music.strings[i].x1           = addHorizontalString.x1;
+                     music.strings[i].y1           = addHorizontalString.y1;
+                     music.strings[i].x2           = addHorizontalString.x2;
+                     music.strings[i].y2           = addHorizontalString.y2;
+                     music.strings[i].paletteIndex = addHorizontalString.paletteIndex;
+                     currentString = i;
+                     setEditSlider();
+                     dragging = true;
+                     canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
                   }
                }
             }
@@ -1028,24 +1289,16 @@ public class Composer implements Runnable
                {
                   if ((d = Math.abs(x - addVerticalString.x1)) <= BOUNDING_DIST)
                   {
-                     for (i = 0; music.strings[i] != null; i++) {}
-                     if (i == music.MAX_STRINGS)
-                     {
-                        System.err.println("Cannot add string - maximum = " + music.MAX_STRINGS);
-                     }
-                     else
-                     {
-                        music.strings[i]              = new StringSprite();
-                        music.strings[i].x1           = addVerticalString.x1;
-                        music.strings[i].y1           = addVerticalString.y1;
-                        music.strings[i].x2           = addVerticalString.x2;
-                        music.strings[i].y2           = addVerticalString.y2;
-                        music.strings[i].paletteIndex = addVerticalString.paletteIndex;
-                        currentString = i;
-                        setEditSlider();
-                        dragging = true;
-                        canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
-                     }
+                     i = music.addString(new StringSprite());
+                     music.strings[i].x1           = addVerticalString.x1;
+                     music.strings[i].y1           = addVerticalString.y1;
+                     music.strings[i].x2           = addVerticalString.x2;
+                     music.strings[i].y2           = addVerticalString.y2;
+                     music.strings[i].paletteIndex = addVerticalString.paletteIndex;
+                     currentString = i;
+                     setEditSlider();
+                     dragging = true;
+                     canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
                   }
                }
             }
@@ -1068,10 +1321,7 @@ public class Composer implements Runnable
                   dragging = true;
                   canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
                   paletteSphere.paletteIndex = j;
-                  if (!music.mute && (music.palette.soundClips[j] != null))
-                  {
-                     music.palette.soundClips[j].play();
-                  }
+                  music.playSound(j);
                   return;
                }
                px += paletteXY;
@@ -1103,10 +1353,7 @@ public class Composer implements Runnable
                   dragging = true;
                   canvas.setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
                   paletteString.paletteIndex = j;
-                  if (!music.mute && (music.palette.soundClips[j] != null))
-                  {
-                     music.palette.soundClips[j].play();
-                  }
+                  music.playSound(j);
                   return;
                }
                px += paletteXY;
@@ -1151,16 +1398,13 @@ public class Composer implements Runnable
             {
                if ((x < 0) || (x >= canvasSize.width) || (y < 0) || (y >= canvasSize.height))
                {
-                  for (i = currentSphere; music.spheres[i] != null; i++)
-                  {
-                     music.spheres[i] = music.spheres[i + 1];
-                  }
+                  music.spheres.remove(currentSphere);
                   currentSphere = -1;
                }
                else
                {
-                  music.spheres[currentSphere].x = x;
-                  music.spheres[currentSphere].y = y;
+                  music.spheres.x[currentSphere] = x;
+                  music.spheres.y[currentSphere] = y;
                }
                markComposeChange();
             }
@@ -1168,10 +1412,7 @@ public class Composer implements Runnable
             {
                if ((x < 0) || (x >= canvasSize.width) || (y < 0) || (y >= canvasSize.height))
                {
-                  for (i = currentString; music.strings[i] != null; i++)
-                  {
-                     music.strings[i] = music.strings[i + 1];
-                  }
+                  music.removeString(currentString);
                   currentString = -1;
                }
                else
@@ -1202,10 +1443,10 @@ public class Composer implements Runnable
             if (paletteSphere.paletteIndex != -1)
             {
                d2 = 0;
-               for (i = 0, j = -1; music.spheres[i] != null; i++)
+               for (i = 0, j = -1; i < music.spheres.count; i++)
                {
-                  d = (int)music.pointDist(x, y, music.spheres[i].x, music.spheres[i].y);
-                  if (d <= music.spheres[i].radius)
+                  d = (int)music.pointDist(x, y, music.spheres.x[i], music.spheres.y[i]);
+                  if (d <= music.spheres.radius[i])
                   {
                      if ((j == -1) || (d < d2))
                      {
@@ -1218,11 +1459,11 @@ public class Composer implements Runnable
                {
                   if (paletteSphere.paletteIndex == music.MAX_SOUND_COLOR)
                   {
-                     music.spheres[j].paletteIndex = -1;
+                     music.spheres.paletteIndex[j] = -1;
                   }
                   else
                   {
-                     music.spheres[j].paletteIndex = paletteSphere.paletteIndex;
+                     music.spheres.paletteIndex[j] = paletteSphere.paletteIndex;
                   }
                   currentSphere = j;
                   markComposeChange();
@@ -1231,7 +1472,7 @@ public class Composer implements Runnable
             else if (paletteString.paletteIndex != -1)
             {
                d2 = 0;
-               for (i = 0, j = -1; music.strings[i] != null; i++)
+               for (i = 0, j = -1; i < music.numStrings; i++)
                {
                   if (music.strings[i].x1 == music.strings[i].x2)
                   {
@@ -1305,8 +1546,8 @@ public class Composer implements Runnable
 
             if (currentSphere != -1)
             {
-               music.spheres[currentSphere].x = x;
-               music.spheres[currentSphere].y = y;
+               music.spheres.x[currentSphere] = x;
+               music.spheres.y[currentSphere] = y;
             }
             else if (currentString != -1)
             {
@@ -1364,6 +1605,7 @@ public class Composer implements Runnable
    void markComposeChange()
    {
       composeChange = true;
+      music.compositionChanged();
       music.beat    = 0;
       if (music.finisBeat != -1)
       {
@@ -1515,39 +1757,39 @@ public class Composer implements Runnable
 
       // Draw the spheres.
       d = canvasSize;
-      for (i = 0; music.spheres[i] != null; i++)
+      for (i = 0; i < music.spheres.count; i++)
       {
          if ((mode == COMPOSE) && (currentSphere == i))
          {
             canvasImageGraphics.setColor(Color.lightGray);
-            x = music.spheres[i].x - music.spheres[i].radius - BOUNDING_DIST;
-            y = music.spheres[i].y - music.spheres[i].radius - BOUNDING_DIST;
-            w = h = (music.spheres[i].radius * 2) + (BOUNDING_DIST * 2);
+            x = music.spheres.x[i] - music.spheres.radius[i] - BOUNDING_DIST;
+            y = music.spheres.y[i] - music.spheres.radius[i] - BOUNDING_DIST;
+            w = h = (music.spheres.radius[i] * 2) + (BOUNDING_DIST * 2);
             canvasImageGraphics.fillRect(x, y, w, h);
          }
-         if ((music.spheres[i].paletteIndex != -1) && (music.palette.soundColors[music.spheres[i].paletteIndex] != null))
+         if ((music.spheres.paletteIndex[i] != -1) && (music.palette.soundColors[music.spheres.paletteIndex[i]] != null))
          {
-            canvasImageGraphics.setColor(music.palette.soundColors[music.spheres[i].paletteIndex]);
+            canvasImageGraphics.setColor(music.palette.soundColors[music.spheres.paletteIndex[i]]);
          }
          else
          {
             canvasImageGraphics.setColor(Color.black);
          }
-         x = music.spheres[i].x - music.spheres[i].radius;
-         y = music.spheres[i].y - music.spheres[i].radius;
-         r = music.spheres[i].radius * 2;
+         x = music.spheres.x[i] - music.spheres.radius[i];
+         y = music.spheres.y[i] - music.spheres.radius[i];
+         r = music.spheres.radius[i] * 2;
          canvasImageGraphics.fillOval(x, y, r, r);
          if (mode != PLAY)
          {
             canvasImageGraphics.setColor(Color.white);
-            scaleSphereVelocity(music.spheres[i].dx, music.spheres[i].dy);
-            canvasImageGraphics.drawLine(music.spheres[i].x, music.spheres[i].y,
-                                         music.spheres[i].x + (int)sdx, music.spheres[i].y + (int)sdy);
+            scaleSphereVelocity(music.spheres.dx[i], music.spheres.dy[i]);
+            canvasImageGraphics.drawLine(music.spheres.x[i], music.spheres.y[i],
+                                         music.spheres.x[i] + (int)sdx, music.spheres.y[i] + (int)sdy);
          }
       }
 
       // Draw the strings.
-      for (i = 0; music.strings[i] != null; i++)
+      for (i = 0; i < music.numStrings; i++)
       {
          if ((mode == COMPOSE) && (currentString == i))
          {
@@ -1590,6 +1832,12 @@ public class Composer implements Runnable
             canvasImageGraphics.drawString(s,
                                            (d.width - fontMetrics.stringWidth(s)) / 2, d.height / 2);
          }
+         if (!playStatus.equals(""))
+         {
+            canvasImageGraphics.drawString(playStatus,
+                                           (d.width - fontMetrics.stringWidth(playStatus)) / 2,
+                                           d.height - fontMetrics.getDescent());
+         }
          break;
 
       case COMPOSE:
@@ -1777,11 +2025,21 @@ public class Composer implements Runnable
    }
 
 
-   // Load sounds if necessary by playing and immediately stopping them.
+   // Load sounds: decode them for the mixer, or else load the audio
+   // clips if necessary by playing and immediately stopping them.
    void loadsounds()
    {
-      int i;
+      int    i;
+      String message;
 
+      if (music.mixer != null)
+      {
+         if ((message = music.mixer.load(music.palette)) != null)
+         {
+            statusMessage = message;
+         }
+         return;
+      }
       for (i = 0; music.palette.soundURLs[i] != null; i++)
       {
          if (music.palette.soundClips[i] == null)
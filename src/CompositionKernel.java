@@ -0,0 +1,223 @@
+/*
+ *
+ * Music of the Spheres composition kernel.
+ *
+ * Description:
+ *
+ * A composition's strings and walls do not move while it plays, so its
+ * string and wall checks can be specialized to it.  generate() writes a
+ * class that checks a sphere against each string in turn, rejecting it
+ * outside the string's reach and otherwise calling the generic checks
+ * with the string's ends, its palette index and the wall bounds as
+ * literal constants.  Once these are inlined, the JIT folds the
+ * constants, dropping the vertical or horizontal branches and the reads
+ * of the strings, and leaves straight-line code.  The class is compiled
+ * in memory with the system Java compiler and defined as a hidden class,
+ * so that it is unloaded with the composition.  Compiling takes about a
+ * second, so the music generates its kernel on a worker thread (see
+ * generateLater()), off the beat.  Without a compiler (a runtime lacking
+ * the jdk.compiler module), or for more than MAX_STRINGS strings, which
+ * the string index handles better, generate() returns null and the
+ * generic checks are used.
+ *
+ */
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.tools.*;
+
+// Composition kernel class.
+public abstract class CompositionKernel
+{
+   // Parameters.
+   static final int    MAX_STRINGS = 8;
+   static final String CLASS_NAME  = "GeneratedCompositionKernel";
+
+   // Worker generating kernels.
+   static ExecutorService generator;
+
+   // Check sphere i against the strings, as Music.bounceOffStrings().
+   public abstract long bounceOffStrings(Music music, int i, CollisionEvents events);
+
+   // Wall bounce of a sphere, as SphereKernel.wallBounce() in the music's size.
+   public abstract long wallBounce(int x, int y, int r, double dx, double dy);
+
+   // Generate the kernel of a music's strings and size, or return null.
+   public static CompositionKernel generate(Music music)
+   {
+      if (music.numStrings > MAX_STRINGS) { return(null); }
+      return(define(source(music)));
+   }
+
+
+   // Compile and define a kernel from its source, or return null.
+   static CompositionKernel define(String source)
+   {
+      byte[]                code;
+      JavaCompiler          compiler;
+      MethodHandles.Lookup  lookup;
+
+      if ((compiler = ToolProvider.getSystemJavaCompiler()) == null) { return(null); }
+      if ((code = compile(compiler, source)) == null) { return(null); }
+      try
+      {
+         lookup = MethodHandles.lookup().defineHiddenClass(code, true);
+         return((CompositionKernel)lookup.findConstructor(lookup.lookupClass(),
+                                                          MethodType.methodType(void.class)).invoke());
+      }
+      catch (Throwable e) {
+         return(null);
+      }
+   }
+
+
+   // Generate the kernel of a music's strings and size on a worker thread.
+   // The source is written now, from the music as it is; the future gives
+   // the kernel, or null.
+   public static Future<CompositionKernel> generateLater(Music music)
+   {
+      final String source;
+
+      if (music.numStrings > MAX_STRINGS) { return(null); }
+      source = source(music);
+      return(generator().submit(new Callable<CompositionKernel>()
+                                {
+                                   public CompositionKernel call() { return(define(source)); }
+                                }
+                                ));
+   }
+
+
+   // Kernel of a generation, waiting for it, or null.
+   public static CompositionKernel result(Future<CompositionKernel> future)
+   {
+      try
+      {
+         return(future.get());
+      }
+      catch (Exception e) {
+         return(null);
+      }
+   }
+
+
+   // Worker generating kernels: one daemon thread, at low priority.
+   static synchronized ExecutorService generator()
+   {
+      if (generator == null)
+      {
+         generator = Executors.newSingleThreadExecutor(new ThreadFactory()
+                                                       {
+                                                          public Thread newThread(Runnable r)
+                                                          {
+                                                             Thread t;
+
+                                                             t = new Thread(r, CLASS_NAME);
+                                                             t.setDaemon(true);
+                                                             t.setPriority(Thread.MIN_PRIORITY);
+                                                             return(t);
+                                                          }
+                                                       }
+                                                       );
+      }
+      return(generator);
+   }
+
+
+   // Source of the kernel.
+   static String source(Music music)
+   {
+      int           i;
+      StringSprite  s;
+      StringBuilder b;
+
+      b = new StringBuilder();
+      b.append("public class " + CLASS_NAME + " extends CompositionKernel\n{\n");
+      b.append("   public long bounceOffStrings(Music music, int i, CollisionEvents events)\n   {\n");
+      b.append("      int    x, y, r;\n      double dx, dy;\n      long   f;\n\n");
+      b.append("      x  = music.spheres.x[i];\n      y  = music.spheres.y[i];\n");
+      b.append("      r  = music.spheres.radius[i];\n");
+      b.append("      dx = music.spheres.dx[i];\n      dy = music.spheres.dy[i];\n");
+      b.append("      f  = 0L;\n");
+      for (i = 0; i < music.numStrings; i++)
+      {
+         s = music.strings[i];
+         b.append("      if ((x >= (" + (Math.min(s.x1, s.x2) - StringIndex.END_REACH) + " - r)) && " +
+                  "(x <= (" + (Math.max(s.x1, s.x2) + StringIndex.END_REACH) + " + r)) && " +
+                  "(y >= (" + (Math.min(s.y1, s.y2) - StringIndex.END_REACH) + " - r)) && " +
+                  "(y <= (" + (Math.max(s.y1, s.y2) + StringIndex.END_REACH) + " + r)))\n");
+         b.append("      {\n         f |= music.stringHit(i, " + i + ", " + s.paletteIndex +
+                  ", Music.stringBounce(x, y, r, dx, dy, " + s.x1 + ", " + s.y1 + ", " +
+                  s.x2 + ", " + s.y2 + "), events);\n      }\n");
+      }
+      b.append("      return(f);\n   }\n\n");
+      b.append("   public long wallBounce(int x, int y, int r, double dx, double dy)\n   {\n");
+      b.append("      return(SphereKernel.wallBounce(x, y, r, dx, dy, " + music.size.width +
+               ", " + music.size.height + "));\n   }\n}\n");
+      return(b.toString());
+   }
+
+
+   // Compile source in memory, returning the class file, or null.
+   static byte[] compile(JavaCompiler compiler, String source)
+   {
+      String                              classPath;
+      JavaFileObject                      file;
+      ByteArrayOutputStream               code;
+      StandardJavaFileManager             standard;
+      ForwardingJavaFileManager<StandardJavaFileManager> manager;
+
+      // Classes the kernel extends and calls.
+      classPath = System.getProperty("java.class.path");
+      try
+      {
+         classPath = new File(CompositionKernel.class.getProtectionDomain().getCodeSource()
+                                 .getLocation().toURI()).getPath() +
+                     File.pathSeparator + classPath;
+      }
+      catch (Exception e) {
+      }
+
+      file = new SimpleJavaFileObject(URI.create("string:///" + CLASS_NAME + ".java"),
+                                      JavaFileObject.Kind.SOURCE)
+      {
+         public CharSequence getCharContent(boolean ignoreEncodingErrors)
+         {
+            return(source);
+         }
+      };
+      code     = new ByteArrayOutputStream();
+      standard = compiler.getStandardFileManager(null, null, null);
+      manager  = new ForwardingJavaFileManager<StandardJavaFileManager>(standard)
+      {
+         public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                    JavaFileObject.Kind kind, FileObject sibling)
+         {
+            return(new SimpleJavaFileObject(URI.create("bytes:///" + className + ".class"), kind)
+                   {
+                      public OutputStream openOutputStream()
+                      {
+                         return(code);
+                      }
+                   });
+         }
+      };
+      try
+      {
+         if (!compiler.getTask(new StringWriter(), manager, new DiagnosticCollector<JavaFileObject>(),
+                               Arrays.asList("-classpath", classPath, "-proc:none", "-g:none"),
+                               null, Arrays.asList(file)).call())
+         {
+            return(null);
+         }
+         manager.close();
+      }
+      catch (Exception e) {
+         return(null);
+      }
+      return(code.toByteArray());
+   }
+}
@@ -0,0 +1,638 @@
+/*
+ *
+ * Music of the Spheres event engine.
+ *
+ * Description:
+ *
+ * Plays the music by jumping over quiet beats, those on which a sphere
+ * touches no wall, string or other sphere.  Between collisions a sphere
+ * with velocity dx moves exactly floor(dx) pixels a beat, since its
+ * position is a whole number truncated after adding dx, so its position
+ * any number of beats ahead is known without stepping.
+ *
+ * For each sphere the engine keeps a conservative lower bound on the next
+ * beat on which it might collide, in a priority queue:
+ *
+ * - walls: the beat it reaches the wall it is moving toward.
+ * - strings: the beat it enters the box around a string within which the
+ *   string (or its end caps) can be touched.
+ * - spheres: the beat the pair is first within collision distance on
+ *   both axes, given both spheres' motion.
+ * - the beat its motion stops being linear: a position about to go
+ *   negative (truncation goes toward zero) or out of range, or a fraction
+ *   so near 1 that adding it might round up.  Such spheres are played
+ *   every beat.
+ *
+ * On the earliest bound beat only the spheres bounded at that beat can
+ * collide, with walls, strings or each other, so only they are brought
+ * up to date and resolved, by the same rule as the parallel step.  They
+ * are then bounded again, which may bring earlier the bounds of spheres
+ * they might now meet.  Other spheres are left where they were last
+ * bounded and brought up to date at timeline checkpoint beats, so
+ * checkpoints are still recorded, and when the engine returns.
+ *
+ * When collisions are so dense that spheres are bounded again several
+ * times a beat, jumping gains nothing, so the music is stepped every beat
+ * for a while instead.
+ *
+ */
+
+// Event engine class.
+public class EventEngine
+{
+   // Parameters.
+   static final int    MAX_SPHERES  = 2000;         // Beyond this, step every beat.
+   static final long   NEVER        = 1L << 40;     // Beats.
+   static final long   MAX_COORD    = 1L << 20;     // Largest exact linear position.
+   static final double MAX_FRACTION = 1.0 - 1.0e-9; // Largest exact linear velocity fraction.
+   static final int    DENSE_CHECK  = 64;           // Event beats between density checks.
+   static final int    DENSE_BEATS  = 1024;         // Beats to step when collisions are dense.
+
+   // Music.
+   Music music;
+
+   // Validity.
+   boolean valid;
+   int     validBeat;
+   int     validCount;
+
+   // Sphere motion: positions are those after baseBeat beats, moving
+   // stepX, stepY a beat.
+   int[] baseBeat = new int[0];
+   int[] stepX    = new int[0];
+   int[] stepY    = new int[0];
+
+   // Next possible collision beat of each sphere, in an indexed min-heap.
+   int[] eventBeat = new int[0];
+   int[] heap      = new int[0]; // Spheres.
+   int[] heapIndex = new int[0]; // Heap position of each sphere.
+
+   // Spheres of the beat being played, with their resolution.
+   int      numActive;
+   int[]    active     = new int[0];
+   long[]   activeFlag = new long[0];
+   int[]    activeHigh = new int[0];
+   int[]    activeLow  = new int[0];
+   double[] activeDx   = new double[0];
+   double[] activeDy   = new double[0];
+
+   // Density of event beats: when spheres are bounded again more often
+   // than beats pass, stepping every beat is cheaper.
+   int denseBeats;  // Beats left to step every beat.
+   int checkEvents; // Event beats since the last density check.
+   int checkBeats;  // Beats passed by them.
+   int checkActive; // Spheres bounded again by them.
+
+   // Sounds and collisions of the last beat played.
+   int  lastBeat;
+   long lastSounds;
+   int  lastCollisions;
+
+   // Statistics since cleared.
+   long   collisions;
+   long[] triggers = new long[Music.MAX_SOUND_COLOR];
+   int    lastCollisionBeat;
+
+   // Beats within a box, found by inside().
+   long enter, leave;
+
+   // Constructor.
+   public EventEngine(Music music)
+   {
+      this.music = music;
+      valid      = false;
+      clearStatistics();
+   }
+
+
+   // Discard bounds after the music is changed other than by the engine.
+   public void invalidate()
+   {
+      valid      = false;
+      denseBeats = 0;
+   }
+
+
+   // Clear statistics.
+   public void clearStatistics()
+   {
+      int i;
+
+      collisions = 0;
+      for (i = 0; i < Music.MAX_SOUND_COLOR; i++)
+      {
+         triggers[i] = 0;
+      }
+      lastCollisionBeat = 0;
+   }
+
+
+   // Advance the music to a beat, or to its end if sooner, skipping quiet
+   // beats.  Collisions and sound triggers are added to the statistics;
+   // the music's collisions and sound play flags are those of the beat
+   // reached.  Returns the beat reached.
+   public int advance(int toBeat)
+   {
+      int i, e, c, n;
+
+      if ((music.finisBeat != -1) && (toBeat > music.finisBeat))
+      {
+         toBeat = music.finisBeat;
+      }
+      n        = music.spheres.count;
+      lastBeat = -1;
+      music.buildStringIndex();
+      while (music.beat < toBeat)
+      {
+         // Step every beat while collisions are dense.
+         if (denseBeats > 0)
+         {
+            music.step();
+            denseBeats--;
+            lastBeat       = music.beat;
+            lastCollisions = music.collisions;
+            lastSounds     = music.playSounds;
+            addStatistics();
+            continue;
+         }
+         if (!valid || (validBeat != music.beat) || (validCount != n))
+         {
+            reset();
+         }
+
+         // Next possible collision and checkpoint.
+         e = (n > 0 ? eventBeat[heap[0]] : Integer.MAX_VALUE);
+         c = music.timeline.interval;
+         c = (int)Math.min(((long)(music.beat / c) + 1L) * c, (long)Integer.MAX_VALUE);
+         if ((e > toBeat) && (c > toBeat))
+         {
+            music.beat = toBeat;
+         }
+         else if (c < e)
+         {
+            music.beat = c;
+            update(c);
+            music.timeline.record(music);
+         }
+         else
+         {
+            checkBeats += e - music.beat;
+            checkEvents++;
+            play(e);
+            checkActive += numActive;
+            addStatistics();
+            if ((e % music.timeline.interval) == 0)
+            {
+               update(e);
+               music.timeline.record(music);
+            }
+            if (checkEvents == DENSE_CHECK)
+            {
+               if (checkActive >= (4 * checkBeats))
+               {
+                  update(e);
+                  valid      = false;
+                  denseBeats = DENSE_BEATS;
+               }
+               checkEvents = checkBeats = checkActive = 0;
+            }
+         }
+         validBeat = music.beat;
+      }
+      if (valid && (validBeat == music.beat))
+      {
+         update(music.beat);
+      }
+
+      // Collisions of the beat reached; if it was not played, end it
+      // without events, clearing the sounds.
+      if (lastBeat != music.beat)
+      {
+         lastCollisions = 0;
+         music.collisionEvents.endBeat(music.beat);
+      }
+      music.collisions = lastCollisions;
+      return(music.beat);
+   }
+
+
+   // Play a beat on which the spheres bounded at it might collide.
+   void play(int beat)
+   {
+      int             i, j, k, m, high, low;
+      long            f, sounds;
+      SphereStore     spheres;
+      CollisionEvents events;
+
+      spheres = music.spheres;
+
+      // Take the spheres bounded at this beat, up to date before it.
+      numActive = 0;
+      while ((validCount > 0) && (eventBeat[heap[0]] == beat))
+      {
+         i                   = heap[0];
+         active[numActive++] = i;
+         eventBeat[i]        = Integer.MAX_VALUE;
+         siftDown(0, validCount);
+         update(i, beat - 1);
+      }
+
+      // Walls and strings.
+      sounds         = 0L;
+      lastCollisions = 0;
+      events         = music.collisionEvents;
+      events.beat    = beat;
+      for (k = 0; k < numActive; k++)
+      {
+         f             = music.bounceOffWallsAndStrings(active[k], events);
+         activeFlag[k] = f;
+         activeHigh[k] = activeLow[k] = -1;
+         sounds       |= f & Music.SOUND_MASK;
+         if (f != 0L)
+         {
+            lastCollisions++;
+         }
+      }
+
+      // Spheres: only those bounded at this beat can meet.
+      for (k = 0; k < numActive; k++)
+      {
+         for (m = k + 1; m < numActive; m++)
+         {
+            i = Math.min(active[k], active[m]);
+            j = Math.max(active[k], active[m]);
+            if (!music.collides(i, j)) { continue; }
+            lastCollisions++;
+            sounds |= Music.sound(spheres.paletteIndex[i]) |
+                      Music.sound(spheres.paletteIndex[j]);
+            events.add(CollisionEvents.SPHERE, i, j, spheres.paletteIndex[i],
+                       spheres.paletteIndex[j]);
+            if (active[k] == i)
+            {
+               activeHigh[k] = Math.max(activeHigh[k], j);
+               activeLow[m]  = Math.max(activeLow[m], i);
+            }
+            else
+            {
+               activeHigh[m] = Math.max(activeHigh[m], j);
+               activeLow[k]  = Math.max(activeLow[k], i);
+            }
+         }
+      }
+
+      // Resolve as the serial step would: the last later colliding sphere,
+      // else wall and string bounces, else the last earlier colliding sphere.
+      for (k = 0; k < numActive; k++)
+      {
+         i    = active[k];
+         f    = activeFlag[k];
+         high = activeHigh[k];
+         low  = activeLow[k];
+         if (high != -1)
+         {
+            activeDx[k] = spheres.dx[high];
+            activeDy[k] = spheres.dy[high];
+         }
+         else
+         {
+            if ((f & Music.BOUNCE_X) != 0L)
+            {
+               activeDx[k] = -spheres.dx[i];
+            }
+            else
+            {
+               activeDx[k] = (low != -1 ? spheres.dx[low] : spheres.dx[i]);
+            }
+            if ((f & Music.BOUNCE_Y) != 0L)
+            {
+               activeDy[k] = -spheres.dy[i];
+            }
+            else
+            {
+               activeDy[k] = (low != -1 ? spheres.dy[low] : spheres.dy[i]);
+            }
+         }
+      }
+
+      // Move, then bound again.
+      for (k = 0; k < numActive; k++)
+      {
+         i              = active[k];
+         spheres.dx[i]  = activeDx[k];
+         spheres.dy[i]  = activeDy[k];
+         spheres.x[i]  += spheres.dx[i];
+         spheres.y[i]  += spheres.dy[i];
+         baseBeat[i]    = beat;
+         setSteps(i);
+      }
+      music.beat = beat;
+      for (k = 0; k < numActive; k++)
+      {
+         i = active[k];
+         setEventBeat(i, bound(i, true));
+      }
+      lastBeat   = beat;
+      lastSounds = sounds;
+      music.resting.invalidate();
+      events.endBeat(beat);
+   }
+
+
+   // Add the last beat played to the statistics.
+   void addStatistics()
+   {
+      int i;
+
+      collisions += lastCollisions;
+      if (lastCollisions > 0)
+      {
+         lastCollisionBeat = lastBeat;
+      }
+      for (i = 0; i < Music.MAX_SOUND_COLOR; i++)
+      {
+         if (((lastSounds >>> i) & 1L) != 0L)
+         {
+            triggers[i]++;
+         }
+      }
+   }
+
+
+   // Bound all spheres.
+   void reset()
+   {
+      int i, n;
+
+      n = music.spheres.count;
+      if (eventBeat.length < n)
+      {
+         baseBeat   = new int[n];
+         stepX      = new int[n];
+         stepY      = new int[n];
+         eventBeat  = new int[n];
+         heap       = new int[n];
+         heapIndex  = new int[n];
+         active     = new int[n];
+         activeFlag = new long[n];
+         activeHigh = new int[n];
+         activeLow  = new int[n];
+         activeDx   = new double[n];
+         activeDy   = new double[n];
+      }
+      for (i = 0; i < n; i++)
+      {
+         baseBeat[i] = music.beat;
+         setSteps(i);
+      }
+      for (i = 0; i < n; i++)
+      {
+         eventBeat[i] = bound(i, false);
+         heap[i]      = i;
+         heapIndex[i] = i;
+      }
+      for (i = (n / 2) - 1; i >= 0; i--)
+      {
+         siftDown(i, n);
+      }
+      valid       = true;
+      validBeat   = music.beat;
+      validCount  = n;
+      checkEvents = checkBeats = checkActive = 0;
+   }
+
+
+   // Bring all sphere positions up to date at a beat.
+   void update(int beat)
+   {
+      int i;
+
+      for (i = 0; i < validCount; i++)
+      {
+         update(i, beat);
+      }
+   }
+
+
+   // Bring a sphere's position up to date at a beat.
+   void update(int i, int beat)
+   {
+      int t;
+
+      t                   = beat - baseBeat[i];
+      music.spheres.x[i] += t * stepX[i];
+      music.spheres.y[i] += t * stepY[i];
+      baseBeat[i]         = beat;
+   }
+
+
+   // Set the beat steps of a sphere's velocity.
+   void setSteps(int i)
+   {
+      stepX[i] = (int)Math.floor(music.spheres.dx[i]);
+      stepY[i] = (int)Math.floor(music.spheres.dy[i]);
+   }
+
+
+   // Lower bound on the next beat on which sphere i might collide.  The
+   // sphere must be up to date at the music's beat.  Optionally brings
+   // other spheres' bounds down to their next possible collision with it.
+   int bound(int i, boolean lowerOthers)
+   {
+      int          j, k, r, x, y, sx, sy, w, h, now;
+      long         t, u, d, xj, yj;
+      double       dx, dy;
+      SphereStore  spheres;
+      StringSprite s;
+
+      spheres = music.spheres;
+      now     = music.beat;
+      x       = spheres.x[i];
+      y       = spheres.y[i];
+      dx      = spheres.dx[i];
+      dy      = spheres.dy[i];
+      r       = spheres.radius[i];
+      sx      = stepX[i];
+      sy      = stepY[i];
+      w       = music.size.width;
+      h       = music.size.height;
+
+      // Motion must be linear; if not, play the next beat.
+      if (((dx - sx) > MAX_FRACTION) || ((dy - sy) > MAX_FRACTION))
+      {
+         t = 0;
+      }
+      else
+      {
+         t = Math.min(axisBreak(x, sx), axisBreak(y, sy));
+      }
+
+      // Walls.
+      if (dx > 0.0)
+      {
+         inside(x, sx, w - r, NEVER);
+         t = Math.min(t, enter);
+      }
+      else if (dx < 0.0)
+      {
+         inside(x, sx, -NEVER, r);
+         t = Math.min(t, enter);
+      }
+      if (dy > 0.0)
+      {
+         inside(y, sy, h - r, NEVER);
+         t = Math.min(t, enter);
+      }
+      else if (dy < 0.0)
+      {
+         inside(y, sy, -NEVER, r);
+         t = Math.min(t, enter);
+      }
+
+      // Strings.
+      for (k = 0; k < music.numStrings && t > 0; k++)
+      {
+         s = music.strings[k];
+         if (s.x1 == s.x2)
+         {
+            t = Math.min(t, boxEntry(x, sx, s.x1 - r - StringIndex.END_REACH,
+                                     s.x1 + r + StringIndex.END_REACH,
+                                     y, sy, Math.min(s.y1, s.y2) - r - StringIndex.END_REACH,
+                                     Math.max(s.y1, s.y2) + r + StringIndex.END_REACH));
+         }
+         else
+         {
+            t = Math.min(t, boxEntry(x, sx, Math.min(s.x1, s.x2) - r, Math.max(s.x1, s.x2) + r,
+                                     y, sy, Math.min(s.y1, s.y2) - r - StringIndex.END_REACH,
+                                     Math.max(s.y1, s.y2) + r + StringIndex.END_REACH));
+         }
+      }
+
+      // Spheres, where they are now.
+      for (j = 0; j < spheres.count && (t > 0 || lowerOthers); j++)
+      {
+         if (j == i) { continue; }
+         xj = spheres.x[j] + ((long)(now - baseBeat[j]) * stepX[j]);
+         yj = spheres.y[j] + ((long)(now - baseBeat[j]) * stepY[j]);
+         d  = r + spheres.radius[j];
+         u  = boxEntry(x - xj, sx - stepX[j], -d, d, y - yj, sy - stepY[j], -d, d);
+         t  = Math.min(t, u);
+         if (lowerOthers && (u < NEVER) && ((now + 1 + u) < eventBeat[j]))
+         {
+            setEventBeat(j, (int)(now + 1 + u));
+         }
+      }
+      return((int)Math.min(now + 1 + t, (long)Integer.MAX_VALUE));
+   }
+
+
+   // First beat t >= 0 on which a linear motion along an axis stops being
+   // exact: the position after it would be negative or out of range.
+   long axisBreak(int p, int s)
+   {
+      long t;
+
+      inside(p, s, -NEVER, -1L - s);
+      t = enter;
+      inside(p, s, MAX_COORD, NEVER);
+      return(Math.min(t, enter));
+   }
+
+
+   // First beat t >= 0 on which a linear motion is inside a box, or NEVER.
+   long boxEntry(long px, long sx, long xlo, long xhi, long py, long sy, long ylo, long yhi)
+   {
+      long e, l;
+
+      inside(px, sx, xlo, xhi);
+      e = enter;
+      l = leave;
+      inside(py, sy, ylo, yhi);
+      e = Math.max(e, enter);
+      l = Math.min(l, leave);
+      return(e <= l ? e : NEVER);
+   }
+
+
+   // Set [enter, leave] to the beats t >= 0 on which lo <= p + t * s <= hi,
+   // with enter = NEVER if there are none.
+   void inside(long p, long s, long lo, long hi)
+   {
+      if (s == 0)
+      {
+         if ((lo <= p) && (p <= hi))
+         {
+            enter = 0;
+            leave = NEVER;
+         }
+         else
+         {
+            enter = NEVER;
+            leave = -1;
+         }
+         return;
+      }
+      if (s > 0)
+      {
+         enter = -Math.floorDiv(p - lo, s);
+         leave = Math.floorDiv(hi - p, s);
+      }
+      else
+      {
+         enter = -Math.floorDiv(hi - p, -s);
+         leave = Math.floorDiv(p - lo, -s);
+      }
+      enter = Math.max(enter, 0);
+      if (enter > leave)
+      {
+         enter = NEVER;
+      }
+   }
+
+
+   // Set the event beat of a sphere, keeping the heap in order.
+   void setEventBeat(int i, int b)
+   {
+      eventBeat[i] = b;
+      siftUp(heapIndex[i]);
+      siftDown(heapIndex[i], validCount);
+   }
+
+
+   void siftUp(int k)
+   {
+      int i, p;
+
+      i = heap[k];
+      while (k > 0)
+      {
+         p = (k - 1) / 2;
+         if (eventBeat[heap[p]] <= eventBeat[i]) { break; }
+         heap[k]            = heap[p];
+         heapIndex[heap[k]] = k;
+         k                  = p;
+      }
+      heap[k]      = i;
+      heapIndex[i] = k;
+   }
+
+
+   void siftDown(int k, int n)
+   {
+      int i, c;
+
+      i = heap[k];
+      while ((c = (2 * k) + 1) < n)
+      {
+         if (((c + 1) < n) && (eventBeat[heap[c + 1]] < eventBeat[heap[c]]))
+         {
+            c++;
+         }
+         if (eventBeat[i] <= eventBeat[heap[c]]) { break; }
+         heap[k]            = heap[c];
+         heapIndex[heap[k]] = k;
+         k                  = c;
+      }
+      heap[k]      = i;
+      heapIndex[i] = k;
+   }
+}
@@ -0,0 +1,128 @@
+/*
+ *
+ * Music of the Spheres fixed-point motion.
+ *
+ * Description:
+ *
+ * Sphere positions are whole pixels and velocities doubles, and a move
+ * truncates x + dx, so the fraction of a velocity is lost every beat and
+ * collision distances go through floating point.  In fixed-point mode
+ * (Music.fixedPoint) positions and velocities are instead Q16.16 numbers,
+ * whole pixels with FRACTION_BITS bits of fraction, and the motion and
+ * sphere collision arithmetic is done in integers, so that the music is
+ * bit-exact whatever the JVM, engine or thread count.  A position is its
+ * whole pixel in SphereStore.x, y and its fraction in fracX, fracY.
+ *
+ * Rounding policy:
+ *
+ * 1. A velocity is converted to fixed point by rounding to the nearest
+ *    1/ONE of a pixel, halves away from zero.  Velocities are converted
+ *    when loaded, and when used after being set by the composer, and are
+ *    stored as doubles holding the fixed-point value exactly, so that they
+ *    convert back and are saved in .dat files without loss.
+ * 2. A move adds the velocity to the position exactly.
+ * 3. Wall, string and collision checks use the whole pixel of a position,
+ *    its floor.  The wall and string checks are the same as in the
+ *    floating-point mode, being exact on whole pixels.
+ * 4. Spheres collide when their whole pixels are no further apart than
+ *    the sum of their radii, and the squared distance of their exact
+ *    positions after the move is less than before it.
+ *
+ */
+
+// Fixed-point motion class.
+public class FixedPoint
+{
+   // Q16.16 format.
+   static final int  FRACTION_BITS = 16;
+   static final int  ONE           = 1 << FRACTION_BITS;
+   static final long FRACTION_MASK = ONE - 1;
+
+   // Velocity to fixed point.
+   public static int toFixed(double v)
+   {
+      if (v >= 0.0)
+      {
+         return((int)Math.floor((v * (double)ONE) + 0.5));
+      }
+      return(-(int)Math.floor((-v * (double)ONE) + 0.5));
+   }
+
+
+   // Fixed-point velocity to double, exactly.
+   public static double toDouble(int v)
+   {
+      return((double)v / (double)ONE);
+   }
+
+
+   // Round a velocity to fixed point, as a double.
+   public static double quantize(double v)
+   {
+      return(toDouble(toFixed(v)));
+   }
+
+
+   // Round the velocities of spheres from..to-1 to fixed point.
+   public static void quantize(SphereStore spheres, int from, int to)
+   {
+      int i;
+
+      for (i = from; i < to; i++)
+      {
+         spheres.dx[i] = quantize(spheres.dx[i]);
+         spheres.dy[i] = quantize(spheres.dy[i]);
+      }
+   }
+
+
+   // Fixed-point position of a whole pixel and fraction.
+   static long position(int p, int fraction)
+   {
+      return(((long)p << FRACTION_BITS) + fraction);
+   }
+
+
+   // Spheres i and j collide while moving toward each other?
+   // The result is the same with i and j exchanged.
+   static boolean collides(SphereStore spheres, int i, int j)
+   {
+      long d, xd, yd, nxd, nyd;
+
+      d  = spheres.radius[i] + spheres.radius[j];
+      xd = spheres.x[i] - spheres.x[j];
+      if (Math.abs(xd) > d) { return(false); }
+      yd = spheres.y[i] - spheres.y[j];
+      if (Math.abs(yd) > d) { return(false); }
+      if (((xd * xd) + (yd * yd)) > (d * d)) { return(false); }
+
+      // Exact distances before and after the move.
+      xd  = position(spheres.x[i], spheres.fracX[i]) - position(spheres.x[j], spheres.fracX[j]);
+      yd  = position(spheres.y[i], spheres.fracY[i]) - position(spheres.y[j], spheres.fracY[j]);
+      nxd = xd + toFixed(spheres.dx[i]) - toFixed(spheres.dx[j]);
+      nyd = yd + toFixed(spheres.dy[i]) - toFixed(spheres.dy[j]);
+      return(((nxd * nxd) + (nyd * nyd)) < ((xd * xd) + (yd * yd)));
+   }
+
+
+   // Commit the next velocities of spheres from..to-1 and move them.
+   static void move(SphereStore spheres, int from, int to)
+   {
+      int  i, vx, vy;
+      long px, py;
+
+      for (i = from; i < to; i++)
+      {
+         vx               = toFixed(spheres.ndx[i]);
+         vy               = toFixed(spheres.ndy[i]);
+         spheres.dx[i]    = toDouble(vx);
+         spheres.dy[i]    = toDouble(vy);
+         px               = position(spheres.x[i], spheres.fracX[i]) + vx;
+         py               = position(spheres.y[i], spheres.fracY[i]) + vy;
+         spheres.x[i]     = (int)(px >> FRACTION_BITS);
+         spheres.y[i]     = (int)(py >> FRACTION_BITS);
+         spheres.fracX[i] = (int)(px & FRACTION_MASK);
+         spheres.fracY[i] = (int)(py & FRACTION_MASK);
+      }
+   }
+}
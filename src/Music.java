@@ -13,17 +13,20 @@ import java.awt.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.applet.Applet;
 import java.applet.AudioClip;
+import java.math.BigDecimal;
 
 // SphereSprite defines a sphere.
+// Spheres in a composition are kept in a SphereStore; a sprite holds a
+// single sphere's values while it is being loaded or edited.
 class SphereSprite
 {
    // Data.
    int    radius;       // Radius.
    int    x, y;         // Position.
    double dx, dy;       // Velocity.
-   double ndx, ndy;
    int    paletteIndex; // Musical sound and color.
 
    // Constructor.
@@ -34,8 +37,6 @@ class SphereSprite
       this.y            = 0;
       this.dx           = 0.0;
       this.dy           = 0.0;
-      this.ndx          = 0.0;
-      this.ndy          = 0.0;
       this.paletteIndex = -1;
    }
 }
@@ -60,15 +61,22 @@ class StringSprite
 public class Music
 {
    // Parameters.
-   static final int MAX_SPHERES       = 50; // Spheres.
-   static final int MIN_SPHERE_RADIUS = 20;
-   static final int MAX_SPHERE_RADIUS = 40;
-   static final int MAX_SPHERE_SPEED  = 12;
-   static final int MAX_STRINGS       = 50; // Strings.
-   static final int MIN_STRING_SIZE   = 20;
-   static final int MAX_STRING_SIZE   = 100;
-   static final int MAX_SOUND_COLOR   = 40;   // Sounds/colors.
-   static final int MAX_NAME_LENGTH   = 100;
+   static final int MIN_SPHERE_RADIUS  = 20; // Spheres.
+   static final int MAX_SPHERE_RADIUS  = 40;
+   static final int MAX_SPHERE_SPEED   = 12;
+   static final int MIN_STRING_SIZE    = 20; // Strings.
+   static final int MAX_STRING_SIZE    = 100;
+   static final int MAX_SOUND_COLOR    = 40;   // Sounds/colors.
+   static final int MAX_NAME_LENGTH    = 100;
+   static final int INITIAL_CAPACITY   = 16;   // Sphere and string storage.
+   static final int PARALLEL_THRESHOLD = 1000; // Spheres to step in parallel.
+
+   // Bounce results: sounds in the low MAX_SOUND_COLOR bits, and
+   // velocity components to reverse.
+   static final long SOUND_MASK = (1L << MAX_SOUND_COLOR) - 1L;
+   static final long BOUNCE_X   = 1L << 62;
+   static final long BOUNCE_Y   = 1L << 63;
+   static final long ON_BODY    = 1L << 61; // String bounce on the body, not an end cap.
 
    // Music name.
    String name = "";
@@ -80,21 +88,80 @@ public class Music
    Dimension size;
 
    // Spheres and strings.
-   SphereSprite[] spheres         = new SphereSprite[MAX_SPHERES + 1];
-   StringSprite[] strings         = new StringSprite[MAX_STRINGS + 1];
-   SphereSprite[] spheresRewindTo = new SphereSprite[MAX_SPHERES + 1];
-   boolean[] playSounds           = new boolean[MAX_SOUND_COLOR];
+   // Storage grows on demand; only the first count entries are in use.
+   SphereStore    spheres         = new SphereStore();
+   StringSprite[] strings         = new StringSprite[INITIAL_CAPACITY];
+   int            numStrings      = 0;
+   SphereStore    spheresRewindTo = new SphereStore();
+
+   // Sounds to play for the last beat: bit i for palette index i.
+   long playSounds = 0L;
+
+   // Strings by position, rebuilt when strings change.
+   StringIndex stringIndex      = new StringIndex();
+   boolean     stringIndexValid = false;
+
+   // Kernel generated for the strings and size, if generateKernel is set
+   // (before loading, or followed by stringsChanged()).  It is generated
+   // on a worker thread when the strings are indexed, as when the music
+   // is loaded or its rewind point set, and the generic checks are used
+   // until it is ready.
+   boolean                            generateKernel    = false;
+   CompositionKernel                  compositionKernel = null;
+   volatile Future<CompositionKernel> kernelFuture      = null;
+
+   // Fixed-point motion, if fixedPoint is set (before loading).
+   boolean fixedPoint = false;
+
+   // Sphere collision broadphase.
+   // Brute force checks every pair and is kept as the reference.
+   SphereGrid grid       = new SphereGrid();
+   boolean    bruteForce = false;
+
+   // Resting spheres, stepped apart from the moving ones.
+   RestingSpheres resting = new RestingSpheres();
+
+   // Parallel stepping of large scenes.
+   ForkJoinPool pool              = ForkJoinPool.commonPool();
+   int          parallelThreshold = PARALLEL_THRESHOLD; // Spheres.
+
+   // Checkpoints for seeking.
+   Timeline timeline = new Timeline(Timeline.DEFAULT_BUDGET);
+
+   // Per-sphere arithmetic, in vector lanes if available.
+   SphereKernel kernel      = SphereKernel.DEFAULT;
+   long[]       wallBounces = new long[0];
+
+   // Collision events of each beat, consumed by the sound dispatch.
+   CollisionEvents collisionEvents = new CollisionEvents(CollisionEvents.DEFAULT_CAPACITY);
+
+   // Event engine for skipping quiet beats.
+   EventEngine events = new EventEngine(this);
 
    // State.
-   int     beat      = 0;
-   int     finisBeat = 0;
-   boolean mute      = false;
-   boolean fileError = false;
+   int     beat       = 0;
+   int     collisions = 0; // Wall and string bounces plus sphere collisions in the last beat.
+   int     finisBeat  = 0;
+   boolean mute       = false;
+   boolean fileError  = false;
+
+   // Mixer playing the sounds, or null to play the palette's audio clips.
+   SoundMixer mixer = null;
+
+   // Loop found by a period detector: from beat loopStart on, the music
+   // repeats every loopPeriod beats.  -1 if not known.
+   int loopStart  = -1;
+   int loopPeriod = -1;
+
+   // Composition version, counted up when the music is cleared or
+   // edited, so that a search on a copy can tell if its result applies.
+   int version = 0;
 
    // Constructor.
    public Music(Dimension d)
    {
       size = new Dimension(d);
+      collisionEvents.addConsumer(new SoundDispatch(this));
       clear();
    }
 
@@ -102,160 +169,255 @@ public class Music
    // Music movement.
    public void movement()
    {
-      int     i, j, x, y, r;
-      double  dx, dy, xd, yd, d1, d2;
-      boolean b;
+      if (step())
+      {
+         playBounceSounds();
+      }
+   }
 
-      // End of composition?
-      if ((finisBeat != -1) && (beat >= finisBeat)) { return; }
-      beat++;
 
-      // Clear sound play flags.
-      for (i = 0; i < MAX_SOUND_COLOR; i++)
+   // Seek to a beat as fast as possible, without playing sounds.
+   // Starts from the nearest timeline checkpoint, or the rewind point,
+   // when that is closer than the current beat, and skips quiet beats
+   // with the event engine, except in fixed-point mode.  Past the end of
+   // a known loop, seeks to the same state in the first pass of the loop.
+   // Returns the beat reached, which is short of the target if the
+   // composition ends first.
+   public int seek(int toBeat)
+   {
+      int k, b;
+
+      if ((finisBeat != -1) && (toBeat > finisBeat))
       {
-         playSounds[i] = false;
+         toBeat = finisBeat;
       }
-
-      // Check for collisions.
-      for (i = 0; spheres[i] != null; i++)
+      if (loopBeat(beat) != beat)
       {
-         spheres[i].ndx = spheres[i].dx;
-         spheres[i].ndy = spheres[i].dy;
+         beat = loopBeat(beat);
+         events.invalidate();
       }
-      for (i = 0; spheres[i] != null; i++)
+      b = loopBeat(toBeat);
+      k = timeline.checkpointAtOrBefore(b);
+      if ((b < beat) || ((k != -1) && (timeline.beats[k] > beat)))
       {
-         x  = spheres[i].x;
-         y  = spheres[i].y;
-         dx = spheres[i].dx;
-         dy = spheres[i].dy;
-         r  = spheres[i].radius;
-
-         // Bounce spheres off of walls.
-         b = false;
-         if (((x >= (size.width - r)) && (dx > 0.0)) ||
-             ((x <= r) && (dx < 0.0)))
+         if (!timeline.restore(this, b))
          {
-            spheres[i].ndx = -dx;
-            b = true;
+            rewind();
          }
-         if (((y >= (size.height - r)) && (dy > 0.0)) ||
-             ((y <= r) && (dy < 0.0)))
+      }
+      if (!fixedPoint && (spheres.count <= EventEngine.MAX_SPHERES))
+      {
+         events.advance(b);
+      }
+      else
+      {
+         while (beat < b && step()) {}
+      }
+      if ((beat == b) && (b != toBeat))
+      {
+         beat = toBeat;
+         events.invalidate();
+      }
+      return(beat);
+   }
+
+
+   // Set the loop found by a period detector.
+   public void setLoop(int start, int period)
+   {
+      loopStart  = start;
+      loopPeriod = period;
+   }
+
+
+   // Beat in the first pass of the loop with the same state as a beat.
+   public int loopBeat(int b)
+   {
+      if ((loopStart == -1) || (b < loopStart)) { return(b); }
+      return(loopStart + ((b - loopStart) % loopPeriod));
+   }
+
+
+   // Advance the music one beat, adding its collision events, which set
+   // the sound play mask.  Returns false at the end of the composition.
+   public boolean step()
+   {
+      int      i, j, k, m, n;
+      long     f;
+      boolean  atRest;
+      int[]    sx, sy;
+      double[] sdx, sdy, sndx, sndy;
+
+      // End of composition?
+      if ((finisBeat != -1) && (beat >= finisBeat)) { return(false); }
+      beat++;
+
+      // Check for collisions.
+      n    = spheres.count;
+      sx   = spheres.x;
+      sy   = spheres.y;
+      sdx  = spheres.dx;
+      sdy  = spheres.dy;
+      sndx = spheres.ndx;
+      sndy = spheres.ndy;
+      buildStringIndex();
+      collisionEvents.beat = beat;
+      atRest = stepsAtRest(n);
+      if (atRest)
+      {
+         resting.resolve(this);
+      }
+      else if (stepsInParallel(n))
+      {
+         grid.build(sx, sy, n);
+         ParallelStep.resolve(this, pool);
+      }
+      else
+      {
+         if (!bruteForce)
          {
-            spheres[i].ndy = -dy;
-            b = true;
+            grid.build(sx, sy, n);
          }
-         if (b && (spheres[i].paletteIndex != -1))
+         collisions = 0;
+         System.arraycopy(sdx, 0, sndx, 0, n);
+         System.arraycopy(sdy, 0, sndy, 0, n);
+         if (wallBounces.length < n)
          {
-            playSounds[spheres[i].paletteIndex] = true;
+            wallBounces = new long[sx.length];
          }
-
-         // Bounce spheres on strings.
-         for (j = 0; strings[j] != null; j++)
+         kernel.wallBounces(spheres, 0, n, size.width, size.height, wallBounces);
+         for (i = 0; i < n; i++)
          {
-            b = false;
-            if (strings[j].x1 == strings[j].x2)
+            // Bounce spheres off of walls and strings.
+            f = bounceOffWalls(i, wallBounces[i], collisionEvents) |
+                bounceOffStrings(i, collisionEvents);
+            if ((f & BOUNCE_X) != 0L)
             {
-               if (bouncesOnString(i, strings[j].x1, strings[j].y1,
-                                   strings[j].x2, strings[j].y2))
-               {
-                  spheres[i].ndx = -dx;
-                  b = true;
-               }
-               if ((dy > 0.0) && bouncesOnString(i, strings[j].x1 - 2,
-                                                 strings[j].y1, strings[j].x1 + 2, strings[j].y1))
-               {
-                  spheres[i].ndy = -dy;
-                  b = true;
-               }
-               if ((dy < 0.0) && bouncesOnString(i, strings[j].x2 - 2,
-                                                 strings[j].y2, strings[j].x2 + 2, strings[j].y2))
-               {
-                  spheres[i].ndy = -dy;
-                  b = true;
-               }
+               sndx[i] = -sdx[i];
             }
-            else         // horizontal
+            if ((f & BOUNCE_Y) != 0L)
             {
-               if (bouncesOnString(i, strings[j].x1, strings[j].y1,
-                                   strings[j].x2, strings[j].y2))
-               {
-                  spheres[i].ndy = -dy;
-                  b = true;
-               }
-               if ((dx > 0.0) && bouncesOnString(i, strings[j].x1,
-                                                 strings[j].y1 - 2, strings[j].x1, strings[j].y1 + 2))
-               {
-                  spheres[i].ndx = -dx;
-                  b = true;
-               }
-               if ((dx < 0.0) && bouncesOnString(i, strings[j].x2,
-                                                 strings[j].y2 - 2, strings[j].x2, strings[j].y2 + 2))
-               {
-                  spheres[i].ndx = -dx;
-                  b = true;
-               }
+               sndy[i] = -sdy[i];
             }
-            if (b)
+            if (f != 0L)
             {
-               if (spheres[i].paletteIndex != -1)
-               {
-                  playSounds[spheres[i].paletteIndex] = true;
-               }
-               if (strings[j].paletteIndex != -1)
+               collisions++;
+            }
+
+            // Bounce colliding spheres which are moving toward each other.
+            // Pairs are checked in ascending order either way, so both
+            // paths resolve multiple collisions identically.
+            if (bruteForce)
+            {
+               for (j = i + 1; j < n; j++)
                {
-                  playSounds[strings[j].paletteIndex] = true;
+                  bounceSpheres(i, j);
                }
             }
-         }
-
-         // Bounce colliding spheres which are moving toward each other.
-         for (j = i + 1; spheres[j] != null; j++)
-         {
-            d1 = (double)(r + spheres[j].radius);
-            xd = (double)(x - spheres[j].x);
-            if (Math.abs(xd) > d1) { continue; }
-            yd = (double)(y - spheres[j].y);
-            if (Math.abs(yd) > d1) { continue; }
-            d2 = Math.sqrt((xd * xd) + (yd * yd));
-            if (d2 <= d1)
+            else
             {
-               xd = (x + dx) - (spheres[j].x + spheres[j].dx);
-               yd = (y + dy) - (spheres[j].y + spheres[j].dy);
-               d1 = (int)Math.sqrt((double)((xd * xd) + (yd * yd)));
-               if (d1 < d2)
+               for (k = 0, m = grid.query(i, sx[i], sy[i]); k < m; k++)
                {
-                  spheres[i].ndx = spheres[j].dx;
-                  spheres[i].ndy = spheres[j].dy;
-                  spheres[j].ndx = dx;
-                  spheres[j].ndy = dy;
-                  if (spheres[i].paletteIndex != -1)
-                  {
-                     playSounds[spheres[i].paletteIndex] = true;
-                  }
-                  if (spheres[j].paletteIndex != -1)
-                  {
-                     playSounds[spheres[j].paletteIndex] = true;
-                  }
+                  bounceSpheres(i, grid.candidates[k]);
                }
             }
          }
       }
 
-      // Move spheres.
-      for (i = 0; spheres[i] != null; i++)
+      // Give the beat's events to their consumers.
+      collisionEvents.endBeat(beat);
+
+      // Move spheres.  Those stepped with all spheres may have come to rest.
+      if (atRest)
+      {
+         resting.move(spheres);
+      }
+      else if (fixedPoint)
+      {
+         FixedPoint.move(spheres, 0, n);
+         resting.invalidate();
+      }
+      else
+      {
+         kernel.move(spheres, 0, n);
+         resting.invalidate();
+      }
+
+      // Checkpoint.
+      timeline.record(this);
+      return(true);
+   }
+
+
+   // Index strings, and start generating the composition kernel, if they
+   // have changed, else use the kernel once generated.
+   void buildStringIndex()
+   {
+      Future<CompositionKernel> f;
+
+      if (!stringIndexValid)
       {
-         spheres[i].dx = spheres[i].ndx;
-         spheres[i].dy = spheres[i].ndy;
-         spheres[i].x += spheres[i].dx;
-         spheres[i].y += spheres[i].dy;
+         stringIndex.build(strings, numStrings);
+         stringIndexValid  = true;
+         compositionKernel = null;
+         kernelFuture      = (generateKernel ? CompositionKernel.generateLater(this) : null);
       }
+      else if (((f = kernelFuture) != null) && f.isDone())
+      {
+         kernelFuture      = null;
+         compositionKernel = CompositionKernel.result(f);
+      }
+   }
+
+
+   // Index strings and wait for the composition kernel, if generating it.
+   public void awaitKernel()
+   {
+      Future<CompositionKernel> f;
+
+      buildStringIndex();
+      if ((f = kernelFuture) != null)
+      {
+         kernelFuture      = null;
+         compositionKernel = CompositionKernel.result(f);
+      }
+   }
+
+
+   // Step a scene of n spheres in parallel?
+   boolean stepsInParallel(int n)
+   {
+      return(!bruteForce && (n >= parallelThreshold) && (pool.getParallelism() > 1));
+   }
+
+
+   // Step a scene of n spheres apart from its resting spheres?  Large
+   // scenes do so only if they are mostly resting, else in parallel.
+   // Fixed-point motion steps all spheres together.
+   boolean stepsAtRest(int n)
+   {
+      if (bruteForce || fixedPoint || (resting.update(this) == 0)) { return(false); }
+      return(!stepsInParallel(n) || ((resting.numResting * 2) >= n));
+   }
+
+
+   // Play bounce sounds, scheduled at the beat's time if mixed.
+   public void playBounceSounds()
+   {
+      int  i;
+      long s;
 
-      // Play bounce sounds.
       if (!mute)
       {
-         for (i = 0; i < MAX_SOUND_COLOR && palette.soundClips[i] != null; i++)
+         if (mixer != null)
+         {
+            mixer.scheduleBeat(beat, playSounds);
+            return;
+         }
+         for (s = playSounds; s != 0L; s &= s - 1L)
          {
-            if (playSounds[i])
+            i = Long.numberOfTrailingZeros(s);
+            if (palette.soundClips[i] != null)
             {
                palette.soundClips[i].play();
             }
@@ -264,18 +426,206 @@ public class Music
    }
 
 
-   // Sphere bounces on string?
-   private boolean bouncesOnString(int i, int x1, int y1, int x2, int y2)
+   // Play the sound of a palette index, unless muted.
+   public void playSound(int paletteIndex)
+   {
+      if (mute || (paletteIndex == -1)) { return; }
+      if (mixer != null)
+      {
+         mixer.trigger(sound(paletteIndex));
+      }
+      else if (palette.soundClips[paletteIndex] != null)
+      {
+         palette.soundClips[paletteIndex].play();
+      }
+   }
+
+
+   // Check sphere i against the walls and strings, adding the collisions
+   // to the events.  Returns the sounds triggered, plus BOUNCE_X and
+   // BOUNCE_Y for velocity components to be reversed.  Reads only current
+   // positions and velocities.
+   long bounceOffWallsAndStrings(int i, CollisionEvents events)
+   {
+      if (compositionKernel != null)
+      {
+         return(bounceOffWalls(i, compositionKernel.wallBounce(spheres.x[i], spheres.y[i],
+                                                               spheres.radius[i],
+                                                               spheres.dx[i], spheres.dy[i]),
+                               events) |
+                compositionKernel.bounceOffStrings(this, i, events));
+      }
+      return(bounceOffWalls(i, SphereKernel.wallBounce(spheres.x[i], spheres.y[i],
+                                                       spheres.radius[i],
+                                                       spheres.dx[i], spheres.dy[i],
+                                                       size.width, size.height), events) |
+             bounceOffStrings(i, events));
+   }
+
+
+   // Sphere i bouncing off the walls, given its kernel wall bounce.
+   // Returns the bounce plus the sphere's sound, if any.
+   long bounceOffWalls(int i, long bounce, CollisionEvents events)
+   {
+      if (bounce == 0L) { return(0L); }
+      events.add(CollisionEvents.WALL, i, -1, spheres.paletteIndex[i], -1);
+      return(bounce | sound(spheres.paletteIndex[i]));
+   }
+
+
+   // Check sphere i against the strings within reach.
+   long bounceOffStrings(int i, CollisionEvents events)
+   {
+      int  k, x, y, r, reach;
+      long f;
+
+      if (compositionKernel != null)
+      {
+         return(compositionKernel.bounceOffStrings(this, i, events));
+      }
+      x = spheres.x[i];
+      y = spheres.y[i];
+      r = spheres.radius[i];
+      f = 0L;
+
+      // Strings within reach.
+      reach = r + StringIndex.END_REACH;
+      for (k = StringIndex.lowerBound(stringIndex.verticalX, stringIndex.numVertical, x - reach);
+           (k < stringIndex.numVertical) && (stringIndex.verticalX[k] <= (x + reach)); k++)
+      {
+         f |= bounceOnString(i, stringIndex.vertical[k], events);
+      }
+      for (k = StringIndex.lowerBound(stringIndex.horizontalLowY, stringIndex.numHorizontal,
+                                      y - reach - stringIndex.maxHorizontalSpan);
+           (k < stringIndex.numHorizontal) && (stringIndex.horizontalLowY[k] <= (y + reach)); k++)
+      {
+         if (stringIndex.horizontalHighY[k] >= (y - reach))
+         {
+            f |= bounceOnString(i, stringIndex.horizontal[k], events);
+         }
+      }
+      return(f);
+   }
+
+
+   // Check sphere i against string k, adding a collision to the events.
+   // Returns the sounds triggered, plus BOUNCE_X and BOUNCE_Y for velocity
+   // components to be reversed.
+   private long bounceOnString(int i, int k, CollisionEvents events)
+   {
+      StringSprite s;
+
+      s = strings[k];
+      return(stringHit(i, k, s.paletteIndex,
+                       stringBounce(spheres.x[i], spheres.y[i], spheres.radius[i],
+                                    spheres.dx[i], spheres.dy[i], s.x1, s.y1, s.x2, s.y2),
+                       events));
+   }
+
+
+   // Sphere i hitting string k, given its string bounce: adds the collision
+   // to the events and returns the bounce plus the sounds triggered.
+   long stringHit(int i, int k, int paletteIndex, long bounce, CollisionEvents events)
+   {
+      if (bounce == 0L) { return(0L); }
+      events.add((bounce & ON_BODY) != 0L ? CollisionEvents.STRING : CollisionEvents.STRING_END,
+                 i, k, spheres.paletteIndex[i], paletteIndex);
+      return((bounce & ~ON_BODY) | sound(spheres.paletteIndex[i]) | sound(paletteIndex));
+   }
+
+
+   // Bounce of a sphere at (x, y) with radius r and velocity (dx, dy) on the
+   // string from (x1, y1) to (x2, y2): BOUNCE_X and BOUNCE_Y for velocity
+   // components to be reversed, plus ON_BODY if it hit the body of the
+   // string rather than only an end cap.
+   static long stringBounce(int x, int y, int r, double dx, double dy,
+                            int x1, int y1, int x2, int y2)
+   {
+      long f;
+
+      if (x1 == x2)
+      {
+         f = (bouncesOnString(x, y, r, dx, dy, x1, y1, x2, y2) ? (BOUNCE_X | ON_BODY) : 0L);
+         if ((dy > 0.0) && bouncesOnString(x, y, r, dx, dy, x1 - 2, y1, x1 + 2, y1))
+         {
+            f |= BOUNCE_Y;
+         }
+         if ((dy < 0.0) && bouncesOnString(x, y, r, dx, dy, x2 - 2, y2, x2 + 2, y2))
+         {
+            f |= BOUNCE_Y;
+         }
+      }
+      else      // horizontal
+      {
+         f = (bouncesOnString(x, y, r, dx, dy, x1, y1, x2, y2) ? (BOUNCE_Y | ON_BODY) : 0L);
+         if ((dx > 0.0) && bouncesOnString(x, y, r, dx, dy, x1, y1 - 2, x1, y1 + 2))
+         {
+            f |= BOUNCE_X;
+         }
+         if ((dx < 0.0) && bouncesOnString(x, y, r, dx, dy, x2, y2 - 2, x2, y2 + 2))
+         {
+            f |= BOUNCE_X;
+         }
+      }
+      return(f);
+   }
+
+
+   // Bounce spheres i and j if they collide, adding the collision to the
+   // events.
+   private void bounceSpheres(int i, int j)
    {
-      int    x, y, r;
-      double dx, dy;
+      if (!collides(i, j)) { return; }
+      spheres.ndx[i] = spheres.dx[j];
+      spheres.ndy[i] = spheres.dy[j];
+      spheres.ndx[j] = spheres.dx[i];
+      spheres.ndy[j] = spheres.dy[i];
+      collisions++;
+      collisionEvents.add(CollisionEvents.SPHERE, i, j,
+                          spheres.paletteIndex[i], spheres.paletteIndex[j]);
+   }
+
+
+   // Spheres i and j collide while moving toward each other?
+   // The result is the same with i and j exchanged.
+   boolean collides(int i, int j)
+   {
+      int    x, y;
+      double dx, dy, xd, yd, d1, d2;
+
+      if (fixedPoint) { return(FixedPoint.collides(spheres, i, j)); }
+      x  = spheres.x[i];
+      y  = spheres.y[i];
+      dx = spheres.dx[i];
+      dy = spheres.dy[i];
+      d1 = (double)(spheres.radius[i] + spheres.radius[j]);
+      xd = (double)(x - spheres.x[j]);
+      if (Math.abs(xd) > d1) { return(false); }
+      yd = (double)(y - spheres.y[j]);
+      if (Math.abs(yd) > d1) { return(false); }
+      d2 = Math.sqrt((xd * xd) + (yd * yd));
+      if (d2 <= d1)
+      {
+         xd = (x + dx) - (spheres.x[j] + spheres.dx[j]);
+         yd = (y + dy) - (spheres.y[j] + spheres.dy[j]);
+         d1 = (int)Math.sqrt((double)((xd * xd) + (yd * yd)));
+         if (d1 < d2) { return(true); }
+      }
+      return(false);
+   }
 
-      x  = spheres[i].x;
-      dx = spheres[i].dx;
-      y  = spheres[i].y;
-      dy = spheres[i].dy;
-      r  = spheres[i].radius;
 
+   // Sound mask bit of a palette index.
+   static long sound(int paletteIndex)
+   {
+      return(paletteIndex != -1 ? (1L << paletteIndex) : 0L);
+   }
+
+
+   // Sphere at (x, y) with radius r and velocity (dx, dy) bounces on string?
+   static boolean bouncesOnString(int x, int y, int r, double dx, double dy,
+                                  int x1, int y1, int x2, int y2)
+   {
       if (x1 == x2)      // vertical?
       {
          if (((x <= x1) && (x >= (x1 - r)) && (dx >= 0.0)) ||
@@ -343,13 +693,13 @@ public class Music
 
 
    // Point-to-point distance.
-   double pointDist(int x1, int y1, int x2, int y2)
+   static double pointDist(int x1, int y1, int x2, int y2)
    {
       return(pointDist((double)x1, (double)y1, (double)x2, (double)y2));
    }
 
 
-   double pointDist(double x1, double y1, double x2, double y2)
+   static double pointDist(double x1, double y1, double x2, double y2)
    {
       double xd, yd;
 
@@ -362,50 +712,104 @@ public class Music
    // Clear music.
    public void clear()
    {
-      int i;
-
       // Clear music name.
       name = "";
 
       // Clear spheres and strings.
-      for (i = 0; i < MAX_SPHERES; i++)
-      {
-         spheres[i]         = null;
-         spheresRewindTo[i] = null;
-      }
-      for (i = 0; i < MAX_STRINGS; i++)
-      {
-         strings[i] = null;
-      }
-      for (i = 0; i < MAX_SOUND_COLOR; i++)
-      {
-         playSounds[i] = false;
-      }
-      beat      = 0;
+      spheres.clear();
+      spheresRewindTo.clear();
+      Arrays.fill(strings, null);
+      numStrings = 0;
+      stringsChanged();
+      timeline.clear();
+      playSounds = 0L;
+      beat       = 0;
       finisBeat = -1;
+      setLoop(-1, -1);
+      version++;
    }
 
 
    // Rewind music.
    public void rewind()
    {
-      int i;
+      spheres.copyMotionFrom(spheresRewindTo,
+                             Math.min(spheres.count, spheresRewindTo.count));
+      beat = 0;
+      events.invalidate();
+      resting.invalidate();
+   }
+
+
+   // Set the rewind point to the current spheres.
+   // This starts a new timeline.
+   public void setRewindPoint()
+   {
+      spheresRewindTo.copyFrom(spheres);
+      timeline.clear();
+      events.invalidate();
+      resting.invalidate();
+      setLoop(-1, -1);
+      buildStringIndex();
+   }
 
-      for (i = 0; spheres[i] != null; i++)
+
+   // Add string, returning its index.
+   public int addString(StringSprite string)
+   {
+      if (numStrings == strings.length)
       {
-         spheres[i].x  = spheresRewindTo[i].x;
-         spheres[i].y  = spheresRewindTo[i].y;
-         spheres[i].dx = spheresRewindTo[i].dx;
-         spheres[i].dy = spheresRewindTo[i].dy;
+         strings = Arrays.copyOf(strings, strings.length * 2);
       }
-      beat = 0;
+      strings[numStrings] = string;
+      stringsChanged();
+      return(numStrings++);
+   }
+
+
+   // Remove string.
+   public void removeString(int index)
+   {
+      numStrings--;
+      System.arraycopy(strings, index + 1, strings, index, numStrings - index);
+      strings[numStrings] = null;
+      stringsChanged();
+   }
+
+
+   // Strings have been added, removed or moved.
+   public void stringsChanged()
+   {
+      stringIndexValid  = false;
+      compositionKernel = null;
+      kernelFuture      = null;
+      events.invalidate();
+      resting.invalidate();
+   }
+
+
+   // Spheres or strings have been edited.  In fixed-point mode the
+   // spheres are put as a save and load would leave them, with whole
+   // pixel positions and fixed-point velocities, so that the composition
+   // replays the same as its saved file.
+   public void compositionChanged()
+   {
+      if (fixedPoint)
+      {
+         Arrays.fill(spheres.fracX, 0, spheres.count, 0);
+         Arrays.fill(spheres.fracY, 0, spheres.count, 0);
+         FixedPoint.quantize(spheres, 0, spheres.count);
+      }
+      stringsChanged();
+      setLoop(-1, -1);
+      version++;
    }
 
 
    // Load music.
    public String load(String musicString, URL baseURL)
    {
-      int             i, j, p, q;
+      int             i, j;
       String          s;
       BufferedReader  in;
       URL             u;
@@ -512,7 +916,7 @@ public class Music
             t = new StreamTokenizer(in);
             t.commentChar('#');
             t.eolIsSignificant(true);
-            i      = j = p = q = 0;
+            i      = j = 0;
             sphere = null;
             string = null;
             while (t.nextToken() != StreamTokenizer.TT_EOF)
@@ -610,15 +1014,7 @@ public class Music
                            fileError = true;
                            throw(new IOException());
                         }
-                        spheres[p]                      = sphere;
-                        spheresRewindTo[p]              = new SphereSprite();
-                        spheresRewindTo[p].radius       = spheres[p].radius;
-                        spheresRewindTo[p].x            = spheres[p].x;
-                        spheresRewindTo[p].y            = spheres[p].y;
-                        spheresRewindTo[p].dx           = spheres[p].dx;
-                        spheresRewindTo[p].dy           = spheres[p].dy;
-                        spheresRewindTo[p].paletteIndex = spheres[p].paletteIndex;
-                        p++;
+                        spheres.add(sphere);
                         sphere = null;
                         i      = 0;
                         break;
@@ -726,8 +1122,7 @@ public class Music
                            fileError = true;
                            throw(new IOException());
                         }
-                        strings[q] = string;
-                        q++;
+                        addString(string);
                         string = null;
                         i      = 0;
                         break;
@@ -751,24 +1146,10 @@ public class Music
                   s = new String(t.sval);
                   if (s.equals("sphere"))
                   {
-                     if (p >= MAX_SPHERES)
-                     {
-                        statusMessage = "Too many spheres defined in " + name +
-                                        " - maximum = " + MAX_SPHERES;
-                        fileError = true;
-                        throw(new IOException());
-                     }
                      sphere = new SphereSprite();
                   }
                   else if (s.equals("string"))
                   {
-                     if (q >= MAX_STRINGS)
-                     {
-                        statusMessage = "Too many strings defined in " + name +
-                                        " - maximum = " + MAX_STRINGS;
-                        fileError = true;
-                        throw(new IOException());
-                     }
                      string = new StringSprite();
                   }
                   else
@@ -815,6 +1196,11 @@ public class Music
       }
       else
       {
+         if (fixedPoint)
+         {
+            FixedPoint.quantize(spheres, 0, spheres.count);
+         }
+         setRewindPoint();
          statusMessage = "Music " + name + " loaded";
       }
 
@@ -850,14 +1236,15 @@ public class Music
          out.println("" + size.height);
          out.println(palette.name);
          out.println("" + finisBeat);
-         for (i = 0; spheresRewindTo[i] != null; i++)
+         for (i = 0; i < spheresRewindTo.count; i++)
          {
-            out.println("sphere " + spheresRewindTo[i].radius + " " +
-                        spheresRewindTo[i].x + " " + spheresRewindTo[i].y + " " +
-                        spheresRewindTo[i].dx + " " + spheresRewindTo[i].dy + " " +
-                        spheresRewindTo[i].paletteIndex);
+            out.println("sphere " + spheresRewindTo.radius[i] + " " +
+                        spheresRewindTo.x[i] + " " + spheresRewindTo.y[i] + " " +
+                        velocityString(spheresRewindTo.dx[i]) + " " +
+                        velocityString(spheresRewindTo.dy[i]) + " " +
+                        spheresRewindTo.paletteIndex[i]);
          }
-         for (i = 0; strings[i] != null; i++)
+         for (i = 0; i < numStrings; i++)
          {
             out.println("string " +
                         strings[i].x1 + " " + strings[i].y1 + " " +
@@ -877,6 +1264,21 @@ public class Music
    }
 
 
+   // Velocity in plain notation, as the music tokenizer does not read
+   // exponents.  Plain notation of the shortest decimal keeps the value.
+   static String velocityString(double v)
+   {
+      String s;
+
+      s = "" + v;
+      if (s.indexOf('E') != -1)
+      {
+         s = new BigDecimal(s).toPlainString();
+      }
+      return(s);
+   }
+
+
    // Get music name.
    public String getName(String nameString)
    {
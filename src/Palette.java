@@ -31,12 +31,10 @@ import java.applet.AudioClip;
 public class Palette
 {
    // Parameters.
-   static final int MAX_SPHERES       = 50; // Spheres.
-   static final int MIN_SPHERE_RADIUS = 20;
+   static final int MIN_SPHERE_RADIUS = 20; // Spheres.
    static final int MAX_SPHERE_RADIUS = 40;
    static final int MAX_SPHERE_SPEED  = 12;
-   static final int MAX_STRINGS       = 50; // Strings.
-   static final int MIN_STRING_SIZE   = 20;
+   static final int MIN_STRING_SIZE   = 20; // Strings.
    static final int MAX_STRING_SIZE   = 100;
    static final int MAX_SOUND_COLOR   = 40;   // Sounds/colors.
    static final int MAX_NAME_LENGTH   = 100;
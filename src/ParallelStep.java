@@ -0,0 +1,174 @@
+/*
+ *
+ * Music of the Spheres parallel step.
+ *
+ * Description:
+ *
+ * Resolves a beat's wall, string and sphere collisions for large scenes
+ * as fork/join tasks over ranges of spheres.  The serial step visits the
+ * spheres in order, and a later write to a sphere's next velocity replaces
+ * an earlier one.  Each sphere's final next velocity is found on its own
+ * by the same rule, so tasks need no ordering:
+ *
+ * 1. If it collides with later spheres, it takes the velocity of the last.
+ * 2. Otherwise a component bounced by a wall or string is reversed.
+ * 3. Otherwise, if it collides with earlier spheres, it takes the velocity
+ *    of the last.
+ *
+ * Tasks read only current positions and velocities, write only the next
+ * velocities of their own spheres, and collect collision events in their
+ * own streams, which are appended to the music's in sphere order after the
+ * tasks join.  The result is exactly that of the serial step.
+ *
+ */
+
+import java.util.concurrent.*;
+
+// Parallel step class.
+public class ParallelStep extends RecursiveAction
+{
+   // Parameters.
+   static final int MAX_TASK_SPHERES = 256;
+   static final int TASK_EVENTS      = 16; // Initial event capacity.
+
+   // Music and sphere range.
+   Music music;
+   int   from, to;
+
+   // Subtasks, collision events and collisions counted.
+   ParallelStep    left, right;
+   CollisionEvents events;
+   int             collisions;
+
+   // Constructor.
+   ParallelStep(Music music, int from, int to)
+   {
+      this.music = music;
+      this.from  = from;
+      this.to    = to;
+   }
+
+
+   // Resolve the next velocities of all spheres, setting the music's
+   // collision count and adding its collision events.  The music's grid
+   // must be built.
+   public static void resolve(Music music, ForkJoinPool pool)
+   {
+      ParallelStep task;
+
+      task = new ParallelStep(music, 0, music.spheres.count);
+      pool.invoke(task);
+      music.collisions = task.collisions;
+      task.appendEvents(music.collisionEvents);
+   }
+
+
+   // Split the range, or resolve it.
+   protected void compute()
+   {
+      int mid;
+
+      if ((to - from) <= MAX_TASK_SPHERES)
+      {
+         resolveRange();
+         return;
+      }
+      mid   = (from + to) >>> 1;
+      left  = new ParallelStep(music, from, mid);
+      right = new ParallelStep(music, mid, to);
+      invokeAll(left, right);
+      collisions = left.collisions + right.collisions;
+   }
+
+
+   // Append the events of the range to a stream, in sphere order.
+   void appendEvents(CollisionEvents to)
+   {
+      if (left != null)
+      {
+         left.appendEvents(to);
+         right.appendEvents(to);
+      }
+      else
+      {
+         events.appendTo(to);
+      }
+   }
+
+
+   // Resolve the spheres in the range.
+   void resolveRange()
+   {
+      int         i, j, k, v, b, m, high, low;
+      long        f;
+      int[]       buckets;
+      SphereStore spheres;
+      SphereGrid  grid;
+
+      spheres = music.spheres;
+      grid    = music.grid;
+      buckets = new int[9];
+      events  = new CollisionEvents(TASK_EVENTS);
+      events.beat = music.beat;
+      for (i = from; i < to; i++)
+      {
+         // Walls and strings.
+         f = music.bounceOffWallsAndStrings(i, events);
+         if (f != 0L)
+         {
+            collisions++;
+         }
+
+         // Last colliding spheres after and before this one.
+         // Each collision is counted by its first sphere.
+         high = low = -1;
+         m    = grid.neighbourBuckets(spheres.x[i], spheres.y[i], buckets);
+         for (k = 0; k < m; k++)
+         {
+            b = buckets[k];
+            for (v = grid.bucketStart[b]; v < grid.bucketStart[b + 1]; v++)
+            {
+               j = grid.bucketSpheres[v];
+               if (j > i)
+               {
+                  if (music.collides(i, j))
+                  {
+                     high = Math.max(high, j);
+                     collisions++;
+                     events.add(CollisionEvents.SPHERE, i, j, spheres.paletteIndex[i],
+                                spheres.paletteIndex[j]);
+                  }
+               }
+               else if (j < i)
+               {
+                  if ((j > low) && music.collides(j, i)) { low = j; }
+               }
+            }
+         }
+
+         // Next velocity.
+         if (high != -1)
+         {
+            spheres.ndx[i] = spheres.dx[high];
+            spheres.ndy[i] = spheres.dy[high];
+            continue;
+         }
+         if ((f & Music.BOUNCE_X) != 0L)
+         {
+            spheres.ndx[i] = -spheres.dx[i];
+         }
+         else
+         {
+            spheres.ndx[i] = (low != -1 ? spheres.dx[low] : spheres.dx[i]);
+         }
+         if ((f & Music.BOUNCE_Y) != 0L)
+         {
+            spheres.ndy[i] = -spheres.dy[i];
+         }
+         else
+         {
+            spheres.ndy[i] = (low != -1 ? spheres.dy[low] : spheres.dy[i]);
+         }
+      }
+   }
+}
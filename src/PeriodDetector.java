@@ -0,0 +1,242 @@
+/*
+ *
+ * Music of the Spheres period detector.
+ *
+ * Description:
+ *
+ * Sphere positions are integers and velocities take few values, so
+ * the state of most compositions eventually repeats, and from then on
+ * the music loops.  The detector finds the loop with Brent's
+ * cycle-finding algorithm, observing the music after each beat: the
+ * state is compared with a saved state, which is renewed at beat
+ * distances doubling 1, 2, 4, ... from the start.  Once the saved state
+ * is inside the loop it recurs after exactly one period, so only one
+ * state is kept and each beat costs a comparison that almost always
+ * fails at the first sphere.
+ *
+ * Knowing the period, the loop start is found by replaying from the
+ * observed start state on two copies of the music, one a period ahead
+ * of the other, until their states are equal.
+ *
+ * Replaying may take many beats, so the searches can run on a worker
+ * thread (see findLater() and findLoopStartLater()), on copies of the
+ * music made by the caller, so that the player's beat and the editor
+ * are not held up.
+ *
+ */
+
+// Period detector class.
+public class PeriodDetector
+{
+   // Saved state, and beats since it was saved.
+   SphereStore saved = new SphereStore();
+   int         power;  // Beats between saves.
+   int         lambda; // Beats since save.
+
+   // Observed start state.
+   SphereStore start = new SphereStore();
+   int         startBeat;
+
+   // Result: the state at beat loopStart + period equals the state at
+   // loopStart, or -1 if not found.
+   int loopStart;
+   int period;
+
+   // Constructor.
+   public PeriodDetector()
+   {
+      startBeat = loopStart = period = -1;
+   }
+
+
+   // Start observing from the music's current state.
+   public void reset(Music music)
+   {
+      start.copyFrom(music.spheres);
+      saved.copyFrom(music.spheres);
+      startBeat = music.beat;
+      power     = 1;
+      lambda    = 0;
+      loopStart = period = -1;
+   }
+
+
+   // Observe the music after a beat.  Returns true when the period is
+   // known; loopStart is then found by findLoopStart().
+   public boolean observe(Music music)
+   {
+      if (period != -1) { return(true); }
+      if (startBeat == -1) { return(false); }
+      lambda++;
+      if (sameMotion(music.spheres, saved))
+      {
+         period = lambda;
+         return(true);
+      }
+      if (lambda == power)
+      {
+         saved.copyMotionFrom(music.spheres, saved.count);
+         power *= 2;
+         lambda = 0;
+      }
+      return(false);
+   }
+
+
+   // Find the loop start once the period is known, replaying the music
+   // from the start state.  Returns the loop start, or -1.
+   public int findLoopStart(Music music)
+   {
+      if (period == -1) { return(-1); }
+      if (loopStart != -1) { return(loopStart); }
+      return(findLoopStart(shadow(music, start), shadow(music, start)));
+   }
+
+
+   // Find the loop start once the period is known, as findLoopStart()
+   // does, on a worker thread.  The music is copied now, and done is run
+   // on the worker thread when loopStart is found.
+   public void findLoopStartLater(Music music, final Runnable done)
+   {
+      final Music ahead, behind;
+
+      ahead  = shadow(music, start);
+      behind = shadow(music, start);
+      background(new Runnable()
+                 {
+                    public void run()
+                    {
+                       if ((period != -1) && (loopStart == -1))
+                       {
+                          findLoopStart(ahead, behind);
+                       }
+                       done.run();
+                    }
+                 }
+                 );
+   }
+
+
+   // Find the loop start replaying copies of the music from the start
+   // state.
+   int findLoopStart(Music ahead, Music behind)
+   {
+      int i;
+
+      ahead.seek(period);
+      for (i = startBeat; !sameMotion(ahead.spheres, behind.spheres); i++)
+      {
+         ahead.step();
+         behind.step();
+      }
+      loopStart = i;
+      return(loopStart);
+   }
+
+
+   // Find the loop of a composition from its rewind point, without
+   // disturbing the music, looking at most maxBeats beats ahead.
+   // Returns the detector, whose period is -1 if no loop was found.
+   public static PeriodDetector find(Music music, int maxBeats)
+   {
+      PeriodDetector detector;
+
+      detector = new PeriodDetector();
+      detector.search(shadow(music, music.spheresRewindTo), maxBeats);
+      return(detector);
+   }
+
+
+   // Find the loop of a composition as find() does, on a worker thread.
+   // The music is copied now, and done is run on the worker thread when
+   // the returned detector has the result.
+   public static PeriodDetector findLater(Music music, final int maxBeats, final Runnable done)
+   {
+      final Music          m;
+      final PeriodDetector detector;
+
+      m        = shadow(music, music.spheresRewindTo);
+      detector = new PeriodDetector();
+      background(new Runnable()
+                 {
+                    public void run()
+                    {
+                       detector.search(m, maxBeats);
+                       done.run();
+                    }
+                 }
+                 );
+      return(detector);
+   }
+
+
+   // Search for the loop of a copy of music, at most maxBeats beats ahead.
+   void search(Music m, int maxBeats)
+   {
+      int i;
+
+      reset(m);
+      for (i = 0; i < maxBeats; i++)
+      {
+         m.step();
+         if (observe(m))
+         {
+            findLoopStart(m);
+            break;
+         }
+      }
+   }
+
+
+   // Run a search on a low priority worker thread.
+   static void background(Runnable search)
+   {
+      Thread t;
+
+      t = new Thread(search, "PeriodDetector");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      t.start();
+   }
+
+
+   // A silent copy of the music, without its timeline, starting from
+   // the given spheres at beat 0.  Strings are shared.
+   static Music shadow(Music music, SphereStore spheres)
+   {
+      int   i;
+      Music m;
+
+      m = new Music(music.size);
+      m.timeline.setBudget(0);
+      m.fixedPoint = music.fixedPoint;
+      m.spheres.copyFrom(spheres);
+      m.spheresRewindTo.copyFrom(spheres);
+      for (i = 0; i < music.numStrings; i++)
+      {
+         m.addString(music.strings[i]);
+      }
+      m.mute = true;
+      return(m);
+   }
+
+
+   // Are the positions and velocities of two stores the same?
+   static boolean sameMotion(SphereStore a, SphereStore b)
+   {
+      int i, n;
+
+      n = a.count;
+      if (n != b.count) { return(false); }
+      for (i = 0; i < n; i++)
+      {
+         if ((a.x[i] != b.x[i]) || (a.y[i] != b.y[i]) ||
+             (a.fracX[i] != b.fracX[i]) || (a.fracY[i] != b.fracY[i]) ||
+             (a.dx[i] != b.dx[i]) || (a.dy[i] != b.dy[i]))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+}
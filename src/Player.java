@@ -5,13 +5,21 @@
  * Description:
  *
  * Compositions may be loaded from web addresses or selected from an
- * optionally provided list.
+ * optionally provided list.  A compiled score (see ScoreCompiler), named
+ * with the .score extension, is played as a sequencer, without stepping
+ * its composition.
  *
  * Usage:
  *
  * <applet code="Player.class" width=w height=h>
  * [<param name=Music value="<file|URL of initial music>">]
  * [<param name=MusicList value="<file|URL of list of music to choose from>">]
+ * [<param name=GenerateKernel value="true">]
+ * [<param name=FixedPoint value="true">]
+ * [<param name=AudioClips value="true">]
+ * [<param name=SoundBuffer value="<sound mixer buffer milliseconds>">]
+ * [<param name=Voices value="<maximum sounds playing at once>">]
+ * [<param name=VoiceStealing value="oldest|quietest|retrigger">]
  * </applet>
  *
  */
@@ -28,8 +36,8 @@ import javax.swing.*;
 public class Player extends Applet implements Runnable
 {
    // Parameters.
-   static final int UPDATE_FREQUENCY     = 50; // Milliseconds between screen updates.
-   static final int STOP_CHECK_FREQUENCY = 1000;
+   static final int    STOP_CHECK_FREQUENCY = 1000;
+   static final String FINIS                = "F I N I S"; // Shown at the end.
 
    // Load/update music values.
    static final int UPDATE = 0;
@@ -38,6 +46,29 @@ public class Player extends Applet implements Runnable
    // Music.
    Music music;
 
+   // Compiled score of the music, if playing one.
+   Score score = null;
+
+   // Beat scheduling.
+   double        tempo = BeatScheduler.DEFAULT_BEATS_PER_SECOND; // Beats per second.
+   BeatScheduler scheduler;
+
+   // Generate a step kernel for each composition.
+   boolean generateKernel = false;
+
+   // Fixed-point motion.
+   boolean fixedPoint = false;
+
+   // Play sounds as audio clips instead of through a mixer, and the
+   // mixer's buffer, polyphony and voice stealing policy.
+   boolean audioClips        = false;
+   int     soundBufferMillis = SoundMixer.DEFAULT_BUFFER_MILLIS;
+   int     voices            = SoundMixer.DEFAULT_VOICES;
+   int     voiceStealing     = SoundMixer.STEAL_OLDEST;
+
+   // Directory of the decoded sound cache, or null.
+   String sampleCache = null;
+
    // Screen dimensions.
    Dimension screenSize;
 
@@ -48,19 +79,30 @@ public class Player extends Applet implements Runnable
    Image     canvasImage;
    Graphics  canvasImageGraphics;
 
+   // Sphere images, drawn once.
+   SphereImages sphereImages = new SphereImages();
+
    // State.
    boolean rewind;
    boolean frozen;
+   int     seekBeat;
    String  musicName;
    String  musicList;
    boolean stopUpdate;
    URL     baseURL;
 
+   // Loop detection while playing endless music.
+   PeriodDetector loopDetector   = new PeriodDetector();
+   int            loopDetectBeat = -1;    // Last beat observed.
+   boolean        loopSearching  = false; // Finding the loop start.
+
    // Control panel.
    Panel     controlPanel, filePanel, buttonPanel;
    Button    rewindButton;
    Checkbox  freezeCheck;
    Checkbox  muteCheck;
+   Label     seekLabel;
+   TextField seekText;
    Label     musicLabel;
    TextField musicText;
    Choice    musicChoice;
@@ -125,6 +167,11 @@ public class Player extends Applet implements Runnable
       muteCheck = new Checkbox("Mute");
       muteCheck.addItemListener(new muteCheckItemListener());
       buttonPanel.add(muteCheck);
+      seekLabel = new Label("Beat:");
+      buttonPanel.add(seekLabel);
+      seekText = new TextField("", 6);
+      seekText.addActionListener(new seekTextActionListener());
+      buttonPanel.add(seekText);
       controlPanel.add(buttonPanel);
       add(controlPanel);
 
@@ -138,8 +185,75 @@ public class Player extends Applet implements Runnable
       // Initialize state.
       rewind     = false;
       frozen     = false;
+      seekBeat   = -1;
       stopUpdate = true;
 
+      // Get tempo.
+      try
+      {
+         if ((getParameter("Tempo") != null) &&
+             (Double.parseDouble(getParameter("Tempo")) > 0.0))
+         {
+            tempo = Double.parseDouble(getParameter("Tempo"));
+         }
+      }
+      catch (Exception e) {}
+      scheduler = new BeatScheduler(tempo);
+
+      // Kernel generation.
+      if ("true".equalsIgnoreCase(parameter("GenerateKernel")))
+      {
+         generateKernel = true;
+      }
+      music.generateKernel = generateKernel;
+
+      // Fixed-point motion.
+      if ("true".equalsIgnoreCase(parameter("FixedPoint")))
+      {
+         fixedPoint = true;
+      }
+      music.fixedPoint = fixedPoint;
+
+      // Play sounds through a mixer, or audio clips if there is no line.
+      if ("true".equalsIgnoreCase(parameter("AudioClips")))
+      {
+         audioClips = true;
+      }
+      try
+      {
+         if (parameter("SoundBuffer") != null)
+         {
+            soundBufferMillis = Integer.parseInt(parameter("SoundBuffer"));
+         }
+      }
+      catch (NumberFormatException e) {}
+      try
+      {
+         if (parameter("Voices") != null)
+         {
+            voices = Integer.parseInt(parameter("Voices"));
+         }
+      }
+      catch (NumberFormatException e) {}
+      if ((parameter("VoiceStealing") != null) &&
+          (SoundMixer.stealPolicy(parameter("VoiceStealing")) != -1))
+      {
+         voiceStealing = SoundMixer.stealPolicy(parameter("VoiceStealing"));
+      }
+      if (!audioClips)
+      {
+         music.mixer = SoundMixer.open(soundBufferMillis);
+         if (music.mixer != null)
+         {
+            music.mixer.setPolyphony(voices, voiceStealing);
+            music.mixer.setTempo(scheduler.beatsPerSecond);
+            if (sampleCache != null)
+            {
+               music.mixer.cache = new SampleCache(new File(sampleCache));
+            }
+         }
+      }
+
       // Load music list.
       if (musicList == null)
       {
@@ -196,7 +310,7 @@ public class Player extends Applet implements Runnable
       {
          if (!musicName.equals("Music:"))
          {
-            status(music.load(musicName, baseURL));
+            status(loadMusic());
             loadsounds();
             updateFiles();
          }
@@ -212,6 +326,20 @@ public class Player extends Applet implements Runnable
    }
 
 
+   // Applet parameter, or null if not given or not run as an applet.
+   String parameter(String name)
+   {
+      try
+      {
+         return(getParameter(name));
+      }
+      catch (Exception e)
+      {
+         return(null);
+      }
+   }
+
+
    // List selectable music.
    void listMusic()
    {
@@ -279,41 +407,62 @@ public class Player extends Applet implements Runnable
    }
 
 
-   // Stop.
+   // Stop, showing the sound statistics.
    public void stop()
    {
       stopUpdate = true;
+      if (music.mixer != null)
+      {
+         status(music.mixer.statistics());
+      }
+   }
+
+
+   // Destroy.
+   public void destroy()
+   {
+      if (music.mixer != null)
+      {
+         music.mixer.close();
+         music.mixer = null;
+      }
    }
 
 
    // Run.
    public void run()
    {
-      long t;
+      boolean stopped;
 
       // Lower this thread's priority.
       Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
 
       // This is the music update loop.
+      stopped = true;
       while (Thread.currentThread() == updateThread)
       {
-         // Do not update while stopped.
-         if (stopUpdate)
-         {
-            t = STOP_CHECK_FREQUENCY;
-         }
-         else
+         try
          {
+            // Do not update while stopped.
+            if (stopUpdate)
+            {
+               stopped = true;
+               Thread.sleep(STOP_CHECK_FREQUENCY);
+               continue;
+            }
+
+            // Restart the beat after a stop.
+            if (stopped)
+            {
+               scheduler.start();
+               stopped = false;
+            }
+
             // Synchronized update.
             synchThreads(UPDATE);
 
-            t = UPDATE_FREQUENCY;
-         }
-
-         // Sleep until the next loop.
-         try
-         {
-            Thread.sleep(t);
+            // Sleep until the next beat.
+            scheduler.sleepUntilNextBeat();
          }
          catch (InterruptedException e) { break; }
       }
@@ -329,26 +478,101 @@ public class Player extends Applet implements Runnable
       }
       else
       {
-         status(music.load(musicName, baseURL));
+         status(loadMusic());
          loadsounds();
       }
    }
 
 
+   // Load the music, or a compiled score and its music.
+   String loadMusic()
+   {
+      Score  s;
+      String message;
+
+      score = null;
+      if (!musicName.endsWith(Score.EXTENSION))
+      {
+         return(music.load(musicName, baseURL));
+      }
+      s       = new Score();
+      message = s.load(musicName, baseURL);
+      if (s.fileError) { return(message); }
+      message = music.load(s.musicName, baseURL);
+      if (music.fileError) { return(message); }
+      if ((s.keyframeInterval > 0) && (s.numSpheres != music.spheres.count))
+      {
+         return("Score " + musicName + " does not match music " + s.musicName);
+      }
+      score           = s;
+      music.finisBeat = score.finisBeat;
+      score.rewind(music);
+      return("Score " + musicName + " loaded");
+   }
+
+
    // Update music.
    public void updateMusic()
    {
+      int    i, n;
+      String s;
+
+      // Beats due; when behind, play them all and draw once, and say so.
+      n = scheduler.beatsDue();
+      if ((s = scheduler.lateStatistics()) != null)
+      {
+         status(s);
+      }
+      if ((music.mixer != null) && ((s = music.mixer.voiceStatistics()) != null))
+      {
+         status(s);
+      }
+
       // Rewind?
       if (rewind)
       {
-         music.rewind();
+         if (score != null)
+         {
+            score.rewind(music);
+         }
+         else
+         {
+            music.rewind();
+         }
          rewind = false;
       }
 
-      // Move music.
-      if (!frozen)
+      // Seek or advance music.
+      if (seekBeat != -1)
       {
-         music.movement();
+         if (score != null)
+         {
+            score.seek(music, seekBeat);
+         }
+         else
+         {
+            music.seek(seekBeat);
+         }
+         seekBeat = -1;
+      }
+      else if (!frozen)
+      {
+         for (i = 0; i < n; i++)
+         {
+            if (score != null)
+            {
+               // Sequence the score.
+               if (score.step(music))
+               {
+                  music.playBounceSounds();
+               }
+            }
+            else
+            {
+               music.movement();
+               detectLoop();
+            }
+         }
       }
 
       // Update canvas.
@@ -356,6 +580,45 @@ public class Player extends Applet implements Runnable
    }
 
 
+   // Look for a loop in endless music after a beat.  Once found, the
+   // music knows to seek within the first pass of the loop.  The loop
+   // start is found by replaying, on a worker thread.
+   void detectLoop()
+   {
+      final int version;
+
+      if ((music.finisBeat != -1) || (music.loopStart != -1) || loopSearching) { return; }
+      if (music.beat != (loopDetectBeat + 1))
+      {
+         // Rewound, seeked or loaded: start over.
+         loopDetector.reset(music);
+      }
+      else if (loopDetector.observe(music))
+      {
+         loopSearching = true;
+         version       = music.version;
+         loopDetector.findLoopStartLater(music, new Runnable()
+                                         {
+                                            public void run() { loopFound(version); }
+                                         }
+                                         );
+      }
+      loopDetectBeat = music.beat;
+   }
+
+
+   // The loop start of the music of a version has been found.
+   synchronized void loopFound(int version)
+   {
+      loopSearching  = false;
+      loopDetectBeat = -1;
+      if ((version != music.version) || (loopDetector.loopStart == -1)) { return; }
+      music.setLoop(loopDetector.loopStart, loopDetector.period);
+      status("Loops from beat " + music.loopStart + " every " +
+             music.loopPeriod + " beats");
+   }
+
+
    // Paint.
    public void paint(Graphics g)
    {
@@ -401,19 +664,20 @@ public class Player extends Applet implements Runnable
    public void updateFiles()
    {
       int    i, j;
-      String s;
+      String s, name;
 
       if (music.name.equals("")) { return; }
+      name = (score != null ? score.name : music.name);
 
-      musicText.setText(music.name);
+      musicText.setText(name);
 
       // Add selection to choices.
       for (i = 0, j = musicChoice.getItemCount(); i < j; i++)
       {
          s = musicChoice.getItem(i);
-         if (s.equals(music.name)) { return; }
+         if (s.equals(name)) { return; }
       }
-      musicChoice.add(music.name);
+      musicChoice.add(name);
    }
 
 
@@ -426,6 +690,33 @@ public class Player extends Applet implements Runnable
       }
    }
 
+   // Seek text listener.
+   class seekTextActionListener implements ActionListener
+   {
+      public void actionPerformed(ActionEvent evt)
+      {
+         String s;
+         int    b;
+
+         s = seekText.getText().trim();
+         try
+         {
+            b = Integer.parseInt(s, 10);
+         }
+         catch (NumberFormatException e) {
+            b = -1;
+         }
+         if (b < 0)
+         {
+            status("Invalid beat: " + s);
+         }
+         else
+         {
+            seekBeat = b;
+         }
+      }
+   }
+
    // Freeze check button listener.
    class freezeCheckItemListener implements ItemListener
    {
@@ -461,73 +752,75 @@ public class Player extends Applet implements Runnable
    // Update canvas.
    public void updateCanvas()
    {
-      Dimension d;
-      int       i, x, y, r, w, h;
-      String    s;
+      drawMusic(music, sphereImages, canvasImageGraphics, canvasSize, font, fontMetrics);
+
+      // Copy the off-screen buffer to the screen.
+      canvasGraphics.drawImage(canvasImage, 0, 0, this);
+   }
+
+
+   // Draw music into graphics of the given size.  Allocates nothing, so
+   // that drawing every beat makes no garbage.
+   static void drawMusic(Music music, SphereImages sphereImages, Graphics g, Dimension d,
+                         Font font, FontMetrics fontMetrics)
+   {
+      int i, p;
 
       // Clear.
-      canvasImageGraphics.setColor(Color.white);
-      canvasImageGraphics.fillRect(0, 0, canvasSize.width, canvasSize.height);
+      g.setColor(Color.white);
+      g.fillRect(0, 0, d.width, d.height);
 
       // Draw the spheres.
-      d = canvasSize;
-      for (i = 0; music.spheres[i] != null; i++)
+      for (i = 0; i < music.spheres.count; i++)
       {
-         if ((music.spheres[i].paletteIndex != -1) &&
-             (music.palette.soundColors[music.spheres[i].paletteIndex] != null))
-         {
-            canvasImageGraphics.setColor(music.palette.soundColors[music.spheres[i].paletteIndex]);
-         }
-         else
-         {
-            canvasImageGraphics.setColor(Color.black);
-         }
-         x = music.spheres[i].x - music.spheres[i].radius;
-         y = music.spheres[i].y - music.spheres[i].radius;
-         r = music.spheres[i].radius * 2;
-         canvasImageGraphics.fillOval(x, y, r, r);
+         sphereImages.draw(g, music, i);
       }
 
       // Draw the strings.
-      for (i = 0; music.strings[i] != null; i++)
+      for (i = 0; i < music.numStrings; i++)
       {
-         if ((music.strings[i].paletteIndex != -1) &&
-             (music.palette.soundColors[music.strings[i].paletteIndex] != null))
+         p = music.strings[i].paletteIndex;
+         if ((p != -1) && (music.palette.soundColors[p] != null))
          {
-            canvasImageGraphics.setColor(music.palette.soundColors[music.strings[i].paletteIndex]);
+            g.setColor(music.palette.soundColors[p]);
          }
          else
          {
-            canvasImageGraphics.setColor(Color.black);
+            g.setColor(Color.black);
          }
-         canvasImageGraphics.drawLine(music.strings[i].x1, music.strings[i].y1,
-                                      music.strings[i].x2, music.strings[i].y2);
+         g.drawLine(music.strings[i].x1, music.strings[i].y1,
+                    music.strings[i].x2, music.strings[i].y2);
       }
 
       // Draw music boundaries.
-      canvasImageGraphics.setFont(font);
-      canvasImageGraphics.setColor(Color.black);
-      canvasImageGraphics.drawLine(music.size.width, 0, music.size.width, music.size.height);
-      canvasImageGraphics.drawLine(0, music.size.height, music.size.width, music.size.height);
+      g.setFont(font);
+      g.setColor(Color.black);
+      g.drawLine(music.size.width, 0, music.size.width, music.size.height);
+      g.drawLine(0, music.size.height, music.size.width, music.size.height);
 
       // State-specific displays.
       if (music.beat == music.finisBeat)
       {
-         s = "F I N I S";
-         canvasImageGraphics.drawString(s,
-                                        (d.width - fontMetrics.stringWidth(s)) / 2, d.height / 2);
+         g.drawString(FINIS, (d.width - fontMetrics.stringWidth(FINIS)) / 2, d.height / 2);
       }
-
-      // Copy the off-screen buffer to the screen.
-      canvasGraphics.drawImage(canvasImage, 0, 0, this);
    }
 
 
-   // Load sounds if necessary by playing and immediately stopping them.
+   // Load sounds: decode them for the mixer, or else load the audio
+   // clips if necessary by playing and immediately stopping them.
    void loadsounds()
    {
-      int i;
+      int    i;
+      String message;
 
+      if (music.mixer != null)
+      {
+         if ((message = music.mixer.load(music.palette)) != null)
+         {
+            status(message);
+         }
+         return;
+      }
       for (i = 0; music.palette.soundURLs[i] != null; i++)
       {
          if (music.palette.soundClips[i] == null)
@@ -566,7 +859,17 @@ public class Player extends Applet implements Runnable
       "Usage:\n" +
       "    java Player\n" +
       "        [-MusicList <file name> (selectable music, default=\"musicList\")]\n" +
-      "        [-Music <file name> (initial music)]";
+      "        [-Music <file name> (initial music)]\n" +
+      "        [-Tempo <beats per second> (default=" + BeatScheduler.DEFAULT_BEATS_PER_SECOND + ")]\n" +
+      "        [-GenerateKernel (generate a step kernel for each composition)]\n" +
+      "        [-FixedPoint (fixed-point motion)]\n" +
+      "        [-AudioClips (play sounds as applet audio clips instead of mixing them)]\n" +
+      "        [-SoundBuffer <sound mixer buffer milliseconds> (default=" +
+      SoundMixer.DEFAULT_BUFFER_MILLIS + ")]\n" +
+      "        [-Voices <maximum sounds playing at once> (default=" +
+      SoundMixer.DEFAULT_VOICES + ")]\n" +
+      "        [-VoiceStealing oldest | quietest | retrigger (default=oldest)]\n" +
+      "        [-SampleCache <directory> (keep decoded sounds on disk, shared by players)]";
 
    // Main.
    @SuppressWarnings("deprecation")
@@ -602,6 +905,120 @@ public class Player extends Applet implements Runnable
             player.musicName = args[i];
             continue;
          }
+         if (args[i].equals("-Tempo"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid Tempo option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               player.tempo = Double.parseDouble(args[i]);
+            }
+            catch (NumberFormatException e)
+            {
+               player.tempo = -1.0;
+            }
+            if (!(player.tempo > 0.0))
+            {
+               System.err.println("Invalid Tempo option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-GenerateKernel"))
+         {
+            player.generateKernel = true;
+            continue;
+         }
+         if (args[i].equals("-FixedPoint"))
+         {
+            player.fixedPoint = true;
+            continue;
+         }
+         if (args[i].equals("-AudioClips"))
+         {
+            player.audioClips = true;
+            continue;
+         }
+         if (args[i].equals("-SoundBuffer"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid SoundBuffer option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               player.soundBufferMillis = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e)
+            {
+               player.soundBufferMillis = -1;
+            }
+            if (player.soundBufferMillis <= 0)
+            {
+               System.err.println("Invalid SoundBuffer option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-Voices"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid Voices option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               player.voices = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e)
+            {
+               player.voices = -1;
+            }
+            if ((player.voices <= 0) || (player.voices > SoundMixer.MAX_VOICES))
+            {
+               System.err.println("Invalid Voices option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-VoiceStealing"))
+         {
+            i++;
+            if ((i >= args.length) || (SoundMixer.stealPolicy(args[i]) == -1))
+            {
+               System.err.println("Invalid VoiceStealing option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            player.voiceStealing = SoundMixer.stealPolicy(args[i]);
+            continue;
+         }
+         if (args[i].equals("-SampleCache"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid SampleCache option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            player.sampleCache = args[i];
+            continue;
+         }
          if (args[i].equals("-help"))
          {
             System.out.println(Usage);
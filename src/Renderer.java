@@ -0,0 +1,376 @@
+/*
+ *
+ * Music of the Spheres renderer.
+ *
+ * Description:
+ *
+ * Headless offline renderer: plays compositions from beat 0 to their
+ * finisBeat, or a number of beats, without display, mixing the palette
+ * sounds of each beat (see SoundMixer) at the beat's exact frame at the
+ * tempo, and streams the mix to a WAV file of 16-bit mono PCM.  The
+ * sounds still playing at the end are played out.  Rendering runs as fast
+ * as the music can be stepped, far faster than real time, and
+ * compositions render in parallel, each in its own Music and mixer.
+ * Directories are expanded to the .dat files in them.  Each composition
+ * is written to the output directory, as its name with a .wav extension;
+ * compositions of the same name in different directories are numbered,
+ * as name-2.wav and so on, so that no two renders write the same file.
+ *
+ * Usage:
+ *
+ * java -cp Composer.jar Renderer [-beats <beats>] [-tempo <beats per second>]
+ *    [-voices <voices>] [-stealing oldest | quietest | retrigger]
+ *    [-output <directory>] [-threads <threads>] [-cache <directory>]
+ *    <music file or directory> ...
+ *
+ */
+
+import java.awt.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Offline renderer.
+public class Renderer
+{
+   // Parameters.
+   static final int RENDER_FRAMES = 4096;       // Frames mixed at a time.
+   static final int WAV_HEADER    = 44;
+   static final int OUTPUT_BUFFER = 64 * 1024;
+
+   // Render result.
+   static class Result
+   {
+      String musicName;
+      String wavName;
+      String error;
+      int    beats;
+      long   frames;
+      double renderMillis;
+   }
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java Renderer\n" +
+      "        [-beats <beats to render> (default=to the finis beat)]\n" +
+      "        [-tempo <beats per second> (default=" + BeatScheduler.DEFAULT_BEATS_PER_SECOND + ")]\n" +
+      "        [-voices <maximum sounds playing at once> (default=" +
+      SoundMixer.DEFAULT_VOICES + ")]\n" +
+      "        [-stealing oldest | quietest | retrigger (default=oldest)]\n" +
+      "        [-output <directory> (default=current directory)]\n" +
+      "        [-threads <threads> (default=number of processors)]\n" +
+      "        [-cache <directory> (keep decoded sounds on disk)]\n" +
+      "        <music file or directory> ...";
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int                       i, beats, voices, stealing, threads;
+      double                    tempo;
+      String                    output, cache;
+      ArrayList<String>         musicNames;
+      ArrayList<Future<Result>> futures;
+      HashSet<String>           wavNames;
+      Result                    r;
+      ExecutorService           executor;
+      URL                       baseURL;
+
+      System.setProperty("java.awt.headless", "true");
+
+      // Get options.
+      beats      = -1;
+      tempo      = BeatScheduler.DEFAULT_BEATS_PER_SECOND;
+      voices     = SoundMixer.DEFAULT_VOICES;
+      stealing   = SoundMixer.STEAL_OLDEST;
+      output     = ".";
+      cache      = null;
+      threads    = Runtime.getRuntime().availableProcessors();
+      musicNames = new ArrayList<String>();
+      try
+      {
+         for (i = 0; i < args.length; i++)
+         {
+            if (args[i].equals("-beats"))
+            {
+               beats = Integer.parseInt(args[++i]);
+               if (beats < 0) { throw(new IllegalArgumentException()); }
+               continue;
+            }
+            if (args[i].equals("-tempo"))
+            {
+               tempo = Double.parseDouble(args[++i]);
+               if (Double.isNaN(tempo) || (tempo < BeatScheduler.MIN_BEATS_PER_SECOND) ||
+                   (tempo > BeatScheduler.MAX_BEATS_PER_SECOND))
+               {
+                  throw(new IllegalArgumentException());
+               }
+               continue;
+            }
+            if (args[i].equals("-voices"))
+            {
+               voices = Integer.parseInt(args[++i]);
+               if ((voices <= 0) || (voices > SoundMixer.MAX_VOICES))
+               {
+                  throw(new IllegalArgumentException());
+               }
+               continue;
+            }
+            if (args[i].equals("-stealing"))
+            {
+               stealing = SoundMixer.stealPolicy(args[++i]);
+               if (stealing == -1) { throw(new IllegalArgumentException()); }
+               continue;
+            }
+            if (args[i].equals("-output"))
+            {
+               output = args[++i];
+               continue;
+            }
+            if (args[i].equals("-cache"))
+            {
+               cache = args[++i];
+               continue;
+            }
+            if (args[i].equals("-threads"))
+            {
+               threads = Integer.parseInt(args[++i]);
+               if (threads <= 0) { throw(new IllegalArgumentException()); }
+               continue;
+            }
+            if (args[i].equals("-help"))
+            {
+               System.out.println(Usage);
+               System.exit(0);
+            }
+            if (args[i].startsWith("-"))
+            {
+               throw(new IllegalArgumentException());
+            }
+            Analyzer.addMusic(args[i], musicNames);
+         }
+      }
+      catch (RuntimeException e) {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (musicNames.size() == 0)
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (!new File(output).isDirectory())
+      {
+         System.err.println("Output directory " + output + " does not exist");
+         System.exit(1);
+      }
+
+      // Get base URL.
+      baseURL = null;
+      try
+      {
+         baseURL = new File(System.getProperty("user.dir")).toURI().toURL();
+      }
+      catch (MalformedURLException e) {
+         System.err.println("Cannot get URL of current directory");
+         System.exit(1);
+      }
+
+      // Render compositions in parallel; results keep the given order.
+      executor = Executors.newFixedThreadPool(threads);
+      futures  = new ArrayList<Future<Result>>();
+      wavNames = new HashSet<String>();
+      for (i = 0; i < musicNames.size(); i++)
+      {
+         final String musicName = musicNames.get(i);
+         final File   wavFile   = new File(output, wavName(musicName, wavNames));
+         final int    b         = beats;
+         final double t         = tempo;
+         final int    v         = voices;
+         final int    s         = stealing;
+         final URL    u         = baseURL;
+         final String c         = cache;
+         futures.add(executor.submit(new Callable<Result>()
+                                     {
+                                        public Result call() { return(render(musicName, wavFile, b, t, v, s, u, c)); }
+                                     }
+                                     ));
+      }
+      for (i = 0; i < futures.size(); i++)
+      {
+         try
+         {
+            r = futures.get(i).get();
+         }
+         catch (Exception e) {
+            System.err.println("Rendering failed: " + e);
+            System.exit(1);
+            return;
+         }
+         if (r.error != null)
+         {
+            System.err.println(r.error);
+            continue;
+         }
+         System.out.printf("%s: %s, %d beats, %.1f s in %.0f ms (%.0fx real time)%n",
+                           r.musicName, r.wavName, r.beats, r.frames / SoundMixer.SAMPLE_RATE,
+                           r.renderMillis, (r.frames * 1000.0 / SoundMixer.SAMPLE_RATE) /
+                           Math.max(r.renderMillis, 0.001));
+      }
+      executor.shutdown();
+   }
+
+
+   // WAV file name of music: its name with a .wav extension, numbered if
+   // already in the used names, which it is added to.
+   static String wavName(String musicName, HashSet<String> usedNames)
+   {
+      int    n;
+      String name, wavName;
+
+      name = new File(musicName).getName();
+      if (name.endsWith(".dat"))
+      {
+         name = name.substring(0, name.length() - 4);
+      }
+      wavName = name + ".wav";
+      for (n = 2; !usedNames.add(wavName.toLowerCase()); n++)
+      {
+         wavName = name + "-" + n + ".wav";
+      }
+      return(wavName);
+   }
+
+
+   // Render a composition to a WAV file.
+   static Result render(String musicName, File wavFile, int beats, double tempo, int voices,
+                        int stealing, URL baseURL, String cache)
+   {
+      int              end;
+      long             t, next;
+      double           framesPerBeat;
+      byte[]           buffer;
+      Music            music;
+      SoundMixer       mixer;
+      Result           result;
+
+      result           = new Result();
+      result.musicName = musicName;
+      result.wavName   = wavFile.getPath();
+      music            = new Music(new Dimension(0, 0));
+      music.mute       = true;
+      result.error     = music.load(musicName, baseURL);
+      if (music.fileError || music.name.equals(""))
+      {
+         return(result);
+      }
+      if ((music.finisBeat == -1) && (beats == -1))
+      {
+         result.error = "Music " + musicName + " does not end: give -beats";
+         return(result);
+      }
+      end = (beats != -1 ? beats : music.finisBeat);
+      if (music.finisBeat != -1)
+      {
+         end = Math.min(end, music.finisBeat);
+      }
+      mixer = new SoundMixer();
+      mixer.setPolyphony(voices, stealing);
+      if (cache != null)
+      {
+         mixer.cache = new SampleCache(new File(cache));
+      }
+      if ((result.error = mixer.load(music.palette)) != null)
+      {
+         return(result);
+      }
+
+      // Play, scheduling each beat's sounds at its frame and mixing up to
+      // the next beat.
+      t             = System.nanoTime();
+      framesPerBeat = SoundMixer.SAMPLE_RATE / tempo;
+      buffer        = new byte[RENDER_FRAMES * 2];
+      try (RandomAccessFile file = new RandomAccessFile(wavFile, "rw");
+           OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()),
+                                                       OUTPUT_BUFFER))
+      {
+         file.setLength(0L);
+         file.write(header(0L));
+         while ((music.beat < end) && music.step())
+         {
+            if (music.playSounds != 0L)
+            {
+               mixer.schedule(Math.round(music.beat * framesPerBeat), music.playSounds);
+            }
+            next = Math.round((music.beat + 1) * framesPerBeat);
+            while (mixer.framesMixed < next)
+            {
+               mix(mixer, (int)Math.min(RENDER_FRAMES, next - mixer.framesMixed), buffer, out);
+            }
+         }
+
+         // Play out the sounds still playing, then write the header with
+         // the data length; closing the stream closes the file.
+         while (mixer.numVoices > 0)
+         {
+            mix(mixer, RENDER_FRAMES, buffer, out);
+         }
+         out.flush();
+         file.seek(0L);
+         file.write(header(mixer.framesMixed * 2L));
+      }
+      catch (IOException e) {
+         result.error = "Cannot write " + wavFile + ": " + e.getMessage();
+         return(result);
+      }
+      result.error        = null;
+      result.beats        = music.beat;
+      result.frames       = mixer.framesMixed;
+      result.renderMillis = (System.nanoTime() - t) / 1.0e6;
+      return(result);
+   }
+
+
+   // Mix frames and write them.
+   static void mix(SoundMixer mixer, int frames, byte[] buffer, OutputStream out)
+   throws IOException
+   {
+      mixer.render(buffer, 0, frames);
+      out.write(buffer, 0, frames * 2);
+   }
+
+
+   // WAV header for 16-bit mono PCM data of the mixer's format.
+   static byte[] header(long dataBytes)
+   {
+      int    rate;
+      byte[] h;
+
+      rate = (int)SoundMixer.SAMPLE_RATE;
+      h    = new byte[WAV_HEADER];
+      put(h, 0, 0x46464952);                     // "RIFF"
+      put(h, 4, (int)(36L + dataBytes));
+      put(h, 8, 0x45564157);                     // "WAVE"
+      put(h, 12, 0x20746d66);                    // "fmt "
+      put(h, 16, 16);                            // Format chunk size.
+      put(h, 20, 1 | (1 << 16));                 // PCM, mono.
+      put(h, 24, rate);
+      put(h, 28, rate * 2);                      // Bytes per second.
+      put(h, 32, 2 | (16 << 16));                // Bytes per frame, bits per sample.
+      put(h, 36, 0x61746164);                    // "data"
+      put(h, 40, (int)dataBytes);
+      return(h);
+   }
+
+
+   // Put a little-endian int.
+   static void put(byte[] b, int offset, int v)
+   {
+      b[offset]     = (byte)v;
+      b[offset + 1] = (byte)(v >> 8);
+      b[offset + 2] = (byte)(v >> 16);
+      b[offset + 3] = (byte)(v >> 24);
+   }
+}
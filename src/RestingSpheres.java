@@ -0,0 +1,378 @@
+/*
+ *
+ * Music of the Spheres resting spheres.
+ *
+ * Description:
+ *
+ * Spheres with no velocity stay where they are until a collision gives
+ * them one, so they are kept apart from the moving spheres and indexed
+ * once: a grid of their positions, the resting spheres lying on strings,
+ * and the resting pairs that touch.  These are fixed while the set does
+ * not change, and the string and pair checks of resting spheres give the
+ * same results every beat.  A beat then checks the moving spheres against
+ * the walls, strings and each other, and against the resting spheres
+ * nearby; the resting spheres on strings and the touching resting pairs
+ * are replayed from the index.  A resting sphere given a velocity leaves
+ * the index, which then skips it, and joins the moving spheres.  A moving
+ * sphere losing its velocity is still checked as a moving one until there
+ * are enough such changes to index the resting spheres again.
+ *
+ * Next velocities are resolved by the rule of the parallel step, which
+ * gives exactly the result of the serial step:
+ *
+ * 1. If a sphere collides with later spheres, it takes the velocity of the
+ *    last.
+ * 2. Otherwise a component bounced by a wall or string is reversed.
+ * 3. Otherwise, if it collides with earlier spheres, it takes the velocity
+ *    of the last.
+ *
+ * Spheres not touched by any collision keep their velocity.
+ *
+ */
+
+import java.util.*;
+
+// Resting spheres class.
+public class RestingSpheres
+{
+   // Parameters.
+   static final int MIN_CHANGES = 16; // Set changes before indexing again.
+
+   // Sphere sets.
+   boolean   valid;
+   boolean   indexed;
+   int       count;     // Spheres in the sets.
+   boolean[] resting  = new boolean[0]; // In the resting index.
+   int[]     moving   = new int[0];
+   int       numMoving;
+   int[]     rest     = new int[0];     // Indexed, some of which may have left.
+   int       numIndexed;
+   int       numResting;
+   int       changes;                   // Spheres starting to move or coming to rest.
+
+   // Resting sphere index.
+   SphereGrid      restGrid  = new SphereGrid();
+   int[]           restX     = new int[0];
+   int[]           restY     = new int[0];
+   int[]           onStrings = new int[0]; // Resting spheres bouncing on strings.
+   int             numOnStrings;
+   int[]           pairs     = new int[0]; // Touching resting pairs, lower sphere first.
+   int             numPairs;
+   CollisionEvents discard   = new CollisionEvents(CollisionEvents.DEFAULT_CAPACITY);
+
+   // Moving sphere grid.
+   SphereGrid movingGrid = new SphereGrid();
+   int[]      movingX    = new int[0];
+   int[]      movingY    = new int[0];
+
+   // Spheres touched by the beat's collisions.
+   int[]     touched   = new int[0];
+   int       numTouched;
+   boolean[] isTouched = new boolean[0];
+   long[]    flags     = new long[0]; // Wall and string bounces.
+   int[]     high      = new int[0];  // Last later colliding sphere, or -1.
+   int[]     low       = new int[0];  // Last earlier colliding sphere, or -1.
+   int       collisions;
+
+   // Constructor.
+   public RestingSpheres()
+   {
+      valid = indexed = false;
+   }
+
+
+   // The spheres' velocities or the strings have changed other than by
+   // step().
+   public void invalidate()
+   {
+      valid = indexed = false;
+   }
+
+
+   // Find the resting and moving spheres if they may have changed.
+   // Returns the number resting.
+   public int update(Music music)
+   {
+      int         i, n;
+      SphereStore spheres;
+
+      spheres = music.spheres;
+      n       = spheres.count;
+      if (valid && (count == n)) { return(numResting); }
+      if (resting.length < n)
+      {
+         resting   = new boolean[spheres.x.length];
+         moving    = new int[spheres.x.length];
+         rest      = new int[spheres.x.length];
+         touched   = new int[spheres.x.length];
+         isTouched = new boolean[spheres.x.length];
+         flags     = new long[spheres.x.length];
+         high      = new int[spheres.x.length];
+         low       = new int[spheres.x.length];
+      }
+      numMoving = numResting = 0;
+      for (i = 0; i < n; i++)
+      {
+         resting[i] = (spheres.dx[i] == 0.0) && (spheres.dy[i] == 0.0);
+         if (resting[i])
+         {
+            rest[numResting++] = i;
+         }
+         else
+         {
+            moving[numMoving++] = i;
+         }
+      }
+      numIndexed = numResting;
+      count      = n;
+      changes    = 0;
+      valid      = true;
+      indexed    = false;
+      return(numResting);
+   }
+
+
+   // Index the resting spheres.  The string index must be built.
+   void index(Music music)
+   {
+      int i, j, k, m, c;
+
+      if (restX.length < numIndexed)
+      {
+         restX = new int[rest.length];
+         restY = new int[rest.length];
+      }
+      for (k = 0; k < numIndexed; k++)
+      {
+         restX[k] = music.spheres.x[rest[k]];
+         restY[k] = music.spheres.y[rest[k]];
+      }
+      restGrid.build(restX, restY, numIndexed);
+
+      // Resting spheres on strings.
+      numOnStrings = 0;
+      for (k = 0; k < numIndexed; k++)
+      {
+         i = rest[k];
+         if (music.bounceOffStrings(i, discard) != 0L)
+         {
+            if (numOnStrings == onStrings.length)
+            {
+               onStrings = Arrays.copyOf(onStrings, Math.max(numOnStrings * 2, 16));
+            }
+            onStrings[numOnStrings++] = i;
+         }
+      }
+      discard.flush();
+
+      // Touching resting pairs.
+      numPairs = 0;
+      for (k = 0; k < numIndexed; k++)
+      {
+         i = rest[k];
+         for (m = 0, c = restGrid.query(k, restX[k], restY[k]); m < c; m++)
+         {
+            j = rest[restGrid.candidates[m]];
+            if (music.collides(i, j))
+            {
+               if ((numPairs * 2) == pairs.length)
+               {
+                  pairs = Arrays.copyOf(pairs, Math.max(numPairs * 4, 16));
+               }
+               pairs[numPairs * 2]       = i;
+               pairs[(numPairs * 2) + 1] = j;
+               numPairs++;
+            }
+         }
+      }
+      indexed = true;
+   }
+
+
+   // Resolve the collisions of a beat, setting the next velocities of the
+   // spheres touched, adding the events and setting the music's collision
+   // count.  The sets must be up to date and the string index built.
+   public void resolve(Music music)
+   {
+      int             i, j, k, m, c;
+      long            f;
+      SphereStore     spheres;
+      CollisionEvents events;
+
+      spheres = music.spheres;
+      events  = music.collisionEvents;
+      if (!indexed)
+      {
+         index(music);
+      }
+      numTouched = collisions = 0;
+
+      // Moving spheres against the walls and strings, then resting spheres
+      // on strings.
+      for (k = 0; k < numMoving; k++)
+      {
+         i = moving[k];
+         touch(i);
+         flags[i] = f = music.bounceOffWallsAndStrings(i, events);
+         if (f != 0L)
+         {
+            collisions++;
+         }
+      }
+      for (k = 0; k < numOnStrings; k++)
+      {
+         i = onStrings[k];
+         if (!resting[i]) { continue; }
+         touch(i);
+         flags[i] = f = music.bounceOffStrings(i, events);
+         if (f != 0L)
+         {
+            collisions++;
+         }
+      }
+
+      // Moving spheres against each other.
+      if (movingX.length < numMoving)
+      {
+         movingX = new int[moving.length];
+         movingY = new int[moving.length];
+      }
+      for (k = 0; k < numMoving; k++)
+      {
+         movingX[k] = spheres.x[moving[k]];
+         movingY[k] = spheres.y[moving[k]];
+      }
+      movingGrid.build(movingX, movingY, numMoving);
+      for (k = 0; k < numMoving; k++)
+      {
+         i = moving[k];
+         for (m = 0, c = movingGrid.query(k, movingX[k], movingY[k]); m < c; m++)
+         {
+            j = moving[movingGrid.candidates[m]];
+            if (music.collides(Math.min(i, j), Math.max(i, j)))
+            {
+               collide(music, Math.min(i, j), Math.max(i, j));
+            }
+         }
+      }
+
+      // Moving spheres against resting spheres nearby.
+      if (numResting > 0)
+      {
+         for (k = 0; k < numMoving; k++)
+         {
+            i = moving[k];
+            for (m = 0, c = restGrid.query(-1, movingX[k], movingY[k]); m < c; m++)
+            {
+               j = rest[restGrid.candidates[m]];
+               if (resting[j] && music.collides(Math.min(i, j), Math.max(i, j)))
+               {
+                  collide(music, Math.min(i, j), Math.max(i, j));
+               }
+            }
+         }
+      }
+
+      // Touching resting pairs.
+      for (k = 0; k < numPairs; k++)
+      {
+         i = pairs[k * 2];
+         j = pairs[(k * 2) + 1];
+         if (resting[i] && resting[j])
+         {
+            collide(music, i, j);
+         }
+      }
+
+      // Resolve the next velocities of the spheres touched.
+      for (k = 0; k < numTouched; k++)
+      {
+         i = touched[k];
+         f = flags[i];
+         if (high[i] != -1)
+         {
+            spheres.ndx[i] = spheres.dx[high[i]];
+            spheres.ndy[i] = spheres.dy[high[i]];
+            continue;
+         }
+         if ((f & Music.BOUNCE_X) != 0L)
+         {
+            spheres.ndx[i] = -spheres.dx[i];
+         }
+         else
+         {
+            spheres.ndx[i] = (low[i] != -1 ? spheres.dx[low[i]] : spheres.dx[i]);
+         }
+         if ((f & Music.BOUNCE_Y) != 0L)
+         {
+            spheres.ndy[i] = -spheres.dy[i];
+         }
+         else
+         {
+            spheres.ndy[i] = (low[i] != -1 ? spheres.dy[low[i]] : spheres.dy[i]);
+         }
+      }
+
+      music.collisions = collisions;
+   }
+
+
+   // Commit the next velocities of the spheres touched and move them,
+   // noting spheres coming to rest or starting to move.
+   public void move(SphereStore spheres)
+   {
+      int i, k;
+
+      for (k = 0; k < numTouched; k++)
+      {
+         i             = touched[k];
+         spheres.dx[i] = spheres.ndx[i];
+         spheres.dy[i] = spheres.ndy[i];
+         spheres.x[i] += spheres.dx[i];
+         spheres.y[i] += spheres.dy[i];
+         isTouched[i]  = false;
+         if ((spheres.dx[i] == 0.0) && (spheres.dy[i] == 0.0))
+         {
+            if (!resting[i])
+            {
+               changes++;
+            }
+         }
+         else if (resting[i])
+         {
+            resting[i]          = false;
+            moving[numMoving++] = i;
+            numResting--;
+            changes++;
+         }
+      }
+      if (changes > (MIN_CHANGES + (numIndexed / 8)))
+      {
+         valid = false;
+      }
+   }
+
+
+   // Note sphere i as touched by the beat's collisions.
+   void touch(int i)
+   {
+      if (isTouched[i]) { return; }
+      isTouched[i]          = true;
+      touched[numTouched++] = i;
+      flags[i]              = 0L;
+      high[i]               = low[i] = -1;
+   }
+
+
+   // Spheres i < j collide.
+   void collide(Music music, int i, int j)
+   {
+      touch(i);
+      touch(j);
+      high[i] = Math.max(high[i], j);
+      low[j]  = Math.max(low[j], i);
+      collisions++;
+      music.collisionEvents.add(CollisionEvents.SPHERE, i, j, music.spheres.paletteIndex[i],
+                                music.spheres.paletteIndex[j]);
+   }
+}
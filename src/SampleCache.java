@@ -0,0 +1,141 @@
+/*
+ *
+ * Music of the Spheres sample cache.
+ *
+ * Description:
+ *
+ * On-disk cache of palette sounds decoded to the sound mixer's output
+ * format (see SoundMixer), so that loading a palette does not decode its
+ * sounds again, across runs and across players.  A sound is keyed by the
+ * SHA-256 hash of its file's content and the output sample rate, so that
+ * a sound is found whatever URL it is loaded from, and a changed file is
+ * decoded again.  Each entry is a file of raw 16-bit little-endian PCM,
+ * named <hash>-<rate>.pcm, which is memory-mapped read-only: the mixer
+ * plays the mapped pages in place, and players on the same host sharing
+ * the cache directory share the pages through the operating system's
+ * page cache.
+ *
+ * An entry is written to a temporary file and renamed into place, so
+ * that players storing the same sound at once, or a player that stops
+ * while storing, leave no partial entry.  A cache that cannot be read or
+ * written only costs decoding.
+ *
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+
+// Sample cache class.
+public class SampleCache
+{
+   // Cache directory.
+   File directory;
+
+   // Constructor.
+   public SampleCache(File directory)
+   {
+      this.directory = directory;
+   }
+
+
+   // Key of sound file content.
+   public static String key(byte[] content)
+   {
+      int           i;
+      byte[]        hash;
+      StringBuilder b;
+
+      try
+      {
+         hash = MessageDigest.getInstance("SHA-256").digest(content);
+      }
+      catch (NoSuchAlgorithmException e) {
+         throw(new RuntimeException(e));
+      }
+      b = new StringBuilder();
+      for (i = 0; i < hash.length; i++)
+      {
+         b.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+         b.append(Character.forDigit(hash[i] & 0xf, 16));
+      }
+      b.append('-').append((int)SoundMixer.SAMPLE_RATE);
+      return(b.toString());
+   }
+
+
+   // Get a sound, mapped.  Returns null if not cached or not readable.
+   public ShortBuffer get(String key)
+   {
+      File        file;
+      FileChannel channel;
+      ByteBuffer  b;
+
+      file = new File(directory, key + ".pcm");
+      if (!file.isFile()) { return(null); }
+      try
+      {
+         channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         try
+         {
+            b = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+         }
+         finally
+         {
+            channel.close();
+         }
+      }
+      catch (IOException e) {
+         return(null);
+      }
+      return(b.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+   }
+
+
+   // Store a sound, and return it mapped, or as given if it cannot be
+   // stored.
+   public ShortBuffer put(String key, short[] sound)
+   {
+      int         i;
+      byte[]      bytes;
+      File        temp;
+      ShortBuffer s;
+
+      bytes = new byte[sound.length * 2];
+      for (i = 0; i < sound.length; i++)
+      {
+         bytes[i * 2]       = (byte)sound[i];
+         bytes[(i * 2) + 1] = (byte)(sound[i] >> 8);
+      }
+      temp = null;
+      try
+      {
+         directory.mkdirs();
+         temp = File.createTempFile(key, ".tmp", directory);
+         Files.write(temp.toPath(), bytes);
+         try
+         {
+            Files.move(temp.toPath(), new File(directory, key + ".pcm").toPath(),
+                       StandardCopyOption.ATOMIC_MOVE);
+         }
+         catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), new File(directory, key + ".pcm").toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+         }
+      }
+      catch (IOException e) {
+         if (temp != null)
+         {
+            temp.delete();
+         }
+         return(ShortBuffer.wrap(sound));
+      }
+      if ((s = get(key)) == null)
+      {
+         s = ShortBuffer.wrap(sound);
+      }
+      return(s);
+   }
+}
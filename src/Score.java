@@ -0,0 +1,316 @@
+/*
+ *
+ * Music of the Spheres score.
+ *
+ * Description:
+ *
+ * A composition that ends, at its finisBeat, plays the same way every
+ * time, so it can be compiled (see ScoreCompiler) into a score: the beats
+ * on which sounds play, each with the mask of palette indexes sounding,
+ * and optionally keyframes of the sphere positions every so many beats.
+ * A player can then play the score as a sequencer, setting the sounds and
+ * sphere positions of each beat from the score instead of stepping the
+ * music.  The composition itself is still loaded, by the name kept in the
+ * score, for its palette, strings and spheres.
+ *
+ * Score file format (gzipped, written with DataOutputStream):
+ *
+ * MAGIC, VERSION
+ * music name
+ * finis beat
+ * number of sounding beats, then for each: beat, sound mask
+ * keyframe interval (0 if none), number of spheres, number of keyframes,
+ *    then for each keyframe: x and y of each sphere
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.zip.*;
+
+// Score class.
+public class Score
+{
+   // File format.
+   static final int    MAGIC     = 0x4d4f5453; // "MOTS"
+   static final int    VERSION   = 1;
+   static final String EXTENSION = ".score";
+
+   // Score and music names.
+   String name      = "";
+   String musicName = "";
+
+   // Beats compiled.
+   int finisBeat = 0;
+
+   // Sounding beats, in ascending order, and their sound masks.
+   int    count  = 0;
+   int[]  beats  = new int[Music.INITIAL_CAPACITY];
+   long[] sounds = new long[Music.INITIAL_CAPACITY];
+
+   // Keyframes of sphere positions (x0, y0, x1, y1, ...) at beats 0,
+   // keyframeInterval, 2 * keyframeInterval, ...
+   int     keyframeInterval = 0;
+   int     numSpheres       = 0;
+   int     numKeyframes     = 0;
+   int[][] keyframes        = new int[0][];
+
+   // Next sounding beat to play.
+   int next = 0;
+
+   boolean fileError = false;
+
+   // Constructors.
+   public Score()
+   {
+   }
+
+
+   public Score(String musicName, int keyframeInterval, int numSpheres)
+   {
+      this.musicName        = musicName;
+      this.keyframeInterval = keyframeInterval;
+      this.numSpheres       = numSpheres;
+   }
+
+
+   // Add the sound mask of a beat after those added.
+   public void add(int beat, long mask)
+   {
+      if ((count > 0) && (beats[count - 1] == beat))
+      {
+         sounds[count - 1] |= mask;
+         return;
+      }
+      if (count == beats.length)
+      {
+         beats  = Arrays.copyOf(beats, count * 2);
+         sounds = Arrays.copyOf(sounds, count * 2);
+      }
+      beats[count]  = beat;
+      sounds[count] = mask;
+      count++;
+   }
+
+
+   // Add a keyframe of sphere positions after those added.
+   public void addKeyframe(SphereStore spheres)
+   {
+      int   i;
+      int[] p;
+
+      if (numKeyframes == keyframes.length)
+      {
+         keyframes = Arrays.copyOf(keyframes, Math.max(numKeyframes * 2, 16));
+      }
+      p = keyframes[numKeyframes++] = new int[numSpheres * 2];
+      for (i = 0; i < numSpheres; i++)
+      {
+         p[i * 2]       = spheres.x[i];
+         p[(i * 2) + 1] = spheres.y[i];
+      }
+   }
+
+
+   // Rewind the music to the start of the score.
+   public void rewind(Music music)
+   {
+      seek(music, 0);
+   }
+
+
+   // Set the music to a beat of the score, without playing sounds.
+   // Returns the beat reached, which is short of the target past the end.
+   public int seek(Music music, int toBeat)
+   {
+      int lo, hi, mid;
+
+      music.beat = Math.max(0, Math.min(toBeat, finisBeat));
+
+      // First sounding beat after it.
+      lo = 0;
+      hi = count;
+      while (lo < hi)
+      {
+         mid = (lo + hi) >>> 1;
+         if (beats[mid] <= music.beat)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid;
+         }
+      }
+      next = lo;
+      setSounds(music, 0L);
+      setPositions(music);
+      return(music.beat);
+   }
+
+
+   // Advance the music one beat of the score, setting its sound play mask
+   // and, at a keyframe, its sphere positions.  Returns false at the end.
+   public boolean step(Music music)
+   {
+      if (music.beat >= finisBeat) { return(false); }
+      music.beat++;
+      if ((next < count) && (beats[next] == music.beat))
+      {
+         setSounds(music, sounds[next++]);
+      }
+      else
+      {
+         setSounds(music, 0L);
+      }
+      if ((keyframeInterval > 0) && ((music.beat % keyframeInterval) == 0))
+      {
+         setPositions(music);
+      }
+      return(true);
+   }
+
+
+   // Set the music's sound play mask.
+   void setSounds(Music music, long mask)
+   {
+      music.playSounds = mask;
+   }
+
+
+   // Set the sphere positions of the latest keyframe at or before the
+   // music's beat.
+   void setPositions(Music music)
+   {
+      int   i, k;
+      int[] p;
+
+      if ((keyframeInterval == 0) || (numSpheres != music.spheres.count)) { return; }
+      k = Math.min(music.beat / keyframeInterval, numKeyframes - 1);
+      if (k < 0) { return; }
+      p = keyframes[k];
+      for (i = 0; i < numSpheres; i++)
+      {
+         music.spheres.x[i] = p[i * 2];
+         music.spheres.y[i] = p[(i * 2) + 1];
+      }
+   }
+
+
+   // Load score.
+   public String load(String scoreName, URL baseURL)
+   {
+      int             i, j, n;
+      int[]           p;
+      URL             u;
+      InputStream     in;
+      DataInputStream d;
+
+      name      = scoreName;
+      fileError = false;
+      try
+      {
+         in = new FileInputStream(name);
+      }
+      catch (Exception e)
+      {
+         in = null;
+      }
+      if (in == null)
+      {
+         try
+         {
+            try { u = new URL(name); }
+            catch (MalformedURLException e) {
+               u = new URL(baseURL, name);
+            }
+            in = u.openStream();
+         }
+         catch (Exception e)
+         {
+            in = null;
+         }
+      }
+      if (in == null)
+      {
+         fileError = true;
+         return("Error loading score " + name);
+      }
+      try
+      {
+         d = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+         if ((d.readInt() != MAGIC) || (d.readInt() != VERSION))
+         {
+            throw(new IOException());
+         }
+         musicName = d.readUTF();
+         finisBeat = d.readInt();
+         count     = 0;
+         n         = d.readInt();
+         for (i = 0; i < n; i++)
+         {
+            add(d.readInt(), d.readLong());
+         }
+         keyframeInterval = d.readInt();
+         numSpheres       = d.readInt();
+         n                = d.readInt();
+         keyframes        = new int[n][];
+         for (numKeyframes = 0; numKeyframes < n; numKeyframes++)
+         {
+            p = keyframes[numKeyframes] = new int[numSpheres * 2];
+            for (j = 0; j < p.length; j++)
+            {
+               p[j] = d.readInt();
+            }
+         }
+         d.close();
+      }
+      catch (IOException e) {
+         fileError = true;
+         return("Corrupt score " + name);
+      }
+      next = 0;
+      return("Score " + name + " loaded");
+   }
+
+
+   // Save score.
+   public String save(String scoreName)
+   {
+      int              i, j;
+      DataOutputStream d;
+
+      name = scoreName;
+      try
+      {
+         d = new DataOutputStream(new BufferedOutputStream(
+                                     new GZIPOutputStream(new FileOutputStream(name))));
+         d.writeInt(MAGIC);
+         d.writeInt(VERSION);
+         d.writeUTF(musicName);
+         d.writeInt(finisBeat);
+         d.writeInt(count);
+         for (i = 0; i < count; i++)
+         {
+            d.writeInt(beats[i]);
+            d.writeLong(sounds[i]);
+         }
+         d.writeInt(keyframeInterval);
+         d.writeInt(numSpheres);
+         d.writeInt(numKeyframes);
+         for (i = 0; i < numKeyframes; i++)
+         {
+            for (j = 0; j < keyframes[i].length; j++)
+            {
+               d.writeInt(keyframes[i][j]);
+            }
+         }
+         d.close();
+      }
+      catch (IOException e) {
+         return("Error saving score " + name);
+      }
+      return("Score " + name + " saved");
+   }
+}
@@ -0,0 +1,198 @@
+/*
+ *
+ * Music of the Spheres score compiler.
+ *
+ * Description:
+ *
+ * Plays a composition once, headlessly and as fast as possible (see
+ * Music.seek()), and saves the performance as a score (see Score): the
+ * sound mask of each sounding beat, collected from the collision events,
+ * and optionally sphere position keyframes.  Music that does not end must
+ * be given a number of beats to compile.
+ *
+ * Usage:
+ *
+ * java -cp Composer.jar ScoreCompiler [-beats <beats>] [-keyframes <interval>]
+ *    <music file> <score file>
+ *
+ */
+
+import java.awt.*;
+import java.io.*;
+import java.net.*;
+
+// Score compiler.
+public class ScoreCompiler implements CollisionConsumer
+{
+   // Score being compiled.
+   Score score;
+
+   // Sounds triggered so far in the beat.
+   long sounds;
+
+   // Constructor.
+   public ScoreCompiler(Score score)
+   {
+      this.score = score;
+      sounds     = 0L;
+   }
+
+
+   // Collect the sounds of events.
+   public void consume(CollisionEvents events, long from, long to)
+   {
+      long s;
+
+      for (s = from; s < to; s++)
+      {
+         sounds |= Music.sound(events.firstPalette(s)) | Music.sound(events.secondPalette(s));
+      }
+   }
+
+
+   // Add the sounds of the beat to the score.
+   public void endBeat(int beat)
+   {
+      if (sounds != 0L)
+      {
+         score.add(beat, sounds);
+      }
+      sounds = 0L;
+   }
+
+
+   // Compile music from its rewind point, up to its finisBeat, or beats if
+   // it does not end, with keyframes every keyframeInterval beats (0 for
+   // none).  The music is left at the end.
+   public static Score compile(Music music, int beats, int keyframeInterval)
+   {
+      int           end, to;
+      Score         score;
+      ScoreCompiler compiler;
+
+      score    = new Score(music.name, keyframeInterval, music.spheres.count);
+      compiler = new ScoreCompiler(score);
+      end      = (music.finisBeat != -1 ? music.finisBeat : beats);
+      music.rewind();
+      music.collisionEvents.addConsumer(compiler);
+      if (keyframeInterval > 0)
+      {
+         score.addKeyframe(music.spheres);
+      }
+      while (music.beat < end)
+      {
+         to = end;
+         if (keyframeInterval > 0)
+         {
+            to = Math.min(end, ((music.beat / keyframeInterval) + 1) * keyframeInterval);
+         }
+         if (music.seek(to) < to) { break; }
+         if ((keyframeInterval > 0) && ((music.beat % keyframeInterval) == 0))
+         {
+            score.addKeyframe(music.spheres);
+         }
+      }
+      music.collisionEvents.removeConsumer(compiler);
+      score.finisBeat = music.beat;
+      return(score);
+   }
+
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java ScoreCompiler\n" +
+      "        [-beats <beats to compile, for music without a finis beat>]\n" +
+      "        [-keyframes <beats between sphere position keyframes> (default=none)]\n" +
+      "        <music file> <score file>";
+
+   // Main.
+   public static void main(String[] args)
+   {
+      int    i, beats, keyframeInterval;
+      long   t;
+      String musicName, scoreName, message;
+      URL    baseURL;
+      Music  music;
+      Score  score;
+
+      System.setProperty("java.awt.headless", "true");
+
+      // Get options.
+      beats            = -1;
+      keyframeInterval = 0;
+      musicName        = scoreName = null;
+      try
+      {
+         for (i = 0; i < args.length; i++)
+         {
+            if (args[i].equals("-beats"))
+            {
+               beats = Integer.parseInt(args[++i]);
+               if (beats < 0) { throw(new IllegalArgumentException()); }
+               continue;
+            }
+            if (args[i].equals("-keyframes"))
+            {
+               keyframeInterval = Integer.parseInt(args[++i]);
+               if (keyframeInterval < 0) { throw(new IllegalArgumentException()); }
+               continue;
+            }
+            if (args[i].equals("-help"))
+            {
+               System.out.println(Usage);
+               System.exit(0);
+            }
+            if (args[i].startsWith("-") || (scoreName != null))
+            {
+               throw(new IllegalArgumentException());
+            }
+            if (musicName == null)
+            {
+               musicName = args[i];
+            }
+            else
+            {
+               scoreName = args[i];
+            }
+         }
+         if (scoreName == null) { throw(new IllegalArgumentException()); }
+      }
+      catch (Exception e) {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Load the music.
+      baseURL = null;
+      try
+      {
+         baseURL = new File(System.getProperty("user.dir")).toURI().toURL();
+      }
+      catch (MalformedURLException e) {
+         System.err.println("Cannot get URL of current directory");
+         System.exit(1);
+      }
+      music      = new Music(new Dimension(0, 0));
+      music.mute = true;
+      message    = music.load(musicName, baseURL);
+      if (music.fileError || music.name.equals(""))
+      {
+         System.err.println(message);
+         System.exit(1);
+      }
+      if ((music.finisBeat == -1) && (beats == -1))
+      {
+         System.err.println("Music " + musicName + " does not end: give -beats");
+         System.exit(1);
+      }
+
+      // Compile and save.
+      t       = System.nanoTime();
+      score   = compile(music, beats, keyframeInterval);
+      message = score.save(scoreName);
+      System.out.println(message + ": " + score.finisBeat + " beats, " + score.count +
+                         " sounding, " + score.numKeyframes + " keyframes, compiled in " +
+                         ((System.nanoTime() - t) / 1000000L) + " ms");
+   }
+}
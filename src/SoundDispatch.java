@@ -0,0 +1,47 @@
+/*
+ *
+ * Music of the Spheres sound dispatch.
+ *
+ * Description:
+ *
+ * Collision consumer that sets the music's sound play mask: each beat,
+ * the palette indexes of the spheres and strings that collided.
+ *
+ */
+
+// Sound dispatch class.
+public class SoundDispatch implements CollisionConsumer
+{
+   // Music.
+   Music music;
+
+   // Sounds triggered so far in the beat.
+   long sounds;
+
+   // Constructor.
+   public SoundDispatch(Music music)
+   {
+      this.music = music;
+      sounds     = 0L;
+   }
+
+
+   // Collect the sounds of events.
+   public void consume(CollisionEvents events, long from, long to)
+   {
+      long s;
+
+      for (s = from; s < to; s++)
+      {
+         sounds |= Music.sound(events.firstPalette(s)) | Music.sound(events.secondPalette(s));
+      }
+   }
+
+
+   // Set the sound play mask of the beat.
+   public void endBeat(int beat)
+   {
+      music.playSounds = sounds;
+      sounds           = 0L;
+   }
+}
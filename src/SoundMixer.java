@@ -0,0 +1,729 @@
+/*
+ *
+ * Music of the Spheres sound mixer.
+ *
+ * Description:
+ *
+ * Plays palette sounds through javax.sound.sampled instead of applet
+ * audio clips, which give no control over latency or polyphony.  Each
+ * palette sound is decoded once, from its .au file, to 16-bit PCM in the
+ * mixer's output format and kept by URL, so that switching back to a
+ * palette does not decode it again.  With a sample cache (see
+ * SampleCache), decoded sounds are also kept on disk and memory-mapped,
+ * so that they are not decoded again by later runs or other players.
+ * Sounds are played from ShortBuffers, either heap or mapped, which the
+ * mixer only reads by index.  The music triggers the sounds of a
+ * beat by their palette index mask (see trigger()), which only sets bits
+ * of an atomic mask or queues them, so the beat loop neither blocks nor
+ * allocates.  A mixer thread takes the sounds due every PERIOD_FRAMES
+ * frames, starts a voice for each, and mixes the playing voices into a
+ * single SourceDataLine.
+ *
+ * Voices are a bounded pool, of at most maxVoices, so that the cost of
+ * mixing stays bounded however many sounds a beat triggers.  When the
+ * pool is full, a triggered sound steals a voice by the stealing policy:
+ *
+ * STEAL_OLDEST:     the voice that has played longest.
+ * STEAL_QUIETEST:   the voice whose next period is quietest.
+ * STEAL_RETRIGGER:  the voice playing the same sound, which restarts, as
+ *                   an applet audio clip does; sounds not playing are
+ *                   dropped while the pool is full.
+ *
+ * Under STEAL_RETRIGGER a sound always restarts its own voice, even if
+ * the pool is not full.  Stolen and dropped voices are counted.
+ *
+ * Beats are scheduled against the audio clock, the count of frames
+ * mixed, rather than played when the simulation thread reaches them, so
+ * that thread scheduling, drawing or garbage collection delays do not
+ * shift them (see scheduleBeat()).  Each beat maps to an exact frame:
+ * beat anchorBeat to anchorFrame, a lead ahead of the mixer when the
+ * clock was anchored, and each later beat framesPerBeat, at the tempo,
+ * after it.  The sounds of a beat are passed to the mixer thread with
+ * their frame through a single-producer single-consumer queue, and the
+ * mixer starts them at that frame within its period.  The lead absorbs
+ * delays of the simulation thread up to SCHEDULE_LEAD_MILLIS; a beat
+ * later than that, or a rewind, seek or freeze, anchors the clock again.
+ *
+ * Sounds may also be triggered at once (see trigger()), as the composer
+ * does when editing.  Their latency is the line buffer, configurable in
+ * milliseconds, plus up to a period.  The mixer measures the latency of
+ * each trigger as the time until the mixer thread took it plus the time
+ * to play what was queued in the line before its first frame.
+ *
+ * If no line is available, open() returns null and the caller plays
+ * audio clips as before.
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.sound.sampled.*;
+
+// Sound mixer class.
+public class SoundMixer implements Runnable
+{
+   // Output format: 16-bit signed mono little-endian PCM.
+   static final float       SAMPLE_RATE = 22050.0f;
+   static final AudioFormat FORMAT      = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+
+   // Parameters.
+   static final int DEFAULT_BUFFER_MILLIS = 20;
+   static final int MIN_BUFFER_MILLIS     = 5;
+   static final int PERIOD_FRAMES         = 64; // Frames mixed at a time.
+   static final int MAX_VOICES            = 64;
+   static final int DEFAULT_VOICES        = 16;
+   static final int SCHEDULE_LEAD_MILLIS  = 20;
+   static final int MAX_LEADS             = 4;   // Further ahead anchors the beat clock again.
+   static final int SCHEDULE_QUEUE        = 256; // Beats queued; a power of 2.
+   static final int STATUS_MILLIS         = 1000; // Shortest time between voice statuses.
+
+   // Voice stealing policies.
+   static final int      STEAL_OLDEST       = 0;
+   static final int      STEAL_QUIETEST     = 1;
+   static final int      STEAL_RETRIGGER    = 2;
+   static final String[] STEAL_POLICY_NAMES = { "oldest", "quietest", "retrigger" };
+
+   // Decoded sounds by URL.
+   HashMap<String, ShortBuffer> decoded = new HashMap<String, ShortBuffer>();
+
+   // On-disk cache of decoded sounds, or null.
+   SampleCache cache = null;
+
+   // Sounds of the palette by index.
+   volatile ShortBuffer[] sounds = new ShortBuffer[Music.MAX_SOUND_COLOR];
+
+   // Sounds triggered, by palette index mask, and the time of the first
+   // trigger since the mixer last took them.
+   AtomicLong triggers    = new AtomicLong(0L);
+   AtomicLong triggerTime = new AtomicLong(0L);
+
+   // Scheduled beats: output frame and sounds, queued from queueHead,
+   // taken by the mixer thread, to queueTail, added by the beat thread.
+   long[]        queueFrames = new long[SCHEDULE_QUEUE];
+   long[]        queueSounds = new long[SCHEDULE_QUEUE];
+   volatile long queueHead   = 0L;
+   volatile long queueTail   = 0L;
+
+   // Audio clock: frames mixed.
+   volatile long framesMixed = 0L;
+
+   // Beat clock: beat anchorBeat sounds at frame anchorFrame, and each
+   // later beat framesPerBeat after the one before.  Used by the beat
+   // thread only.
+   double framesPerBeat = SAMPLE_RATE / BeatScheduler.DEFAULT_BEATS_PER_SECOND;
+   int    anchorBeat    = -1;
+   long   anchorFrame   = 0L;
+   int    leadFrames    = frames(SCHEDULE_LEAD_MILLIS);
+
+   // Playing voices: sound, its palette index, next frame, and frames
+   // to wait before starting.
+   ShortBuffer[] voiceSounds    = new ShortBuffer[MAX_VOICES];
+   int[]         voiceIndexes   = new int[MAX_VOICES];
+   int[]         voicePositions = new int[MAX_VOICES];
+   int[]         voiceDelays    = new int[MAX_VOICES];
+   int           numVoices      = 0;
+
+   // Loudness of the voices' next periods, found when first needed after
+   // taking triggers.
+   int[]   voiceLoudness = new int[MAX_VOICES];
+   boolean loudnessKnown = false;
+
+   // Polyphony and voice stealing policy.
+   volatile int maxVoices   = DEFAULT_VOICES;
+   volatile int stealPolicy = STEAL_OLDEST;
+
+   // Mix buffers.
+   int[]  mixBuffer = new int[PERIOD_FRAMES];
+   byte[] outBuffer = new byte[PERIOD_FRAMES * 2];
+
+   // Output line and mixer thread.
+   SourceDataLine   line;
+   Thread           thread;
+   volatile boolean running;
+   int              bufferMillis;
+
+   // Statistics.
+   volatile long   numLatencies;
+   volatile double latencySum, maxLatency; // Milliseconds.
+   volatile long   stolenVoices, droppedVoices;
+   volatile long   scheduledBeats, lateBeats, droppedBeats, realignments;
+
+   // Voice counts last shown, and when.  Used by the caller's thread.
+   long shownStolenVoices, shownDroppedVoices, shownTime;
+
+   // Constructor, for mixing without a line.
+   public SoundMixer()
+   {
+      line         = null;
+      thread       = null;
+      running      = false;
+      bufferMillis = 0;
+   }
+
+
+   // Open a mixer playing to the default line with a buffer of the given
+   // milliseconds.  Returns null if there is no line.
+   public static SoundMixer open(int bufferMillis)
+   {
+      SoundMixer mixer;
+
+      mixer              = new SoundMixer();
+      mixer.bufferMillis = Math.max(bufferMillis, MIN_BUFFER_MILLIS);
+      try
+      {
+         mixer.line = AudioSystem.getSourceDataLine(FORMAT);
+         mixer.line.open(FORMAT, frames(mixer.bufferMillis) * 2);
+      }
+      catch (Exception e)
+      {
+         return(null);
+      }
+      mixer.line.start();
+      mixer.running = true;
+      mixer.thread  = new Thread(mixer, "SoundMixer");
+      mixer.thread.setDaemon(true);
+      mixer.thread.setPriority(Thread.MAX_PRIORITY);
+      mixer.thread.start();
+      return(mixer);
+   }
+
+
+   // Stop the mixer thread and close the line.
+   public void close()
+   {
+      running = false;
+      if (thread != null)
+      {
+         try
+         {
+            thread.join();
+         }
+         catch (InterruptedException e) {}
+         thread = null;
+      }
+      if (line != null)
+      {
+         line.close();
+         line = null;
+      }
+   }
+
+
+   // Set the maximum polyphony, up to MAX_VOICES, and the voice stealing
+   // policy.
+   public void setPolyphony(int maxVoices, int stealPolicy)
+   {
+      this.maxVoices   = Math.max(1, Math.min(maxVoices, MAX_VOICES));
+      this.stealPolicy = stealPolicy;
+   }
+
+
+   // Stealing policy of a name, or -1 if unknown.
+   public static int stealPolicy(String name)
+   {
+      int i;
+
+      for (i = 0; i < STEAL_POLICY_NAMES.length; i++)
+      {
+         if (STEAL_POLICY_NAMES[i].equalsIgnoreCase(name)) { return(i); }
+      }
+      return(-1);
+   }
+
+
+   // Frames of milliseconds.
+   static int frames(int millis)
+   {
+      return((int)((SAMPLE_RATE * millis) / 1000.0f));
+   }
+
+
+   // Load the sounds of a palette, decoding those not decoded before or
+   // cached.  Returns an error message, or null.
+   public synchronized String load(Palette palette)
+   {
+      int           i;
+      String        key, message;
+      ShortBuffer   s;
+      ShortBuffer[] p;
+
+      message = null;
+      p       = new ShortBuffer[Music.MAX_SOUND_COLOR];
+      for (i = 0; (i < Music.MAX_SOUND_COLOR) && (palette.soundURLs[i] != null); i++)
+      {
+         key = palette.soundURLs[i].toString();
+         s   = decoded.get(key);
+         if (s == null)
+         {
+            try
+            {
+               s = decode(palette.soundURLs[i], cache);
+               decoded.put(key, s);
+            }
+            catch (Exception e) {
+               message = "Cannot decode sound " + key;
+            }
+         }
+         p[i] = s;
+      }
+      sounds = p;
+      return(message);
+   }
+
+
+   // Decode a sound to the output format, or get it from the cache if
+   // not null, storing it if not cached.
+   static ShortBuffer decode(URL url, SampleCache cache)
+   throws IOException, UnsupportedAudioFileException
+   {
+      String      key;
+      byte[]      content;
+      ShortBuffer s;
+      InputStream in;
+
+      if (cache == null)
+      {
+         return(ShortBuffer.wrap(decode(url.openStream())));
+      }
+      in      = url.openStream();
+      content = in.readAllBytes();
+      in.close();
+      key = SampleCache.key(content);
+      if ((s = cache.get(key)) == null)
+      {
+         s = cache.put(key, decode(new ByteArrayInputStream(content)));
+      }
+      return(s);
+   }
+
+
+   // Decode a sound file to the output format.
+   static short[] decode(InputStream file) throws IOException, UnsupportedAudioFileException
+   {
+      int                   i, j, k, n, v, channels;
+      AudioInputStream      in;
+      AudioFormat           f;
+      ByteArrayOutputStream b;
+      byte[]                bytes;
+      short[]               mono;
+
+      in       = AudioSystem.getAudioInputStream(new BufferedInputStream(file));
+      f        = in.getFormat();
+      channels = f.getChannels();
+      in       = AudioSystem.getAudioInputStream(
+         new AudioFormat(f.getSampleRate(), 16, channels, true, false), in);
+      b     = new ByteArrayOutputStream();
+      bytes = new byte[4096];
+      while ((n = in.read(bytes)) > 0)
+      {
+         b.write(bytes, 0, n);
+      }
+      in.close();
+
+      // Average the channels.
+      bytes = b.toByteArray();
+      n     = bytes.length / (channels * 2);
+      mono  = new short[n];
+      for (i = 0; i < n; i++)
+      {
+         for (j = v = 0; j < channels; j++)
+         {
+            k  = ((i * channels) + j) * 2;
+            v += (short)((bytes[k + 1] << 8) | (bytes[k] & 0xff));
+         }
+         mono[i] = (short)(v / channels);
+      }
+      return(resample(mono, f.getSampleRate()));
+   }
+
+
+   // Resample a sound to the output rate, interpolating linearly.
+   static short[] resample(short[] in, float rate)
+   {
+      int     i, j, n;
+      double  p, f;
+      short[] out;
+
+      if ((rate == SAMPLE_RATE) || (in.length == 0)) { return(in); }
+      n   = (int)(((long)in.length * (long)SAMPLE_RATE) / (long)rate);
+      out = new short[n];
+      for (i = 0; i < n; i++)
+      {
+         p = ((double)i * rate) / SAMPLE_RATE;
+         j = (int)p;
+         f = p - j;
+         if (j >= (in.length - 1))
+         {
+            out[i] = in[in.length - 1];
+         }
+         else
+         {
+            out[i] = (short)Math.round((in[j] * (1.0 - f)) + (in[j + 1] * f));
+         }
+      }
+      return(out);
+   }
+
+
+   // Trigger the sounds of a palette index mask.  Does not block.
+   public void trigger(long mask)
+   {
+      long t;
+
+      if (mask == 0L) { return; }
+      do
+      {
+         t = triggers.get();
+      } while (!triggers.compareAndSet(t, t | mask));
+      triggerTime.compareAndSet(0L, System.nanoTime());
+   }
+
+
+   // Set the tempo that beats are scheduled at.
+   public void setTempo(double beatsPerSecond)
+   {
+      framesPerBeat = SAMPLE_RATE / beatsPerSecond;
+      anchorBeat    = -1;
+   }
+
+
+   // Schedule the sounds of a beat, by palette index mask, at the beat's
+   // frame on the beat clock.  Anchors the clock a lead ahead of the
+   // mixer if not yet anchored, if the beat is before the anchor (a
+   // rewind), or if its frame is already mixed or too far ahead (a late
+   // beat, a seek or the clocks drifting).  Called from one thread only.
+   public void scheduleBeat(int beat, long mask)
+   {
+      long f, now;
+
+      if (mask == 0L) { return; }
+      now = framesMixed;
+      f   = anchorFrame + Math.round((beat - anchorBeat) * framesPerBeat);
+      if ((anchorBeat == -1) || (beat < anchorBeat) || (f < now) ||
+          (f > (now + (leadFrames * MAX_LEADS))))
+      {
+         if (anchorBeat != -1)
+         {
+            realignments++;
+         }
+         anchorBeat  = beat;
+         anchorFrame = f = now + leadFrames;
+      }
+      schedule(f, mask);
+   }
+
+
+   // Schedule sounds, by palette index mask, to start at an output frame.
+   // Frames should not decrease, as a beat queued behind a later one
+   // waits for it.  Called from one thread only.  Returns false if the
+   // queue is full.
+   public boolean schedule(long frame, long mask)
+   {
+      long t;
+
+      t = queueTail;
+      if ((t - queueHead) == SCHEDULE_QUEUE)
+      {
+         droppedBeats++;
+         return(false);
+      }
+      queueFrames[(int)t & (SCHEDULE_QUEUE - 1)] = frame;
+      queueSounds[(int)t & (SCHEDULE_QUEUE - 1)] = mask;
+      queueTail = t + 1L;
+      scheduledBeats++;
+      return(true);
+   }
+
+
+   // Start voices for the triggered sounds.  Returns the time of the
+   // first trigger, or 0 if there were none.
+   long startTriggered()
+   {
+      long s, t;
+
+      s = triggers.getAndSet(0L);
+      if (s == 0L) { return(0L); }
+      t             = triggerTime.getAndSet(0L);
+      loudnessKnown = false;
+      startSounds(s, 0);
+      return(t);
+   }
+
+
+   // Start voices for the beats scheduled in the next frames, at their
+   // frames.  Beats whose frames are already mixed start at once.
+   void startScheduled(int frames)
+   {
+      long h, t, f, start;
+
+      start         = framesMixed;
+      t             = queueTail;
+      loudnessKnown = false;
+      for (h = queueHead; h < t; h++)
+      {
+         f = queueFrames[(int)h & (SCHEDULE_QUEUE - 1)];
+         if (f >= (start + frames)) { break; }
+         if (f < start)
+         {
+            lateBeats++;
+            f = start;
+         }
+         startSounds(queueSounds[(int)h & (SCHEDULE_QUEUE - 1)], (int)(f - start));
+      }
+      queueHead = h;
+   }
+
+
+   // Start voices for the sounds of a palette index mask after a delay
+   // in frames.
+   void startSounds(long s, int delay)
+   {
+      int           i, v;
+      ShortBuffer[] p;
+
+      p = sounds;
+      for ( ; s != 0L; s &= s - 1L)
+      {
+         i = Long.numberOfTrailingZeros(s);
+         if (p[i] == null) { continue; }
+         if ((v = voice(i, p[i])) == -1)
+         {
+            droppedVoices++;
+            continue;
+         }
+         voiceSounds[v]    = p[i];
+         voiceIndexes[v]   = i;
+         voicePositions[v] = 0;
+         voiceDelays[v]    = delay;
+         if (loudnessKnown)
+         {
+            voiceLoudness[v] = loudness(v);
+         }
+      }
+   }
+
+
+   // Voice to play sound of palette index i: a free voice, else one
+   // stolen by the policy.  Returns -1 if none.
+   int voice(int i, ShortBuffer sound)
+   {
+      int v, w, policy, quietest;
+
+      policy = stealPolicy;
+      if (policy == STEAL_RETRIGGER)
+      {
+         for (v = 0; v < numVoices; v++)
+         {
+            if ((voiceIndexes[v] == i) && (voiceSounds[v] == sound))
+            {
+               stolenVoices++;
+               return(v);
+            }
+         }
+      }
+      if (numVoices < maxVoices)
+      {
+         return(numVoices++);
+      }
+
+      // Steal.
+      w = -1;
+      switch (policy)
+      {
+      case STEAL_OLDEST:
+         for (v = w = 0; v < numVoices; v++)
+         {
+            if (voicePositions[v] > voicePositions[w]) { w = v; }
+         }
+         break;
+
+      case STEAL_QUIETEST:
+         if (!loudnessKnown)
+         {
+            for (v = 0; v < numVoices; v++)
+            {
+               voiceLoudness[v] = loudness(v);
+            }
+            loudnessKnown = true;
+         }
+         quietest = Integer.MAX_VALUE;
+         for (v = 0; v < numVoices; v++)
+         {
+            if (voiceLoudness[v] < quietest)
+            {
+               quietest = voiceLoudness[v];
+               w        = v;
+            }
+         }
+         break;
+      }
+      if (w != -1)
+      {
+         stolenVoices++;
+      }
+      return(w);
+   }
+
+
+   // Peak level of the next period of voice v.
+   int loudness(int v)
+   {
+      int         j, n, peak;
+      ShortBuffer s;
+
+      s = voiceSounds[v];
+      n = Math.min(s.limit(), voicePositions[v] + PERIOD_FRAMES);
+      for (j = voicePositions[v], peak = 0; j < n; j++)
+      {
+         peak = Math.max(peak, Math.abs(s.get(j)));
+      }
+      return(peak);
+   }
+
+
+   // Mix frames of the playing voices into out, as 16-bit little-endian
+   // PCM from offset, and advance the audio clock.  Voices that end are
+   // removed.
+   public void mix(byte[] out, int offset, int frames)
+   {
+      int         i, j, k, n, d, v;
+      ShortBuffer s;
+
+      if (mixBuffer.length < frames)
+      {
+         mixBuffer = new int[frames];
+      }
+      Arrays.fill(mixBuffer, 0, frames, 0);
+      for (i = 0; i < numVoices; )
+      {
+         // Not started yet?
+         d = voiceDelays[i];
+         if (d >= frames)
+         {
+            voiceDelays[i] = d - frames;
+            i++;
+            continue;
+         }
+         voiceDelays[i] = 0;
+
+         s = voiceSounds[i];
+         k = voicePositions[i];
+         n = Math.min(frames - d, s.limit() - k);
+         for (j = 0; j < n; j++)
+         {
+            mixBuffer[d + j] += s.get(k + j);
+         }
+         voicePositions[i] = k + n;
+         if (voicePositions[i] >= s.limit())
+         {
+            // Ended: move the last voice here.
+            numVoices--;
+            voiceSounds[i]         = voiceSounds[numVoices];
+            voiceIndexes[i]        = voiceIndexes[numVoices];
+            voicePositions[i]      = voicePositions[numVoices];
+            voiceDelays[i]         = voiceDelays[numVoices];
+            voiceSounds[numVoices] = null;
+         }
+         else
+         {
+            i++;
+         }
+      }
+      for (j = 0; j < frames; j++)
+      {
+         v = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixBuffer[j]));
+         out[offset + (j * 2)]     = (byte)v;
+         out[offset + (j * 2) + 1] = (byte)(v >> 8);
+      }
+      framesMixed += frames;
+   }
+
+
+   // Start the voices of the beats scheduled in the next frames and mix
+   // the frames into out from offset.
+   public void render(byte[] out, int offset, int frames)
+   {
+      startScheduled(frames);
+      mix(out, offset, frames);
+   }
+
+
+   // Mixer thread: start triggered voices and those of beats scheduled in
+   // the period, mix the period, and write it, blocking while the line
+   // buffer is full.
+   public void run()
+   {
+      long   t;
+      double latency;
+
+      while (running)
+      {
+         t = startTriggered();
+         if (t != 0L)
+         {
+            // Queued frames play before this period.
+            latency = ((System.nanoTime() - t) / 1.0e6) +
+                      (((line.getBufferSize() - line.available()) / 2) * 1000.0 / SAMPLE_RATE);
+            latencySum += latency;
+            maxLatency  = Math.max(maxLatency, latency);
+            numLatencies++;
+         }
+         render(outBuffer, 0, PERIOD_FRAMES);
+         line.write(outBuffer, 0, outBuffer.length);
+      }
+      line.drain();
+   }
+
+
+   // Mean trigger to output latency in milliseconds.
+   public double meanLatency()
+   {
+      return(numLatencies > 0 ? latencySum / numLatencies : 0.0);
+   }
+
+
+   // Statistics message.
+   public String statistics()
+   {
+      return(String.format("Sound latency: mean %.1f ms, max %.1f ms over %d triggers, " +
+                           "%d voices stolen, %d dropped; %d beats scheduled, %d late, " +
+                           "%d dropped, %d realignments", meanLatency(), maxLatency,
+                           numLatencies, stolenVoices, droppedVoices, scheduledBeats,
+                           lateBeats, droppedBeats, realignments));
+   }
+
+
+   // Voices stolen and dropped, to show if they have changed since last
+   // shown, at most every STATUS_MILLIS, else null.
+   public String voiceStatistics()
+   {
+      long now, stolen, dropped;
+
+      stolen  = stolenVoices;
+      dropped = droppedVoices;
+      if ((stolen == shownStolenVoices) && (dropped == shownDroppedVoices))
+      {
+         return(null);
+      }
+      now = System.currentTimeMillis();
+      if ((now - shownTime) < STATUS_MILLIS)
+      {
+         return(null);
+      }
+      shownStolenVoices  = stolen;
+      shownDroppedVoices = dropped;
+      shownTime          = now;
+      return(voiceCounts());
+   }
+
+
+   // Voices stolen and dropped message.
+   public String voiceCounts()
+   {
+      return(String.format("Sounds: %d voices stolen, %d dropped (of %d voices)", stolenVoices,
+                           droppedVoices, maxVoices));
+   }
+}
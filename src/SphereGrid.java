@@ -0,0 +1,206 @@
+/*
+ *
+ * Music of the Spheres sphere grid.
+ *
+ * Description:
+ *
+ * A uniform spatial hash of sphere positions used as the broadphase for
+ * sphere-sphere collisions.  Cells are two maximum radii wide, so any two
+ * touching spheres lie in the same or in neighbouring cells.  The grid is
+ * rebuilt each beat as a counting sort of spheres by hash bucket, which
+ * keeps every bucket in ascending sphere order.
+ *
+ */
+
+import java.util.*;
+
+// Sphere grid class.
+public class SphereGrid
+{
+   // Parameters.
+   static final int CELL_SIZE   = Music.MAX_SPHERE_RADIUS * 2;
+   static final int MIN_BUCKETS = 16;
+   static final int SORT_RUN    = 32; // Candidates insertion sorted before merging.
+
+   // Buckets: spheres of bucket b are bucketSpheres[bucketStart[b] .. bucketStart[b + 1] - 1].
+   int[] bucketStart   = new int[MIN_BUCKETS + 1];
+   int[] bucketSpheres = new int[0];
+   int[] sphereBucket  = new int[0];
+   int   bucketMask    = MIN_BUCKETS - 1;
+
+   // Candidates found by the last query.
+   int[] candidates     = new int[0];
+   int   numCandidates  = 0;
+   int[] mergeBuffer    = new int[0];
+   int[] visitedBuckets = new int[9];
+
+   // Build the grid from sphere positions.  Tables only grow, so that
+   // rebuilding allocates nothing once they are big enough.
+   public void build(int[] x, int[] y, int count)
+   {
+      int i, b, n;
+
+      // Size the tables.
+      for (n = MIN_BUCKETS; n < (count * 2); n *= 2) {}
+      if (bucketStart.length < (n + 1))
+      {
+         bucketStart = new int[n + 1];
+      }
+      bucketMask = n - 1;
+      if (bucketSpheres.length < count)
+      {
+         bucketSpheres = new int[count];
+         sphereBucket  = new int[count];
+         candidates    = new int[count];
+         mergeBuffer   = new int[count];
+      }
+
+      // Count spheres per bucket.
+      Arrays.fill(bucketStart, 0, n + 1, 0);
+      for (i = 0; i < count; i++)
+      {
+         b = bucket(cell(x[i]), cell(y[i]));
+         sphereBucket[i] = b;
+         bucketStart[b + 1]++;
+      }
+      for (b = 0; b < n; b++)
+      {
+         bucketStart[b + 1] += bucketStart[b];
+      }
+
+      // Place spheres, using the bucket start as a fill cursor.
+      for (i = 0; i < count; i++)
+      {
+         b = sphereBucket[i];
+         bucketSpheres[bucketStart[b]] = i;
+         bucketStart[b]++;
+      }
+
+      // Restore the bucket starts.
+      for (b = n; b > 0; b--)
+      {
+         bucketStart[b] = bucketStart[b - 1];
+      }
+      bucketStart[0] = 0;
+   }
+
+
+   // Find spheres after sphere i in the cells around (x, y).
+   // Result is in candidates[0 .. numCandidates - 1], in ascending order.
+   public int query(int i, int x, int y)
+   {
+      int b, k, v, numVisited;
+
+      numVisited    = neighbourBuckets(x, y, visitedBuckets);
+      numCandidates = 0;
+      for (k = 0; k < numVisited; k++)
+      {
+         b = visitedBuckets[k];
+         for (v = bucketStart[b]; v < bucketStart[b + 1]; v++)
+         {
+            if (bucketSpheres[v] > i)
+            {
+               candidates[numCandidates++] = bucketSpheres[v];
+            }
+         }
+      }
+      sortCandidates();
+      return(numCandidates);
+   }
+
+
+   // Find the distinct buckets of the cells around (x, y).
+   // Result is in buckets[0 .. 8]; returns the number found.
+   public int neighbourBuckets(int x, int y, int[] buckets)
+   {
+      int cx, cy, b, j, k, v, n;
+
+      cx = cell(x);
+      cy = cell(y);
+      n  = 0;
+      for (j = -1; j <= 1; j++)
+      {
+         for (k = -1; k <= 1; k++)
+         {
+            // Neighbouring cells may hash to the same bucket.
+            b = bucket(cx + j, cy + k);
+            for (v = 0; v < n && buckets[v] != b; v++) {}
+            if (v == n)
+            {
+               buckets[n++] = b;
+            }
+         }
+      }
+      return(n);
+   }
+
+
+   // Sort candidates so pairs resolve in the same order as a full scan.
+   // Runs of SORT_RUN are insertion sorted, then merged through the merge
+   // buffer; Arrays.sort() would allocate a buffer for the ascending runs
+   // of the buckets.
+   void sortCandidates()
+   {
+      int   i, j, c, w, lo, mid, hi, a, b;
+      int[] from, to, t;
+
+      for (lo = 0; lo < numCandidates; lo += SORT_RUN)
+      {
+         hi = Math.min(lo + SORT_RUN, numCandidates);
+         for (i = lo + 1; i < hi; i++)
+         {
+            c = candidates[i];
+            for (j = i - 1; j >= lo && candidates[j] > c; j--)
+            {
+               candidates[j + 1] = candidates[j];
+            }
+            candidates[j + 1] = c;
+         }
+      }
+      from = candidates;
+      to   = mergeBuffer;
+      for (w = SORT_RUN; w < numCandidates; w *= 2)
+      {
+         for (lo = 0; lo < numCandidates; lo += w * 2)
+         {
+            mid = Math.min(lo + w, numCandidates);
+            hi  = Math.min(lo + (w * 2), numCandidates);
+            for (i = lo, a = lo, b = mid; i < hi; i++)
+            {
+               if ((b >= hi) || ((a < mid) && (from[a] <= from[b])))
+               {
+                  to[i] = from[a++];
+               }
+               else
+               {
+                  to[i] = from[b++];
+               }
+            }
+         }
+         t    = from;
+         from = to;
+         to   = t;
+      }
+      if (from != candidates)
+      {
+         System.arraycopy(from, 0, candidates, 0, numCandidates);
+      }
+   }
+
+
+   // Cell coordinate.
+   static int cell(int p)
+   {
+      return(Math.floorDiv(p, CELL_SIZE));
+   }
+
+
+   // Hash bucket of a cell.
+   int bucket(int cx, int cy)
+   {
+      int h;
+
+      h = (cx * 0x9E3779B1) + (cy * 0x85EBCA77);
+      return((h ^ (h >>> 16)) & bucketMask);
+   }
+}
@@ -0,0 +1,67 @@
+/*
+ *
+ * Music of the Spheres sphere images.
+ *
+ * Description:
+ *
+ * Drawing a sphere with fillOval() allocates a few hundred bytes in
+ * Java2D every time, which drawing every beat turns into steady garbage.
+ * Spheres come in few sizes and colors, so each is drawn once into an
+ * image, kept by palette index and radius, and copied with drawImage(),
+ * which allocates nothing.  An image is redrawn if the palette's color
+ * for its index changes.
+ *
+ */
+
+import java.awt.*;
+import java.awt.image.*;
+
+// Sphere images class.
+public class SphereImages
+{
+   // Images by palette index (black at MAX_SOUND_COLOR) and radius, and
+   // the colors they were drawn in.
+   BufferedImage[][] images =
+      new BufferedImage[Music.MAX_SOUND_COLOR + 1][Music.MAX_SPHERE_RADIUS + 1];
+   Color[][] colors = new Color[Music.MAX_SOUND_COLOR + 1][Music.MAX_SPHERE_RADIUS + 1];
+
+   // Draw sphere i of music.
+   public void draw(Graphics g, Music music, int i)
+   {
+      int           p, r;
+      Color         c;
+      BufferedImage image;
+      Graphics      ig;
+
+      p = music.spheres.paletteIndex[i];
+      r = music.spheres.radius[i];
+      c = Color.black;
+      if ((p != -1) && (music.palette.soundColors[p] != null))
+      {
+         c = music.palette.soundColors[p];
+      }
+      else
+      {
+         p = Music.MAX_SOUND_COLOR;
+      }
+      if ((r < 0) || (r > Music.MAX_SPHERE_RADIUS))
+      {
+         // Not a size that is kept.
+         g.setColor(c);
+         g.fillOval(music.spheres.x[i] - r, music.spheres.y[i] - r, r * 2, r * 2);
+         return;
+      }
+      image = images[p][r];
+      if ((image == null) || (colors[p][r] != c))
+      {
+         image = images[p][r] = new BufferedImage(Math.max(r * 2, 1), Math.max(r * 2, 1),
+                                                  BufferedImage.TYPE_INT_ARGB);
+         colors[p][r] = c;
+         ig           = image.getGraphics();
+         ig.setColor(c);
+         ig.fillOval(0, 0, r * 2, r * 2);
+         ig.dispose();
+      }
+      g.drawImage(image, music.spheres.x[i] - r, music.spheres.y[i] - r, null);
+   }
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * Music of the Spheres sphere kernel.
+ *
+ * Description:
+ *
+ * Per-sphere arithmetic of a beat that is the same for every sphere:
+ * checking for wall bounces, and committing next velocities and moving.
+ * This class is the scalar kernel.  If the Vector API module
+ * (jdk.incubator.vector) is present, create() returns a subclass that
+ * does some of it in vector lanes, with identical results; it is
+ * compiled and loaded separately so the rest of the program does not
+ * need the module.
+ *
+ */
+
+// Sphere kernel class.
+public class SphereKernel
+{
+   // Vector kernel class.
+   static final String VECTOR_KERNEL = "VectorSphereKernel";
+
+   // Fastest kernel available.
+   public static final SphereKernel DEFAULT = create();
+
+   // Create the vector kernel if available, else the scalar kernel.
+   public static SphereKernel create()
+   {
+      try
+      {
+         return((SphereKernel)Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance());
+      }
+      catch (Exception e) {
+      }
+      catch (LinkageError e) {
+      }
+      return(new SphereKernel());
+   }
+
+
+   // Kernel name.
+   public String name()
+   {
+      return("scalar");
+   }
+
+
+   // Set the wall bounces of spheres from..to-1.
+   public void wallBounces(SphereStore spheres, int from, int to,
+                           int width, int height, long[] bounces)
+   {
+      int i;
+
+      for (i = from; i < to; i++)
+      {
+         bounces[i] = wallBounce(spheres.x[i], spheres.y[i], spheres.radius[i],
+                                 spheres.dx[i], spheres.dy[i], width, height);
+      }
+   }
+
+
+   // Wall bounce of a sphere: Music.BOUNCE_X if it is at a side wall and
+   // moving into it, Music.BOUNCE_Y likewise for the top and bottom.
+   static long wallBounce(int x, int y, int r, double dx, double dy, int width, int height)
+   {
+      long f;
+
+      f = 0L;
+      if (((x >= (width - r)) && (dx > 0.0)) ||
+          ((x <= r) && (dx < 0.0)))
+      {
+         f |= Music.BOUNCE_X;
+      }
+      if (((y >= (height - r)) && (dy > 0.0)) ||
+          ((y <= r) && (dy < 0.0)))
+      {
+         f |= Music.BOUNCE_Y;
+      }
+      return(f);
+   }
+
+
+   // Commit the next velocities of spheres from..to-1 and move them.
+   public void move(SphereStore spheres, int from, int to)
+   {
+      int i;
+
+      for (i = from; i < to; i++)
+      {
+         spheres.dx[i] = spheres.ndx[i];
+         spheres.dy[i] = spheres.ndy[i];
+         spheres.x[i] += spheres.dx[i];
+         spheres.y[i] += spheres.dy[i];
+      }
+   }
+}
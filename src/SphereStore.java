@@ -0,0 +1,161 @@
+/*
+ *
+ * Music of the Spheres sphere store.
+ *
+ * Description:
+ *
+ * Spheres are stored as parallel primitive arrays (struct of arrays) so
+ * that each beat's collision and movement loops stream through memory
+ * instead of chasing object references.  A sphere is addressed by its
+ * index into the arrays, e.g. spheres.x[i]; only the first count entries
+ * are in use.
+ *
+ */
+
+import java.util.*;
+
+// Sphere store class.
+public class SphereStore
+{
+   // Spheres.
+   int      count;
+   int[]    radius;       // Radius.
+   int[]    x, y;         // Position.
+   int[]    fracX, fracY; // Position fraction, in fixed-point mode.
+   double[] dx, dy;       // Velocity.
+   double[] ndx, ndy;     // Next velocity.
+   int[]    paletteIndex; // Musical sound and color.
+
+   // Constructors.
+   public SphereStore()
+   {
+      this(Music.INITIAL_CAPACITY);
+   }
+
+
+   public SphereStore(int capacity)
+   {
+      count        = 0;
+      radius       = new int[capacity];
+      x            = new int[capacity];
+      y            = new int[capacity];
+      fracX        = new int[capacity];
+      fracY        = new int[capacity];
+      dx           = new double[capacity];
+      dy           = new double[capacity];
+      ndx          = new double[capacity];
+      ndy          = new double[capacity];
+      paletteIndex = new int[capacity];
+   }
+
+
+   // Add sphere, returning its index.
+   public int add(SphereSprite sphere)
+   {
+      ensureCapacity(count + 1);
+      radius[count]       = sphere.radius;
+      x[count]            = sphere.x;
+      y[count]            = sphere.y;
+      fracX[count]        = 0;
+      fracY[count]        = 0;
+      dx[count]           = sphere.dx;
+      dy[count]           = sphere.dy;
+      ndx[count]          = 0.0;
+      ndy[count]          = 0.0;
+      paletteIndex[count] = sphere.paletteIndex;
+      return(count++);
+   }
+
+
+   // Remove sphere.
+   public void remove(int index)
+   {
+      int n;
+
+      count--;
+      n = count - index;
+      System.arraycopy(radius, index + 1, radius, index, n);
+      System.arraycopy(x, index + 1, x, index, n);
+      System.arraycopy(y, index + 1, y, index, n);
+      System.arraycopy(fracX, index + 1, fracX, index, n);
+      System.arraycopy(fracY, index + 1, fracY, index, n);
+      System.arraycopy(dx, index + 1, dx, index, n);
+      System.arraycopy(dy, index + 1, dy, index, n);
+      System.arraycopy(ndx, index + 1, ndx, index, n);
+      System.arraycopy(ndy, index + 1, ndy, index, n);
+      System.arraycopy(paletteIndex, index + 1, paletteIndex, index, n);
+   }
+
+
+   // Get sphere into given sprite.
+   public SphereSprite get(int index, SphereSprite sphere)
+   {
+      sphere.radius       = radius[index];
+      sphere.x            = x[index];
+      sphere.y            = y[index];
+      sphere.dx           = dx[index];
+      sphere.dy           = dy[index];
+      sphere.paletteIndex = paletteIndex[index];
+      return(sphere);
+   }
+
+
+   // Clear store.
+   public void clear()
+   {
+      count = 0;
+   }
+
+
+   // Copy all spheres from another store.
+   public void copyFrom(SphereStore from)
+   {
+      int n;
+
+      n = from.count;
+      ensureCapacity(n);
+      System.arraycopy(from.radius, 0, radius, 0, n);
+      System.arraycopy(from.x, 0, x, 0, n);
+      System.arraycopy(from.y, 0, y, 0, n);
+      System.arraycopy(from.fracX, 0, fracX, 0, n);
+      System.arraycopy(from.fracY, 0, fracY, 0, n);
+      System.arraycopy(from.dx, 0, dx, 0, n);
+      System.arraycopy(from.dy, 0, dy, 0, n);
+      System.arraycopy(from.ndx, 0, ndx, 0, n);
+      System.arraycopy(from.ndy, 0, ndy, 0, n);
+      System.arraycopy(from.paletteIndex, 0, paletteIndex, 0, n);
+      count = n;
+   }
+
+
+   // Copy positions and velocities of the first n spheres from another store.
+   public void copyMotionFrom(SphereStore from, int n)
+   {
+      System.arraycopy(from.x, 0, x, 0, n);
+      System.arraycopy(from.y, 0, y, 0, n);
+      System.arraycopy(from.fracX, 0, fracX, 0, n);
+      System.arraycopy(from.fracY, 0, fracY, 0, n);
+      System.arraycopy(from.dx, 0, dx, 0, n);
+      System.arraycopy(from.dy, 0, dy, 0, n);
+   }
+
+
+   // Grow arrays to hold at least n spheres.
+   public void ensureCapacity(int n)
+   {
+      int c;
+
+      if (n <= x.length) { return; }
+      for (c = Math.max(x.length, 1); c < n; c *= 2) {}
+      radius       = Arrays.copyOf(radius, c);
+      x            = Arrays.copyOf(x, c);
+      y            = Arrays.copyOf(y, c);
+      fracX        = Arrays.copyOf(fracX, c);
+      fracY        = Arrays.copyOf(fracY, c);
+      dx           = Arrays.copyOf(dx, c);
+      dy           = Arrays.copyOf(dy, c);
+      ndx          = Arrays.copyOf(ndx, c);
+      ndy          = Arrays.copyOf(ndy, c);
+      paletteIndex = Arrays.copyOf(paletteIndex, c);
+   }
+}
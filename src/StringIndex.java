@@ -0,0 +1,121 @@
+/*
+ *
+ * Music of the Spheres string index.
+ *
+ * Description:
+ *
+ * Strings do not move during play, so they are indexed once when they
+ * change: vertical strings sorted by x, and horizontal strings sorted by
+ * the low end of their y interval.  A sphere can only bounce on a string
+ * within its radius plus the END_REACH of the string's end caps, so it
+ * tests only the strings found by a binary search of that window.
+ *
+ */
+
+import java.util.*;
+
+// String index class.
+public class StringIndex
+{
+   // End caps extend this far across a string.
+   static final int END_REACH = 2;
+
+   // Vertical strings, in ascending x order.
+   int   numVertical;
+   int[] vertical  = new int[0];  // String index.
+   int[] verticalX = new int[0];
+
+   // Horizontal strings, in ascending low y order.
+   int   numHorizontal;
+   int[] horizontal      = new int[0]; // String index.
+   int[] horizontalLowY  = new int[0];
+   int[] horizontalHighY = new int[0];
+   int   maxHorizontalSpan;            // Largest high y - low y.
+
+   // Build index of strings.
+   public void build(StringSprite[] strings, int numStrings)
+   {
+      int    i, j;
+      long[] keys;
+
+      // Sort strings by key, packed above the string index.
+      numVertical = numHorizontal = 0;
+      for (i = 0; i < numStrings; i++)
+      {
+         if (strings[i].x1 == strings[i].x2)
+         {
+            numVertical++;
+         }
+      }
+      numHorizontal   = numStrings - numVertical;
+      vertical        = ensureLength(vertical, numVertical);
+      verticalX       = ensureLength(verticalX, numVertical);
+      horizontal      = ensureLength(horizontal, numHorizontal);
+      horizontalLowY  = ensureLength(horizontalLowY, numHorizontal);
+      horizontalHighY = ensureLength(horizontalHighY, numHorizontal);
+
+      keys = new long[numStrings];
+      for (i = j = 0; i < numStrings; i++)
+      {
+         if (strings[i].x1 == strings[i].x2)
+         {
+            keys[j++] = ((long)strings[i].x1 << 32) | i;
+         }
+      }
+      Arrays.sort(keys, 0, numVertical);
+      for (i = 0; i < numVertical; i++)
+      {
+         vertical[i]  = (int)keys[i];
+         verticalX[i] = strings[vertical[i]].x1;
+      }
+
+      for (i = j = 0; i < numStrings; i++)
+      {
+         if (strings[i].x1 != strings[i].x2)
+         {
+            keys[j++] = ((long)Math.min(strings[i].y1, strings[i].y2) << 32) | i;
+         }
+      }
+      Arrays.sort(keys, 0, numHorizontal);
+      maxHorizontalSpan = 0;
+      for (i = 0; i < numHorizontal; i++)
+      {
+         j                  = (int)keys[i];
+         horizontal[i]      = j;
+         horizontalLowY[i]  = Math.min(strings[j].y1, strings[j].y2);
+         horizontalHighY[i] = Math.max(strings[j].y1, strings[j].y2);
+         maxHorizontalSpan  = Math.max(maxHorizontalSpan,
+                                       horizontalHighY[i] - horizontalLowY[i]);
+      }
+   }
+
+
+   // Index of the first key at or above a value.
+   static int lowerBound(int[] keys, int count, int value)
+   {
+      int lo, hi, mid;
+
+      lo = 0;
+      hi = count;
+      while (lo < hi)
+      {
+         mid = (lo + hi) >>> 1;
+         if (keys[mid] < value)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid;
+         }
+      }
+      return(lo);
+   }
+
+
+   // Array of at least length n, reusing a if long enough.
+   static int[] ensureLength(int[] a, int n)
+   {
+      return(a.length >= n ? a : new int[n]);
+   }
+}
@@ -0,0 +1,238 @@
+/*
+ *
+ * Music of the Spheres timeline.
+ *
+ * Description:
+ *
+ * Checkpoints of sphere positions and velocities taken every interval
+ * beats while the music plays, so that seeking to any beat restores the
+ * nearest earlier checkpoint and replays at most interval beats.  Sphere
+ * radii, palette indexes and strings do not change during play, so they
+ * are not stored.  When the checkpoints outgrow the memory budget the
+ * interval is doubled and the checkpoints off the new interval dropped.
+ *
+ */
+
+import java.util.*;
+
+// Timeline class.
+public class Timeline
+{
+   // Parameters.
+   static final int  DEFAULT_INTERVAL    = 64;
+   static final long DEFAULT_BUDGET      = 16L * 1024L * 1024L; // Bytes.
+   static final int  CHECKPOINT_OVERHEAD = 64;                  // Bytes.
+   static final int  MAX_INTERVAL        = 1 << 30;
+
+   // Checkpoint interval and memory budget.
+   int  interval;
+   long budget;
+
+   // Checkpoints, in ascending beat order.  Arrays of unused slots are
+   // kept for reuse.
+   int        count;
+   int[]      beats       = new int[0];
+   int[][]    positions   = new int[0][];  // x0, y0, x1, y1, ...
+   double[][] velocities  = new double[0][]; // dx0, dy0, dx1, dy1, ...
+   int[][]    fractions   = new int[0][];    // fracX0, fracY0, ..., or null if not fixed-point.
+
+   // Constructor.
+   public Timeline(long budget)
+   {
+      this.budget = budget;
+      clear();
+   }
+
+
+   // Clear checkpoints.
+   public void clear()
+   {
+      count    = 0;
+      interval = DEFAULT_INTERVAL;
+   }
+
+
+   // Set memory budget.
+   public void setBudget(long budget)
+   {
+      this.budget = budget;
+      thin();
+   }
+
+
+   // Beat of the last checkpoint, or 0 if none.
+   public int lastBeat()
+   {
+      return(count > 0 ? beats[count - 1] : 0);
+   }
+
+
+   // Memory used by checkpoints.
+   public long bytesUsed()
+   {
+      return(count == 0 ? 0 : (long)count * checkpointBytes(positions[0].length / 2,
+                                                           fractions[0] != null));
+   }
+
+
+   // Record a checkpoint of the music if it is at a new checkpoint beat.
+   // Beats past the first pass of a known loop repeat earlier ones, so
+   // are not recorded.
+   public void record(Music music)
+   {
+      int      i, n;
+      int[]    p, f;
+      double[] v;
+
+      if ((music.beat % interval) != 0) { return; }
+      if (music.loopBeat(music.beat) != music.beat) { return; }
+      if ((count > 0) && (music.beat <= beats[count - 1])) { return; }
+      n = music.spheres.count;
+      if (checkpointBytes(n, music.fixedPoint) > budget) { return; }
+
+      // Grow slots.
+      if (count == beats.length)
+      {
+         i          = Math.max(count * 2, 16);
+         beats      = Arrays.copyOf(beats, i);
+         positions  = Arrays.copyOf(positions, i);
+         velocities = Arrays.copyOf(velocities, i);
+         fractions  = Arrays.copyOf(fractions, i);
+      }
+
+      // Copy the spheres' motion.
+      p = positions[count];
+      v = velocities[count];
+      if ((p == null) || (p.length != (n * 2)))
+      {
+         p = positions[count] = new int[n * 2];
+         v = velocities[count] = new double[n * 2];
+      }
+      for (i = 0; i < n; i++)
+      {
+         p[i * 2]       = music.spheres.x[i];
+         p[(i * 2) + 1] = music.spheres.y[i];
+         v[i * 2]       = music.spheres.dx[i];
+         v[(i * 2) + 1] = music.spheres.dy[i];
+      }
+      f = null;
+      if (music.fixedPoint)
+      {
+         f = fractions[count];
+         if ((f == null) || (f.length != (n * 2)))
+         {
+            f = new int[n * 2];
+         }
+         for (i = 0; i < n; i++)
+         {
+            f[i * 2]       = music.spheres.fracX[i];
+            f[(i * 2) + 1] = music.spheres.fracY[i];
+         }
+      }
+      fractions[count] = f;
+      beats[count]     = music.beat;
+      count++;
+
+      thin();
+   }
+
+
+   // Restore the music to the latest checkpoint at or before a beat.
+   // Returns false if there is no such checkpoint.
+   public boolean restore(Music music, int beat)
+   {
+      int      i, k, n;
+      int[]    p, f;
+      double[] v;
+
+      if ((k = checkpointAtOrBefore(beat)) == -1) { return(false); }
+      n = music.spheres.count;
+      p = positions[k];
+      v = velocities[k];
+      f = fractions[k];
+      if (p.length != (n * 2)) { return(false); }
+      if (music.fixedPoint != (f != null)) { return(false); }
+      for (i = 0; i < n; i++)
+      {
+         music.spheres.x[i]  = p[i * 2];
+         music.spheres.y[i]  = p[(i * 2) + 1];
+         music.spheres.dx[i] = v[i * 2];
+         music.spheres.dy[i] = v[(i * 2) + 1];
+      }
+      if (f != null)
+      {
+         for (i = 0; i < n; i++)
+         {
+            music.spheres.fracX[i] = f[i * 2];
+            music.spheres.fracY[i] = f[(i * 2) + 1];
+         }
+      }
+      music.beat = beats[k];
+      music.events.invalidate();
+      music.resting.invalidate();
+      return(true);
+   }
+
+
+   // Index of the latest checkpoint at or before a beat, or -1.
+   public int checkpointAtOrBefore(int beat)
+   {
+      int lo, hi, mid;
+
+      lo = 0;
+      hi = count - 1;
+      while (lo <= hi)
+      {
+         mid = (lo + hi) >>> 1;
+         if (beats[mid] <= beat)
+         {
+            lo = mid + 1;
+         }
+         else
+         {
+            hi = mid - 1;
+         }
+      }
+      return(hi);
+   }
+
+
+   // Thin out checkpoints until within budget.
+   void thin()
+   {
+      int      i, j;
+      int[]    p, f;
+      double[] v;
+
+      while ((bytesUsed() > budget) && (interval < MAX_INTERVAL))
+      {
+         interval *= 2;
+         for (i = j = 0; i < count; i++)
+         {
+            if ((beats[i] % interval) == 0)
+            {
+               // Swap so the dropped checkpoint's arrays stay for reuse.
+               p             = positions[j];
+               v             = velocities[j];
+               f             = fractions[j];
+               beats[j]      = beats[i];
+               positions[j]  = positions[i];
+               velocities[j] = velocities[i];
+               fractions[j]  = fractions[i];
+               positions[i]  = p;
+               velocities[i] = v;
+               fractions[i]  = f;
+               j++;
+            }
+         }
+         count = j;
+      }
+   }
+
+
+   // Bytes used by a checkpoint of n spheres, with fractions if fixed-point.
+   static long checkpointBytes(int n, boolean fixedPoint)
+   {
+      return(((long)n * (fixedPoint ? 32L : 24L)) + CHECKPOINT_OVERHEAD);
+   }
+}
@@ -0,0 +1,85 @@
+/*
+ *
+ * Music of the Spheres vector sphere kernel.
+ *
+ * Description:
+ *
+ * The sphere kernel in vector lanes, using the Vector API incubator
+ * module.  Wall bounces are found in double lanes: positions and radii
+ * are widened from int lanes, which is exact, and compared as the scalar
+ * kernel does (x + r >= width for x >= width - r), so the results are
+ * identical.  The ends of the sphere arrays that do not fill a vector
+ * are done by the scalar kernel.
+ *
+ * Moving stays scalar: the JDK 17 Vector API has no intrinsic for
+ * converting double lanes back to int, and the truncation done with
+ * other lane operations is slower than the scalar loop.
+ *
+ * Build with:
+ *
+ * javac --add-modules jdk.incubator.vector -cp <classes> src/vector/VectorSphereKernel.java
+ *
+ * and run with java --add-modules jdk.incubator.vector to use it.
+ *
+ */
+
+import jdk.incubator.vector.*;
+
+// Vector sphere kernel class.
+public class VectorSphereKernel extends SphereKernel
+{
+   // Vector species: int lanes widen to the same number of double lanes,
+   // whose masks select long lanes of the same shape.
+   static final VectorSpecies<Double>  DOUBLES = DoubleVector.SPECIES_PREFERRED;
+   static final VectorSpecies<Long>    LONGS   = DOUBLES.withLanes(long.class);
+   static final VectorSpecies<Integer> INTS    =
+      VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+   // Kernel name.
+   public String name()
+   {
+      return("vector " + DOUBLES.length() + " lanes");
+   }
+
+
+   // Set the wall bounces of spheres from..to-1.
+   public void wallBounces(SphereStore spheres, int from, int to,
+                           int width, int height, long[] bounces)
+   {
+      int                i, end;
+      DoubleVector       x, y, r, dx, dy;
+      LongVector         none;
+      VectorMask<Double> bounceX, bounceY;
+
+      none = LongVector.zero(LONGS);
+      end  = from + DOUBLES.loopBound(to - from);
+      for (i = from; i < end; i += DOUBLES.length())
+      {
+         x  = widen(spheres.x, i);
+         y  = widen(spheres.y, i);
+         r  = widen(spheres.radius, i);
+         dx = DoubleVector.fromArray(DOUBLES, spheres.dx, i);
+         dy = DoubleVector.fromArray(DOUBLES, spheres.dy, i);
+         bounceX = x.add(r).compare(VectorOperators.GE, (double)width)
+                    .and(dx.compare(VectorOperators.GT, 0.0))
+                    .or(x.compare(VectorOperators.LE, r)
+                         .and(dx.compare(VectorOperators.LT, 0.0)));
+         bounceY = y.add(r).compare(VectorOperators.GE, (double)height)
+                    .and(dy.compare(VectorOperators.GT, 0.0))
+                    .or(y.compare(VectorOperators.LE, r)
+                         .and(dy.compare(VectorOperators.LT, 0.0)));
+         none.blend(Music.BOUNCE_X, bounceX.cast(LONGS))
+             .or(none.blend(Music.BOUNCE_Y, bounceY.cast(LONGS)))
+             .intoArray(bounces, i);
+      }
+      super.wallBounces(spheres, end, to, width, height, bounces);
+   }
+
+
+   // Int lanes from an array, widened to double lanes.
+   static DoubleVector widen(int[] a, int i)
+   {
+      return((DoubleVector)IntVector.fromArray(INTS, a, i)
+                .convertShape(VectorOperators.I2D, DOUBLES, 0));
+   }
+}